@@ -0,0 +1,228 @@
+package com.p2p.network;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays concurrent sessions through a {@link UDPServer} once per {@link ExecutionModel} and reports the
+ * peak number of platform threads, the p50/p99 latency from sending a packet to its handler returning, and
+ * the packets and payload megabytes handled per second from the first packet sent to the last one handled.
+ * The handler blocks for a while on every packet, standing in for the disk writes and calls a real one
+ * makes, which is where the two models differ. Every session sends its packets at a steady interval,
+ * with the sessions spread evenly across it. The server runs as the application configures it by
+ * default, with {@link UDPServer#DEFAULT_WORKERS} lanes on platform threads, so packets that arrive while
+ * too many wait for their handlers are dropped and show up as not handled.
+ * <p>
+ * The benchmark is compiled for Java 17 with the rest of the code by the {@code benchmark} profile, and
+ * reaches virtual threads through {@link ExecutionModel} like the application does; on a runtime older
+ * than Java 21 {@link ExecutionModel#VIRTUAL} is skipped. To measure both models, run it on Java 21 or
+ * later:
+ * <pre>
+ * mvn -Pbenchmark compile exec:exec -Dbenchmark.java=/path/to/jdk-21/bin/java -Dbenchmark.args="--sessions 2000"
+ * </pre>
+ */
+public final class UDPServerBenchmark {
+
+    private static final String USAGE = "Options: --sessions N, --packets N (per session), --workers N (platform lanes, default UDPServer.DEFAULT_WORKERS),"
+            + " --interval-millis N (between the packets of a session), --handler-micros N (blocking per packet), --payload N (bytes)";
+    // Packets per session of the unmeasured pass that warms up the JIT before the first model is measured.
+    private static final int WARMUP_PACKETS = 10;
+    // Once the last packet is sent, the run ends when every packet is handled or none has been for this long,
+    // as the server drops packets while it is behind.
+    private static final long IDLE_MILLIS = 1000;
+
+    private UDPServerBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        System.out.printf("Java %s, %d CPUs: %d sessions x %d packets of %d bytes every %d ms, handlers blocking %d us%n",
+                Runtime.version(), Runtime.getRuntime().availableProcessors(), options.sessions, options.packets, options.payload,
+                options.intervalMillis, options.handlerMicros);
+        run(ExecutionModel.PLATFORM, options.withPackets(WARMUP_PACKETS));
+        for (ExecutionModel model : ExecutionModel.values()) {
+            if (!model.isAvailable()) {
+                System.out.printf("%-8s skipped: needs Java 21%n", model);
+                continue;
+            }
+            System.out.println(run(model, options));
+        }
+        System.exit(0);
+    }
+
+    private static Result run(ExecutionModel model, Options options) throws IOException, InterruptedException {
+        int total = options.sessions * options.packets;
+        long[] latencies = new long[total];
+        AtomicInteger handled = new AtomicInteger();
+        AtomicLong lastHandled = new AtomicLong();
+        UDPServer.PacketHandler handler = (packet, address, port, socket) -> {
+            long sentAt = packet.payload().getLong();
+            block(TimeUnit.MICROSECONDS.toNanos(options.handlerMicros));
+            long now = System.nanoTime();
+            latencies[handled.getAndIncrement()] = now - sentAt;
+            lastHandled.accumulateAndGet(now, Math::max);
+        };
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int baselineThreads = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        UDPServer server = UDPServer.builder()
+                .withPort(0)
+                .withPacketHandler(handler)
+                .withWorkers(options.workers())
+                .withExecutionModel(model)
+                .build();
+        try {
+            server.start();
+            long started = System.nanoTime();
+            try (DatagramChannel client = DatagramChannel.open()) {
+                client.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+                replay(client, options);
+            }
+            for (int seen = -1; handled.get() < total && handled.get() != seen; ) {
+                seen = handled.get();
+                TimeUnit.MILLISECONDS.sleep(IDLE_MILLIS);
+            }
+            int peakThreads = threads.getPeakThreadCount();
+            long elapsedNanos = Math.max(1, lastHandled.get() - started);
+            return new Result(model, options, Arrays.copyOf(latencies, Math.min(total, handled.get())), elapsedNanos, baselineThreads, peakThreads);
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Sends packet {@code k} of all sessions' packets, in round-robin order, at {@code k} times the interval
+     * divided by the number of sessions, so the server sees a steady rate rather than bursts.
+     */
+    private static void replay(DatagramChannel client, Options options) throws IOException {
+        UUID[] sessions = new UUID[options.sessions];
+        Arrays.setAll(sessions, i -> UUID.randomUUID());
+        ByteBuffer payload = ByteBuffer.allocate(options.payloadBytes());
+        ByteBuffer datagram = ByteBuffer.allocate(Packet.HEADER_SIZE + payload.capacity());
+        long spacingNanos = TimeUnit.MILLISECONDS.toNanos(options.intervalMillis) / options.sessions;
+        long start = System.nanoTime();
+        for (int round = 0; round < options.packets; round++) {
+            for (int session = 0; session < options.sessions; session++) {
+                long due = start + ((long) round * options.sessions + session) * spacingNanos;
+                while (due - System.nanoTime() > 0) {
+                    LockSupport.parkNanos(due - System.nanoTime());
+                }
+                payload.clear();
+                payload.putLong(0, System.nanoTime());
+                Packet.data(sessions[session], round, options.packets, payload, (byte) 0).encode(datagram.clear());
+                client.write(datagram.flip());
+            }
+        }
+    }
+
+    private static void block(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Result {
+        private final ExecutionModel model;
+        private final Options options;
+        private final long[] latencies;
+        private final long elapsedNanos;
+        private final int baselineThreads;
+        private final int peakThreads;
+
+        private Result(ExecutionModel model, Options options, long[] latencies, long elapsedNanos, int baselineThreads, int peakThreads) {
+            this.model = model;
+            this.options = options;
+            this.latencies = latencies;
+            this.elapsedNanos = elapsedNanos;
+            this.baselineThreads = baselineThreads;
+            this.peakThreads = peakThreads;
+            Arrays.sort(latencies);
+        }
+
+        private double percentileMillis(double percentile) {
+            if (latencies.length == 0) {
+                return Double.NaN;
+            }
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, index)] / 1_000_000.0;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNanos / 1e9;
+            String workers = model == ExecutionModel.VIRTUAL ? "per-session" : String.valueOf(options.workers());
+            return String.format("%-8s workers=%s handled=%d/%d peakPlatformThreads=%d (%d before start) p50=%.2fms p99=%.2fms"
+                            + " %.0f packets/s %.2f MB/s",
+                    model, workers, latencies.length, options.sessions * options.packets, peakThreads, baselineThreads,
+                    percentileMillis(50), percentileMillis(99), latencies.length / seconds,
+                    (double) latencies.length * options.payloadBytes() / seconds / 1_000_000);
+        }
+    }
+
+    private static final class Options {
+        private int sessions = 500;
+        private int packets = 50;
+        private int workers;
+        private int intervalMillis = 50;
+        private int handlerMicros = 1000;
+        private int payload = 1024;
+
+        private static Options parse(String[] args) {
+            Options options = new Options();
+            // Arguments passed through one property arrive as a single string, so they are split again.
+            String[] words = String.join(" ", args).trim().split("\\s+");
+            for (int i = 0; i + 1 < words.length; i += 2) {
+                int value = Integer.parseInt(words[i + 1]);
+                switch (words[i]) {
+                    case "--sessions" -> options.sessions = value;
+                    case "--packets" -> options.packets = value;
+                    case "--workers" -> options.workers = value;
+                    case "--interval-millis" -> options.intervalMillis = value;
+                    case "--handler-micros" -> options.handlerMicros = value;
+                    case "--payload" -> options.payload = value;
+                    default -> throw new IllegalArgumentException("Unknown option " + words[i] + ". " + USAGE);
+                }
+            }
+            if (words.length % 2 != 0 && !words[0].isEmpty()) {
+                throw new IllegalArgumentException("Option " + words[words.length - 1] + " has no value. " + USAGE);
+            }
+            if (options.sessions < 1 || options.packets < 1 || options.intervalMillis < 0 || options.handlerMicros < 0) {
+                throw new IllegalArgumentException(USAGE);
+            }
+            return options;
+        }
+
+        private int workers() {
+            return workers > 0 ? workers : UDPServer.DEFAULT_WORKERS;
+        }
+
+        private int payloadBytes() {
+            // Every payload carries its send time.
+            return Math.max(Long.BYTES, payload);
+        }
+
+        private Options withPackets(int packets) {
+            Options copy = new Options();
+            copy.sessions = sessions;
+            copy.packets = packets;
+            copy.workers = workers;
+            copy.intervalMillis = intervalMillis;
+            copy.handlerMicros = handlerMicros;
+            copy.payload = payload;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.p2p.webhook;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Checks the delivery guarantees of {@link WebhookOutbox} through a real {@link N8nClient} against a stub
+ * webhook on a local {@link HttpServer}: retries of 5xx answers with a growing backoff, dropping only the
+ * batches refused with 400, 413, 415 or 422, the circuit breaker opening and letting a trial batch through
+ * half-open, and replay of the events left in the outbox directory by a previous run.
+ * <p>
+ * Retry timing is shortened so the checks finish in seconds. Built and run with the {@code benchmark}
+ * profile, exiting with status 1 if a check fails:
+ * <pre>
+ * mvn -Pbenchmark compile exec:exec -Dbenchmark.main=com.p2p.webhook.WebhookOutboxCheck
+ * </pre>
+ */
+public final class WebhookOutboxCheck {
+
+    private static final Duration INITIAL_BACKOFF = Duration.ofMillis(100);
+    private static final Duration BREAKER_OPEN = Duration.ofSeconds(1);
+    private static final long TIMEOUT_SECONDS = 15;
+
+    private WebhookOutboxCheck() {
+    }
+
+    public static void main(String[] args) {
+        boolean passed = run("5xx is retried with a growing backoff", WebhookOutboxCheck::serverErrorsBackOff)
+                & run("only 400, 413, 415 and 422 drop a batch", WebhookOutboxCheck::onlyContentErrorsDrop)
+                & run("breaker opens, then lets one trial through half-open", WebhookOutboxCheck::breakerOpensAndHalfOpens)
+                & run("events left in the outbox directory are replayed after a restart", WebhookOutboxCheck::replaysAfterRestart);
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean run(String name, Check check) {
+        try {
+            String details = check.run();
+            System.out.printf("PASS %s (%s)%n", name, details);
+            return true;
+        } catch (Exception | AssertionError ex) {
+            System.out.printf("FAIL %s: %s%n", name, ex);
+            return false;
+        }
+    }
+
+    private static String serverErrorsBackOff() throws Exception {
+        try (StubWebhook stub = new StubWebhook(); N8nClient client = client(stub, null)) {
+            stub.answer(503, 500, 502);
+            await(client.sendAsync(payload("a")));
+            List<Long> gaps = stub.gapsMillis();
+            expect(stub.requestCount() == 4, "expected 3 failures and a success, got " + stub.requestCount() + " requests");
+            expect(client.getOutbox().getFailedAttempts() == 3, "failed attempts " + client.getOutbox().getFailedAttempts());
+            // Each backoff is drawn from the upper half of 100, 200 and 400 ms.
+            expect(gaps.get(0) >= 50 && gaps.get(1) >= 100 && gaps.get(2) >= 200, "retries came too early: " + gaps + " ms");
+            return "retries after " + gaps + " ms";
+        }
+    }
+
+    private static String onlyContentErrorsDrop() throws Exception {
+        List<String> outcomes = new ArrayList<>();
+        for (int status : new int[]{400, 413, 415, 422}) {
+            try (StubWebhook stub = new StubWebhook(); N8nClient client = client(stub, null)) {
+                stub.answer(status);
+                CompletableFuture<Void> delivery = client.sendAsync(payload("refused-" + status));
+                try {
+                    await(delivery);
+                    throw new AssertionError(status + " was delivered");
+                } catch (ExecutionException expected) {
+                    // Dropped as it should be.
+                }
+                TimeUnit.MILLISECONDS.sleep(INITIAL_BACKOFF.toMillis() * 3);
+                expect(stub.requestCount() == 1, status + " was retried");
+                expect(client.getOutbox().getDropped() == 1, status + " was not counted as dropped");
+                outcomes.add(status + " dropped");
+            }
+        }
+        for (int status : new int[]{401, 403, 404, 429, 500}) {
+            try (StubWebhook stub = new StubWebhook(); N8nClient client = client(stub, null)) {
+                stub.answer(status);
+                await(client.sendAsync(payload("retried-" + status)));
+                expect(stub.requestCount() == 2, status + " took " + stub.requestCount() + " requests");
+                expect(client.getOutbox().getDropped() == 0, status + " was dropped");
+                outcomes.add(status + " retried");
+            }
+        }
+        return String.join(", ", outcomes);
+    }
+
+    private static String breakerOpensAndHalfOpens() throws Exception {
+        int threshold = WebhookOutbox.BREAKER_THRESHOLD;
+        try (StubWebhook stub = new StubWebhook(); N8nClient client = client(stub, null)) {
+            WebhookOutbox outbox = client.getOutbox();
+            for (int i = 0; i <= threshold; i++) {
+                stub.answer(500);
+            }
+            // Trials answer slowly, so the half-open state can be seen while they are in flight.
+            stub.delayAfter(threshold, 300);
+            CompletableFuture<Void> delivery = client.sendAsync(payload("breaker"));
+            waitFor(() -> outbox.getFailedAttempts() == threshold, "the first failures");
+            expect("OPEN".equals(outbox.getCircuitState()), "breaker " + outbox.getCircuitState() + " after " + threshold + " failures");
+            waitFor(() -> stub.requestCount() == threshold + 1, "the first trial");
+            expect("HALF_OPEN".equals(outbox.getCircuitState()), "breaker " + outbox.getCircuitState() + " during the first trial");
+            waitFor(() -> outbox.getFailedAttempts() == threshold + 1, "the first trial to fail");
+            expect("OPEN".equals(outbox.getCircuitState()), "breaker " + outbox.getCircuitState() + " after a failed trial");
+            await(delivery);
+            expect("CLOSED".equals(outbox.getCircuitState()), "breaker " + outbox.getCircuitState() + " after a successful trial");
+            List<Long> gaps = stub.gapsMillis();
+            long firstTrialWait = gaps.get(threshold - 1);
+            long secondTrialWait = gaps.get(threshold) - 300;
+            expect(firstTrialWait >= BREAKER_OPEN.toMillis() && secondTrialWait >= BREAKER_OPEN.toMillis(),
+                    "trials did not wait for the open breaker: " + gaps + " ms");
+            return "trials after " + firstTrialWait + " and " + secondTrialWait + " ms open";
+        }
+    }
+
+    private static String replaysAfterRestart() throws Exception {
+        Path directory = Files.createTempDirectory("outbox-check");
+        try (StubWebhook stub = new StubWebhook()) {
+            stub.failAll(true);
+            try (N8nClient client = client(stub, directory)) {
+                for (int i = 0; i < 3; i++) {
+                    client.sendAsync(payload("replayed-" + i));
+                }
+                waitFor(() -> stub.requestCount() >= 1, "the first attempt");
+            }
+            Files.writeString(directory.resolve("7.tmp"), "{\"half\":", StandardCharsets.UTF_8);
+            List<String> left = files(directory);
+            expect(left.containsAll(List.of("0.json", "1.json", "2.json")), "outbox directory holds " + left);
+
+            stub.failAll(false);
+            int before = stub.requestCount();
+            try (N8nClient client = client(stub, directory)) {
+                waitFor(() -> client.getOutbox().getDelivered() == 3, "the replayed events");
+                List<String> names = stub.fileNamesSince(before);
+                expect(names.equals(List.of("replayed-0", "replayed-1", "replayed-2")), "replayed " + names);
+                waitFor(() -> files(directory).isEmpty(), "the outbox directory to empty");
+                return "replayed " + names + " from " + left;
+            }
+        } finally {
+            for (String name : files(directory)) {
+                Files.deleteIfExists(directory.resolve(name));
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static N8nClient client(StubWebhook stub, Path directory) {
+        return N8nClient.builder()
+                .withWebhookUri(stub.uri())
+                .withOutboxDirectory(directory)
+                .withRetryTiming(INITIAL_BACKOFF, BREAKER_OPEN)
+                .build();
+    }
+
+    private static WebhookPayload payload(String fileName) {
+        return WebhookPayload.builder()
+                .withFileName(fileName)
+                .withFileSize(1)
+                .withTimestamp(System.currentTimeMillis())
+                .build();
+    }
+
+    private static void await(CompletableFuture<Void> delivery) throws ExecutionException, InterruptedException, TimeoutException {
+        delivery.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void waitFor(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new AssertionError("timed out waiting for " + what);
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    private static void expect(boolean condition, String failure) {
+        if (!condition) {
+            throw new AssertionError(failure);
+        }
+    }
+
+    private static List<String> files(Path directory) {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        } catch (IOException ex) {
+            return List.of();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Check {
+        String run() throws Exception;
+    }
+
+    /**
+     * Answers each POST with the next scripted status, then 200, recording when it arrived and its body.
+     */
+    private static final class StubWebhook implements Closeable {
+        private final HttpServer server;
+        private final ExecutorService handlers = Executors.newCachedThreadPool();
+        private final Deque<Integer> statuses = new ConcurrentLinkedDeque<>();
+        private final List<Long> arrivalNanos = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+        private volatile boolean failAll;
+        private volatile int slowAfter = Integer.MAX_VALUE;
+        private volatile long slowMillis;
+
+        private StubWebhook() throws IOException {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/webhook", this::handle);
+            server.setExecutor(handlers);
+            server.start();
+        }
+
+        private URI uri() {
+            return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/webhook");
+        }
+
+        private void answer(int... scripted) {
+            for (int status : scripted) {
+                statuses.addLast(status);
+            }
+        }
+
+        private void failAll(boolean failAll) {
+            this.failAll = failAll;
+        }
+
+        /**
+         * Delays the answers to every request after the first {@code requests}.
+         */
+        private void delayAfter(int requests, long millis) {
+            this.slowMillis = millis;
+            this.slowAfter = requests;
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            int index;
+            synchronized (arrivalNanos) {
+                index = arrivalNanos.size();
+                arrivalNanos.add(System.nanoTime());
+                bodies.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            }
+            if (index >= slowAfter) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(slowMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Integer scripted = statuses.pollFirst();
+            int status = failAll ? 503 : scripted != null ? scripted : 200;
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        }
+
+        private int requestCount() {
+            return arrivalNanos.size();
+        }
+
+        /**
+         * @return the time between each request and the next
+         */
+        private List<Long> gapsMillis() {
+            synchronized (arrivalNanos) {
+                List<Long> gaps = new ArrayList<>();
+                for (int i = 1; i < arrivalNanos.size(); i++) {
+                    gaps.add(TimeUnit.NANOSECONDS.toMillis(arrivalNanos.get(i) - arrivalNanos.get(i - 1)));
+                }
+                return gaps;
+            }
+        }
+
+        /**
+         * @return the file names of the events posted in requests from {@code first} on, in order
+         */
+        private List<String> fileNamesSince(int first) {
+            synchronized (arrivalNanos) {
+                List<String> names = new ArrayList<>();
+                for (String body : bodies.subList(first, bodies.size())) {
+                    for (JsonElement event : JsonParser.parseString(body).getAsJsonArray()) {
+                        names.add(event.getAsJsonObject().get("fileName").getAsString());
+                    }
+                }
+                return names;
+            }
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+            handlers.shutdownNow();
+        }
+    }
+}
@@ -5,7 +5,18 @@ public enum AckType {
     CHUNK((byte) 1),
     COMPLETE((byte) 2),
     RETRY((byte) 3),
-    REJECTED((byte) 4);
+    REJECTED((byte) 4),
+    SELECTIVE((byte) 5),
+    RESUME((byte) 6),
+    AVAILABLE((byte) 7),
+    ALREADY_PRESENT((byte) 8),
+    DELTA_BASIS((byte) 9),
+    SIGNATURES((byte) 10),
+    PROBE((byte) 11),
+    CHUNK_SIZE((byte) 12),
+    NODES((byte) 13),
+    CORRUPT((byte) 14),
+    FINALIZING((byte) 15);
 
     private final byte code;
 
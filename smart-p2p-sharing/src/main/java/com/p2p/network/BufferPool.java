@@ -0,0 +1,165 @@
+package com.p2p.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles buffers of one size, large enough for any datagram and so for any chunk. One pool is meant to
+ * be shared by the server, the sender and the receiver, so the buffers a burst needs on one side are the
+ * ones another side just gave back. Direct buffers are costly to allocate but let the kernel and file
+ * channels copy straight in and out of them; heap buffers suit code that needs a backing array.
+ * <p>
+ * Buffers are handed out as {@link PooledBuffer}s counting their references, and return to the pool when
+ * the last one is released. When the pool runs dry a new buffer is allocated, and buffers released beyond
+ * {@code maxPooled} are left to the garbage collector, so the pool never holds more than that while
+ * bursts still get their buffers.
+ * <p>
+ * With debug logging enabled for this class, every buffer remembers where it was acquired and a buffer
+ * that becomes unreachable without being released is logged as a leak.
+ */
+public final class BufferPool {
+
+    private static final Logger LOGGER = LogManager.getLogger(BufferPool.class);
+
+    public static final int DEFAULT_BUFFER_SIZE = 65535;
+    // About two send windows of full-size chunks plus a receive burst.
+    public static final int DEFAULT_MAX_POOLED = 256;
+
+    private static final Cleaner LEAK_DETECTOR = Cleaner.create();
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final BlockingQueue<ByteBuffer> pooled;
+    private final boolean detectLeaks = LOGGER.isDebugEnabled();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong leaked = new AtomicLong();
+
+    public BufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED, true);
+    }
+
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        if (bufferSize < 1 || maxPooled < 1) {
+            throw new IllegalArgumentException("Invalid buffer pool of " + maxPooled + " buffers of " + bufferSize + " bytes");
+        }
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.pooled = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * @return a cleared buffer of {@link #getBufferSize()} bytes holding one reference
+     */
+    public PooledBuffer acquire() {
+        ByteBuffer buffer = pooled.poll();
+        if (buffer != null) {
+            hits.incrementAndGet();
+            buffer.clear();
+        } else {
+            misses.incrementAndGet();
+            buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        outstanding.incrementAndGet();
+        PooledBuffer pooledBuffer = new PooledBuffer(this, buffer);
+        if (detectLeaks) {
+            LeakCheck check = new LeakCheck(this, new Throwable("Buffer acquired here"));
+            pooledBuffer.leakCheck = check;
+            LEAK_DETECTOR.register(pooledBuffer, check);
+        }
+        return pooledBuffer;
+    }
+
+    void recycle(PooledBuffer pooledBuffer) {
+        outstanding.decrementAndGet();
+        if (pooledBuffer.leakCheck != null) {
+            pooledBuffer.leakCheck.released.set(true);
+        }
+        if (!pooled.offer(pooledBuffer.buffer())) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return acquisitions served by a pooled buffer
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return acquisitions that had to allocate a buffer
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return released buffers the pool had no room for
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return buffers acquired and not yet released
+     */
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return buffers found unreachable without having been released; only counted with debug logging
+     */
+    public long getLeaked() {
+        return leaked.get();
+    }
+
+    @Override
+    public String toString() {
+        long acquired = hits.get() + misses.get();
+        return String.format("%d %s buffers of %d bytes pooled, %d acquired (%.1f%% hits), %d allocated, %d dropped, %d outstanding, %d leaked",
+                pooled.size(), direct ? "direct" : "heap", bufferSize, acquired, acquired == 0 ? 100.0 : 100.0 * hits.get() / acquired,
+                misses.get(), dropped.get(), outstanding.get(), leaked.get());
+    }
+
+    /**
+     * Runs once a {@link PooledBuffer} is unreachable; must not reference it, or it never would be.
+     */
+    static final class LeakCheck implements Runnable {
+        private final BufferPool pool;
+        private final Throwable acquiredAt;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private LeakCheck(BufferPool pool, Throwable acquiredAt) {
+            this.pool = pool;
+            this.acquiredAt = acquiredAt;
+        }
+
+        @Override
+        public void run() {
+            if (!released.get()) {
+                pool.leaked.incrementAndGet();
+                pool.outstanding.decrementAndGet();
+                LOGGER.warn("Pooled buffer was never released", acquiredAt);
+            }
+        }
+    }
+}
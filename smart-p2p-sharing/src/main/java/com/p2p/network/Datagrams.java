@@ -0,0 +1,100 @@
+package com.p2p.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves {@link Packet}s through datagram sockets. Outgoing packets are encoded into a per-thread buffer
+ * instead of a fresh array; an incoming datagram is copied once out of the receive buffer, and the packet
+ * decoded from that copy views it directly. Callers done with a packet before the next receive can skip
+ * that copy with {@link #receiveInPlace(DatagramSocket, DatagramPacket)}.
+ * <p>
+ * Sockets backed by a {@link DatagramChannel}, such as the one {@link UDPServer} hands its handlers, are
+ * sent through the channel from a direct buffer, which also works while the channel is non-blocking.
+ */
+public final class Datagrams {
+
+    private static final Logger LOGGER = LogManager.getLogger(Datagrams.class);
+
+    private static final ThreadLocal<ByteBuffer> SEND_BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(Packet.MAX_DATAGRAM_SIZE));
+    private static final ThreadLocal<ByteBuffer> DIRECT_SEND_BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Packet.MAX_DATAGRAM_SIZE));
+    // A non-blocking channel refuses datagrams while its send buffer is full; wait this long for room.
+    private static final long SEND_BACKOFF_NANOS = 50_000;
+    private static final long SEND_TIMEOUT_NANOS = 1_000_000_000L;
+
+    private Datagrams() {
+    }
+
+    public static void send(DatagramSocket socket, Packet packet, SocketAddress target) throws IOException {
+        if (packet.encodedLength() > Packet.MAX_DATAGRAM_SIZE) {
+            throw new IOException("Packet of " + packet.encodedLength() + " bytes does not fit a datagram");
+        }
+        DatagramChannel channel = socket.getChannel();
+        if (channel != null) {
+            send(channel, packet, target);
+            return;
+        }
+        ByteBuffer buffer = SEND_BUFFERS.get().clear();
+        packet.encode(buffer);
+        // The socket copies the bytes out before send returns, so the buffer is free again right away.
+        socket.send(new DatagramPacket(buffer.array(), buffer.position(), target));
+    }
+
+    private static void send(DatagramChannel channel, Packet packet, SocketAddress target) throws IOException {
+        ByteBuffer buffer = DIRECT_SEND_BUFFERS.get().clear();
+        packet.encode(buffer);
+        buffer.flip();
+        long deadline = System.nanoTime() + SEND_TIMEOUT_NANOS;
+        while (channel.send(buffer, target) == 0) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IOException("Timed out waiting for room to send " + packet.getPacketType() + " to " + target);
+            }
+            LockSupport.parkNanos(SEND_BACKOFF_NANOS);
+        }
+    }
+
+    /**
+     * Blocks until a valid datagram arrives in {@code datagram}, whose buffer may be reused as soon as this
+     * returns. Malformed or corrupted datagrams are dropped, as if they had been lost.
+     */
+    public static Packet receive(DatagramSocket socket, DatagramPacket datagram) throws IOException {
+        return receive(socket, datagram, false);
+    }
+
+    /**
+     * Like {@link #receive(DatagramSocket, DatagramPacket)}, but the packet views the datagram buffer
+     * instead of a copy, so it is only valid until that buffer receives again.
+     */
+    public static Packet receiveInPlace(DatagramSocket socket, DatagramPacket datagram) throws IOException {
+        return receive(socket, datagram, true);
+    }
+
+    private static Packet receive(DatagramSocket socket, DatagramPacket datagram, boolean inPlace) throws IOException {
+        while (true) {
+            datagram.setData(datagram.getData());
+            socket.receive(datagram);
+            try {
+                return inPlace ? Packet.decode(ByteBuffer.wrap(datagram.getData(), datagram.getOffset(), datagram.getLength()))
+                        : decode(datagram);
+            } catch (IllegalArgumentException ex) {
+                LOGGER.warn("Dropping malformed datagram from {}: {}", datagram.getSocketAddress(), ex.getMessage());
+            }
+        }
+    }
+
+    public static Packet decode(DatagramPacket datagram) {
+        int offset = datagram.getOffset();
+        return Packet.decode(ByteBuffer.wrap(Arrays.copyOfRange(datagram.getData(), offset, offset + datagram.getLength())));
+    }
+}
@@ -0,0 +1,108 @@
+package com.p2p.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The threads that packet handlers, transfers and asynchronous calls run on. {@link #PLATFORM} keeps
+ * bounded pools of platform threads; {@link #VIRTUAL} starts a virtual thread per task, so tasks blocked
+ * on disk, sockets or HTTP cost no platform thread each.
+ * <p>
+ * Virtual threads need Java 21 while the code is compiled for 17, so they are looked up reflectively;
+ * on an older runtime {@link #VIRTUAL} falls back to platform threads with a warning.
+ */
+public enum ExecutionModel {
+
+    PLATFORM,
+    VIRTUAL;
+
+    private static final Logger LOGGER = LogManager.getLogger(ExecutionModel.class);
+
+    public static ExecutionModel fromName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown execution model '" + name + "', expected platform or virtual", ex);
+        }
+    }
+
+    /**
+     * @return whether this model runs as configured on the current JVM
+     */
+    public boolean isAvailable() {
+        return this == PLATFORM || VirtualThreads.AVAILABLE;
+    }
+
+    /**
+     * Thread factory for executors that manage their own pool, e.g. to keep a queue and a concurrency limit
+     * or one ordered lane per thread.
+     */
+    public ThreadFactory threadFactory(String name) {
+        ThreadFactory virtual = virtualThreadFactory(name);
+        return virtual != null ? virtual : Executors.defaultThreadFactory();
+    }
+
+    /**
+     * Executor for fire-and-forget work such as webhook calls: the common fork-join pool, or a virtual
+     * thread per task.
+     */
+    public Executor asyncExecutor(String name) {
+        ThreadFactory virtual = virtualThreadFactory(name);
+        return virtual != null ? VirtualThreads.perTaskExecutor(virtual) : ForkJoinPool.commonPool();
+    }
+
+    private ThreadFactory virtualThreadFactory(String name) {
+        if (this == PLATFORM) {
+            return null;
+        }
+        if (!VirtualThreads.AVAILABLE) {
+            LOGGER.warn("Virtual threads need Java 21, running {} on platform threads", name);
+            return null;
+        }
+        return VirtualThreads.named(name);
+    }
+
+    /**
+     * Reflective access to {@code Thread.ofVirtual()} and {@code Executors.newThreadPerTaskExecutor}.
+     */
+    private static final class VirtualThreads {
+
+        private static final boolean AVAILABLE = ofVirtual() != null;
+
+        private static Object ofVirtual() {
+            try {
+                return Thread.class.getMethod("ofVirtual").invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                // Absent before Java 19 and a disabled preview on 19 and 20.
+                return null;
+            }
+        }
+
+        private static ThreadFactory named(String name) {
+            try {
+                // Builders are mutable, so every factory starts from a fresh one.
+                Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+                Object named = builderType.getMethod("name", String.class, long.class).invoke(ofVirtual(), name + "-", 0L);
+                return (ThreadFactory) builderType.getMethod("factory").invoke(named);
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException("Cannot create virtual thread factory", ex);
+            }
+        }
+
+        private static ExecutorService perTaskExecutor(ThreadFactory factory) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, factory);
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException("Cannot create virtual thread executor", ex);
+            }
+        }
+    }
+}
@@ -1,50 +1,101 @@
 package com.p2p.network;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.zip.CRC32C;
 
 /**
  * Serialises and deserialises UDP packets exchanged between peers.
  *
  * <pre>
- * Header layout (32 bytes):
+ * Header layout (36 bytes):
  * [0]        - packet type
  * [1..16]    - session UUID (MSB + LSB)
  * [17..20]   - chunk id (int)
  * [21..24]   - total chunks (int)
  * [25]       - acknowledgement type (if ACK)
- * [26..29]   - reserved / future use (currently payload length high bits)
- * [30..31]   - payload length low bits
+ * [26..29]   - payload length (int)
+ * [30]       - flags (see FLAG_* constants)
+ * [31]       - reserved / future use
+ * [32..35]   - CRC32C of bytes 0..31 and the payload
  * After header - payload bytes (metadata JSON, chunk data, or message).
  * </pre>
+ * A packet never copies its payload: the factories take ownership of the array they are given, and a
+ * decoded packet views the buffer it was decoded from. {@link #payload()} exposes it read-only.
+ * <p>
+ * UDP's own 16-bit checksum lets some corruption through, so every packet carries a CRC32C, which the
+ * JVM computes with the CPU's CRC instructions where available. Corrupted datagrams fail to decode and
+ * are dropped like lost ones, so selective ACKs get the chunk retransmitted instead of the transfer
+ * failing its final checksum.
  */
 public final class Packet {
 
-    private static final int HEADER_SIZE = 32;
+    public static final int HEADER_SIZE = 36;
+    private static final int CHECKSUM_OFFSET = 32;
+    // Largest UDP payload an IPv4 datagram can carry.
+    public static final int MAX_DATAGRAM_SIZE = 65_507;
+    public static final int MAX_PAYLOAD_SIZE = MAX_DATAGRAM_SIZE - HEADER_SIZE;
+
+    /**
+     * Set on a DATA packet when the sender cannot send more until it is acknowledged, asking the
+     * receiver to acknowledge it immediately instead of batching the ACK.
+     */
+    public static final byte FLAG_ACK_REQUESTED = 0x01;
+
+    /**
+     * Set on a DATA packet whose payload is the chunk compressed with Deflate.
+     */
+    public static final byte FLAG_COMPRESSED = 0x02;
+
+    private static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0).asReadOnlyBuffer();
 
     private final PacketType packetType;
     private final UUID sessionId;
     private final int chunkId;
     private final int totalChunks;
     private final AckType ackType;
-    private final byte[] payload;
+    private final byte flags;
+    // Read-only, spanning exactly the payload; always duplicated before its position is moved.
+    private final ByteBuffer payload;
+
+    private Packet(PacketType packetType,
+                   UUID sessionId,
+                   int chunkId,
+                   int totalChunks,
+                   AckType ackType,
+                   byte[] payload) {
+        this(packetType, sessionId, chunkId, totalChunks, ackType, (byte) 0, payload);
+    }
 
     private Packet(PacketType packetType,
                    UUID sessionId,
                    int chunkId,
                    int totalChunks,
                    AckType ackType,
+                   byte flags,
                    byte[] payload) {
+        this(packetType, sessionId, chunkId, totalChunks, ackType, flags,
+                payload == null ? EMPTY_PAYLOAD : ByteBuffer.wrap(payload).asReadOnlyBuffer());
+    }
+
+    private Packet(PacketType packetType,
+                   UUID sessionId,
+                   int chunkId,
+                   int totalChunks,
+                   AckType ackType,
+                   byte flags,
+                   ByteBuffer payload) {
         this.packetType = Objects.requireNonNull(packetType, "packetType");
         this.sessionId = Objects.requireNonNull(sessionId, "sessionId");
         this.chunkId = chunkId;
         this.totalChunks = totalChunks;
         this.ackType = ackType;
-        this.payload = payload == null ? new byte[0] : payload.clone();
+        this.flags = flags;
+        this.payload = payload;
     }
 
     public static Packet metadata(UUID sessionId, byte[] metadataBytes) {
@@ -55,11 +106,114 @@ public final class Packet {
         return new Packet(PacketType.DATA, sessionId, chunkId, totalChunks, null, chunkBytes);
     }
 
+    public static Packet data(UUID sessionId, int chunkId, int totalChunks, byte[] chunkBytes, byte flags) {
+        return new Packet(PacketType.DATA, sessionId, chunkId, totalChunks, null, flags, chunkBytes);
+    }
+
+    /**
+     * Builds a DATA packet viewing the remaining bytes of {@code chunk}, such as a {@link PooledBuffer},
+     * without copying them; the bytes must not change while the packet is in use.
+     */
+    public static Packet data(UUID sessionId, int chunkId, int totalChunks, ByteBuffer chunk, byte flags) {
+        return new Packet(PacketType.DATA, sessionId, chunkId, totalChunks, null, flags, chunk.slice().asReadOnlyBuffer());
+    }
+
+    /**
+     * Builds a forward error correction packet whose payload is the XOR of the chunks
+     * {@code firstChunkId .. firstChunkId + groupSize - 1}. The group size travels in the total chunks slot.
+     */
+    public static Packet parity(UUID sessionId, int firstChunkId, int groupSize, byte[] parityBytes) {
+        return new Packet(PacketType.PARITY, sessionId, firstChunkId, groupSize, null, parityBytes);
+    }
+
+    /**
+     * Asks a peer holding the content described by the payload for {@code chunkCount} chunks starting at
+     * {@code firstChunkId}; the count travels in the total chunks slot and a count of zero only asks
+     * whether the peer has the content.
+     */
+    public static Packet chunkRequest(UUID sessionId, int firstChunkId, int chunkCount, byte[] contentBytes) {
+        return new Packet(PacketType.CHUNK_REQUEST, sessionId, firstChunkId, chunkCount, null, contentBytes);
+    }
+
+    /**
+     * Asks the receiver of a delta transfer for page {@code page} of the block signatures of the old copy
+     * described by the payload.
+     */
+    public static Packet signatureRequest(UUID sessionId, int page, byte[] basisBytes) {
+        return new Packet(PacketType.SIGNATURE_REQUEST, sessionId, page, -1, null, basisBytes);
+    }
+
+    /**
+     * Answers a signature request with the signatures of page {@code page}; see {@code BlockSignatures}
+     * for the payload layout.
+     */
+    public static Packet signatures(UUID sessionId, int page, byte[] signatureBytes) {
+        return new Packet(PacketType.ACK, sessionId, page, -1, AckType.SIGNATURES, signatureBytes);
+    }
+
+    /**
+     * Builds a path MTU probe padded to exactly {@code datagramSize} bytes on the wire; the size also
+     * travels in the chunk id slot.
+     */
+    public static Packet probe(UUID probeId, int datagramSize) {
+        return new Packet(PacketType.MTU_PROBE, probeId, datagramSize, -1, null, new byte[datagramSize - HEADER_SIZE]);
+    }
+
+    /**
+     * Asks the receiver of a transfer that failed verification for page {@code page} of level
+     * {@code level} of its Merkle tree over the received chunks; the level travels in the total chunks slot.
+     */
+    public static Packet nodeRequest(UUID sessionId, int level, int page) {
+        return new Packet(PacketType.NODE_REQUEST, sessionId, page, level, null, null);
+    }
+
+    /**
+     * Answers a node request with the hashes of the requested page.
+     */
+    public static Packet nodes(UUID sessionId, int level, int page, byte[] hashes) {
+        return new Packet(PacketType.ACK, sessionId, page, level, AckType.NODES, hashes);
+    }
+
+    /**
+     * Sends the receiver page {@code page} of the hashes of the content blocks, which it checks every block
+     * against as soon as the block has arrived; see {@code MerkleTree} for the payload layout.
+     */
+    public static Packet blockHashes(UUID sessionId, int page, byte[] hashes) {
+        return new Packet(PacketType.BLOCK_HASHES, sessionId, page, -1, null, hashes);
+    }
+
+    /**
+     * Reports that the received content does not match its checksum; the payload lists the ids of the
+     * corrupted content blocks as ints, and is empty when the receiver cannot tell which they are.
+     */
+    public static Packet corrupt(UUID sessionId, byte[] blockIds) {
+        return new Packet(PacketType.ACK, sessionId, -1, -1, AckType.CORRUPT, blockIds);
+    }
+
+    /**
+     * Tells the receiver which of the chunks it holds are corrupted; the payload lists their ids as ints.
+     */
+    public static Packet repair(UUID sessionId, byte[] chunkIds) {
+        return new Packet(PacketType.REPAIR, sessionId, -1, -1, null, chunkIds);
+    }
+
     public static Packet ack(UUID sessionId, AckType ackType, int chunkId, String message) {
         byte[] messageBytes = message == null ? new byte[0] : message.getBytes(StandardCharsets.UTF_8);
         return new Packet(PacketType.ACK, sessionId, chunkId, -1, Objects.requireNonNull(ackType, "ackType"), messageBytes);
     }
 
+    public static Packet selectiveAck(UUID sessionId, int cumulativeAck, int sequence, byte[] ranges) {
+        return new Packet(PacketType.ACK, sessionId, cumulativeAck, sequence, AckType.SELECTIVE, ranges);
+    }
+
+    /**
+     * Accepts the metadata of a transfer the receiver already holds chunks of; the payload lists them
+     * in the {@link SelectiveAck} range encoding so the sender only sends what is missing.
+     */
+    public static Packet resume(UUID sessionId, int cumulativeAck, byte[] ranges) {
+        return new Packet(PacketType.ACK, sessionId, cumulativeAck, -1, AckType.RESUME, ranges);
+    }
+
     public static Packet discovery(UUID sessionId, byte[] payload) {
         return new Packet(PacketType.DISCOVERY, sessionId, -1, -1, null, payload);
     }
@@ -88,31 +242,103 @@ public final class Packet {
         return Optional.ofNullable(ackType);
     }
 
+    public byte getFlags() {
+        return flags;
+    }
+
+    public boolean hasFlag(byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * The same packet with other flags, sharing this packet's payload.
+     */
+    public Packet withFlags(byte flags) {
+        return new Packet(packetType, sessionId, chunkId, totalChunks, ackType, flags, payload);
+    }
+
+    /**
+     * @return a read-only view of the payload, positioned at its start
+     */
+    public ByteBuffer payload() {
+        return payload.duplicate();
+    }
+
+    public int getPayloadLength() {
+        return payload.remaining();
+    }
+
+    /**
+     * @return a copy of the payload; prefer {@link #payload()} on hot paths
+     */
     public byte[] getPayload() {
-        return payload.clone();
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return bytes;
     }
 
-    public byte[] toBytes() {
-        int payloadLength = payload.length;
-        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+    public int encodedLength() {
+        return HEADER_SIZE + payload.remaining();
+    }
+
+    /**
+     * Writes the packet at the position of {@code buffer}, advancing it by {@link #encodedLength()}.
+     *
+     * @throws java.nio.BufferOverflowException if the packet does not fit
+     */
+    public void encode(ByteBuffer buffer) {
+        if (buffer.remaining() < encodedLength()) {
+            throw new BufferOverflowException();
+        }
         buffer.put(packetType.getCode());
         buffer.putLong(sessionId.getMostSignificantBits());
         buffer.putLong(sessionId.getLeastSignificantBits());
         buffer.putInt(chunkId);
         buffer.putInt(totalChunks);
         buffer.put(ackType != null ? ackType.getCode() : (byte) -1);
-        buffer.putInt(payloadLength);
-        buffer.putShort((short) 0); // reserved for future use
-        buffer.put(payload);
+        buffer.putInt(payload.remaining());
+        buffer.put(flags);
+        buffer.put((byte) 0); // reserved for future use
+        int start = buffer.position() - CHECKSUM_OFFSET;
+        buffer.putInt(0);
+        buffer.put(payload.duplicate());
+        // Checksummed from the target rather than the payload, which is read-only and would be copied again.
+        buffer.putInt(start + CHECKSUM_OFFSET, crc32c(buffer, start, payload.remaining()));
+    }
+
+    private static int crc32c(ByteBuffer buffer, int start, int payloadLength) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(start, CHECKSUM_OFFSET));
+        crc.update(buffer.slice(start + HEADER_SIZE, payloadLength));
+        return (int) crc.getValue();
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedLength());
+        encode(buffer);
         return buffer.array();
     }
 
+    /**
+     * Decodes a packet that views {@code bytes} rather than copying them.
+     */
     public static Packet fromBytes(byte[] bytes) {
-        if (bytes.length < HEADER_SIZE) {
-            throw new IllegalArgumentException("Packet is too small: " + bytes.length);
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decodes the packet starting at the position of {@code buffer} and advances the position past it.
+     * The payload is a read-only slice of {@code buffer}, so the buffer must not be reused while the
+     * packet is in use.
+     *
+     * @throws IllegalArgumentException if the datagram is malformed or fails its CRC32C
+     */
+    public static Packet decode(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException("Packet is too small: " + buffer.remaining());
         }
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        PacketType packetType = PacketType.fromCode(buffer.get());
+        int start = buffer.position();
+        byte typeCode = buffer.get();
         long msb = buffer.getLong();
         long lsb = buffer.getLong();
         UUID sessionId = new UUID(msb, lsb);
@@ -120,14 +346,32 @@ public final class Packet {
         int totalChunks = buffer.getInt();
         byte ackCode = buffer.get();
         int payloadLength = buffer.getInt();
-        buffer.getShort(); // reserved
-        if (payloadLength < 0 || payloadLength > bytes.length - HEADER_SIZE) {
+        byte flags = buffer.get();
+        buffer.get(); // reserved
+        int checksum = buffer.getInt();
+        if (payloadLength < 0 || payloadLength > buffer.remaining()) {
             throw new IllegalArgumentException("Invalid payload length: " + payloadLength);
         }
-        byte[] payload = new byte[payloadLength];
-        buffer.get(payload);
+        if (checksum != crc32c(buffer, start, payloadLength)) {
+            throw new IllegalArgumentException("CRC32C mismatch in packet of session " + sessionId + ", chunk " + chunkId);
+        }
+        ByteBuffer payload = buffer.slice(buffer.position(), payloadLength).asReadOnlyBuffer();
+        buffer.position(buffer.position() + payloadLength);
+        PacketType packetType = PacketType.fromCode(typeCode);
         AckType ackType = ackCode >= 0 ? AckType.fromCode(ackCode) : null;
-        return new Packet(packetType, sessionId, chunkId, totalChunks, ackType, payload);
+        return new Packet(packetType, sessionId, chunkId, totalChunks, ackType, flags, payload);
+    }
+
+    /**
+     * Reads a key of the session the datagram at the position of {@code buffer} belongs to, without
+     * decoding it or moving the position; {@code 0} for datagrams too small to be a packet.
+     */
+    static long peekSessionKey(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return 0;
+        }
+        int position = buffer.position();
+        return buffer.getLong(position + 1) ^ buffer.getLong(position + 1 + Long.BYTES);
     }
 
     @Override
@@ -138,7 +382,8 @@ public final class Packet {
                 ", chunkId=" + chunkId +
                 ", totalChunks=" + totalChunks +
                 ", ackType=" + ackType +
-                ", payloadLength=" + payload.length +
+                ", flags=" + flags +
+                ", payloadLength=" + payload.remaining() +
                 '}';
     }
 
@@ -151,13 +396,14 @@ public final class Packet {
                 packetType == packet.packetType &&
                 Objects.equals(sessionId, packet.sessionId) &&
                 ackType == packet.ackType &&
-                Arrays.equals(payload, packet.payload);
+                flags == packet.flags &&
+                payload.equals(packet.payload);
     }
 
     @Override
     public int hashCode() {
-        int result = Objects.hash(packetType, sessionId, chunkId, totalChunks, ackType);
-        result = 31 * result + Arrays.hashCode(payload);
+        int result = Objects.hash(packetType, sessionId, chunkId, totalChunks, ackType, flags);
+        result = 31 * result + payload.hashCode();
         return result;
     }
 }
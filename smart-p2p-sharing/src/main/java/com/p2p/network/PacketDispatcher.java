@@ -0,0 +1,31 @@
+package com.p2p.network;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Routes packets arriving on one {@link UDPServer} to the handler registered for their type, falling
+ * back to a default handler for every other type.
+ */
+public class PacketDispatcher implements UDPServer.PacketHandler {
+
+    private final UDPServer.PacketHandler defaultHandler;
+    private final Map<PacketType, UDPServer.PacketHandler> handlers = new EnumMap<>(PacketType.class);
+
+    public PacketDispatcher(UDPServer.PacketHandler defaultHandler) {
+        this.defaultHandler = Objects.requireNonNull(defaultHandler, "defaultHandler");
+    }
+
+    public PacketDispatcher register(PacketType packetType, UDPServer.PacketHandler handler) {
+        handlers.put(Objects.requireNonNull(packetType, "packetType"), Objects.requireNonNull(handler, "handler"));
+        return this;
+    }
+
+    @Override
+    public void handle(Packet packet, InetAddress address, int port, DatagramSocket socket) {
+        handlers.getOrDefault(packet.getPacketType(), defaultHandler).handle(packet, address, port, socket);
+    }
+}
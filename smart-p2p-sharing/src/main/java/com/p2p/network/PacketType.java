@@ -5,7 +5,14 @@ public enum PacketType {
     DATA((byte) 1),
     ACK((byte) 2),
     DISCOVERY((byte) 3),
-    DISCOVERY_RESPONSE((byte) 4);
+    DISCOVERY_RESPONSE((byte) 4),
+    PARITY((byte) 5),
+    CHUNK_REQUEST((byte) 6),
+    SIGNATURE_REQUEST((byte) 7),
+    MTU_PROBE((byte) 8),
+    NODE_REQUEST((byte) 9),
+    REPAIR((byte) 10),
+    BLOCK_HASHES((byte) 11);
 
     private final byte code;
 
@@ -0,0 +1,120 @@
+package com.p2p.network;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.OptionalInt;
+import java.util.UUID;
+
+/**
+ * Finds the largest datagram that reaches a peer in one piece. Probes of the common MTU plateaus (capped
+ * by the MTU of the local interface towards the peer) are sent together, and the peer echoes the size of
+ * each probe that arrives with an {@link AckType#PROBE}; the largest echoed size wins. Probes go out with
+ * the don't-fragment bit where the JVM exposes it, so oversized probes are dropped instead of fragmented.
+ */
+public class PathMtuProber {
+
+    private static final Logger LOGGER = LogManager.getLogger(PathMtuProber.class);
+
+    // Link MTUs commonly found on a path: loopback, jumbo frames, RFC 1191 plateaus, Ethernet, PPPoE, IPv6 minimum.
+    private static final int[] MTU_PLATEAUS = {65536, 9000, 8166, 4352, 2002, 1500, 1492, 1280};
+    private static final int IPV4_UDP_OVERHEAD = 20 + 8;
+    private static final int IPV6_UDP_OVERHEAD = 40 + 8;
+    private static final int PROBE_ROUNDS = 2;
+
+    private final Duration timeout;
+
+    public PathMtuProber(Duration timeout) {
+        this.timeout = Objects.requireNonNull(timeout, "timeout");
+    }
+
+    /**
+     * @return the largest UDP payload, packet header included, that reached {@code target}; empty if no
+     * probe was answered, e.g. because the peer predates probing
+     */
+    public OptionalInt probe(InetSocketAddress target) throws IOException {
+        int overhead = target.getAddress() instanceof Inet6Address ? IPV6_UDP_OVERHEAD : IPV4_UDP_OVERHEAD;
+        int interfaceMtu = interfaceMtu(target);
+        int[] sizes = Arrays.stream(MTU_PLATEAUS)
+                .map(mtu -> Math.min(mtu, interfaceMtu))
+                .map(mtu -> Math.min(mtu - overhead, Packet.MAX_DATAGRAM_SIZE))
+                .filter(size -> size > Packet.HEADER_SIZE)
+                .distinct()
+                .toArray();
+        UUID probeId = UUID.randomUUID();
+        int largest = 0;
+        try (UDPClient client = new UDPClient()) {
+            boolean dontFragment = setDontFragment(client.getSocket());
+            for (int round = 0; round < PROBE_ROUNDS && largest == 0; round++) {
+                for (int size : sizes) {
+                    try {
+                        client.send(Packet.probe(probeId, size), target);
+                    } catch (IOException ex) {
+                        // With the don't-fragment bit set the local stack refuses datagrams above the interface MTU.
+                        LOGGER.debug("Cannot send {} byte probe to {}: {}", size, target, ex.getMessage());
+                    }
+                }
+                long deadline = System.nanoTime() + timeout.toNanos();
+                while (deadline - System.nanoTime() > 0 && largest < sizes[0]) {
+                    Packet echo;
+                    try {
+                        echo = client.receive(Duration.ofMillis(Math.max(1, Duration.ofNanos(deadline - System.nanoTime()).toMillis())));
+                    } catch (SocketTimeoutException ex) {
+                        break;
+                    }
+                    if (echo.getSessionId().equals(probeId) && echo.getAckType().orElse(null) == AckType.PROBE) {
+                        largest = Math.max(largest, echo.getChunkId());
+                    }
+                }
+            }
+            LOGGER.info("Path to {} carries {} byte datagrams (interface MTU {}, don't-fragment {})", target,
+                    largest == 0 ? "no probe" : largest, interfaceMtu, dontFragment ? "set" : "unavailable");
+        }
+        return largest == 0 ? OptionalInt.empty() : OptionalInt.of(largest);
+    }
+
+    /**
+     * MTU of the interface the route to {@code target} leaves through.
+     */
+    private static int interfaceMtu(InetSocketAddress target) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(target);
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(socket.getLocalAddress());
+            if (networkInterface != null && networkInterface.getMTU() > 0) {
+                return networkInterface.getMTU();
+            }
+        } catch (SocketException ex) {
+            LOGGER.debug("Cannot determine interface MTU towards {}", target, ex);
+        }
+        return MTU_PLATEAUS[0];
+    }
+
+    /**
+     * {@code IP_DONTFRAGMENT} only exists from JDK 19 on, so it is looked up by name.
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean setDontFragment(DatagramSocket socket) {
+        for (SocketOption<?> option : socket.supportedOptions()) {
+            if (option.name().equals("IP_DONTFRAGMENT") && option.type() == Boolean.class) {
+                try {
+                    socket.setOption((SocketOption<Boolean>) option, true);
+                    return true;
+                } catch (IOException | UnsupportedOperationException ex) {
+                    LOGGER.debug("Cannot set don't-fragment on probe socket", ex);
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -54,10 +54,8 @@ public class PeerDiscoveryService implements AutoCloseable {
             payload.addProperty("peerId", peerId);
             payload.addProperty("port", serverPort);
             Packet packet = Packet.discovery(UUID.randomUUID(), payload.toString().getBytes(StandardCharsets.UTF_8));
-            byte[] bytes = packet.toBytes();
-            DatagramPacket datagramPacket = new DatagramPacket(bytes, bytes.length, InetAddress.getByName("255.255.255.255"), discoveryPort);
             socket.setBroadcast(true);
-            socket.send(datagramPacket);
+            Datagrams.send(socket, packet, new InetSocketAddress(InetAddress.getByName("255.255.255.255"), discoveryPort));
             LOGGER.debug("Sent discovery heartbeat as {}", peerId);
         } catch (IOException ex) {
             LOGGER.error("Failed to broadcast heartbeat", ex);
@@ -76,9 +74,13 @@ public class PeerDiscoveryService implements AutoCloseable {
             } catch (SocketTimeoutException ex) {
                 return;
             }
-            byte[] data = new byte[packet.getLength()];
-            System.arraycopy(packet.getData(), packet.getOffset(), data, 0, packet.getLength());
-            Packet decoded = Packet.fromBytes(data);
+            Packet decoded;
+            try {
+                decoded = Datagrams.decode(packet);
+            } catch (IllegalArgumentException ex) {
+                LOGGER.warn("Dropping malformed discovery packet from {}: {}", packet.getSocketAddress(), ex.getMessage());
+                return;
+            }
             handleDiscoveryPacket(decoded, packet.getAddress());
         } catch (IOException ex) {
             LOGGER.error("Error while receiving discovery packet", ex);
@@ -126,9 +128,7 @@ public class PeerDiscoveryService implements AutoCloseable {
         payload.addProperty("peerId", peerId);
         payload.addProperty("port", serverPort);
         Packet response = Packet.discoveryResponse(UUID.randomUUID(), payload.toString().getBytes(StandardCharsets.UTF_8));
-        byte[] bytes = response.toBytes();
-        DatagramPacket packet = new DatagramPacket(bytes, bytes.length, address, discoveryPort);
-        socket.send(packet);
+        Datagrams.send(socket, response, new InetSocketAddress(address, discoveryPort));
     }
 
     public Collection<PeerInfo> getPeers() {
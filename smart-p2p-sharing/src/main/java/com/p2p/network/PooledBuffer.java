@@ -0,0 +1,47 @@
+package com.p2p.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A buffer lent by a {@link BufferPool}. It starts with one reference; every holder that keeps it beyond
+ * the current call takes another with {@link #retain()}, and each reference is given up with
+ * {@link #release()}. The buffer returns to the pool with the last one, after which neither it nor any
+ * view of it may be used.
+ */
+public final class PooledBuffer {
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger(1);
+    // Set by the pool while leak detection is on.
+    BufferPool.LeakCheck leakCheck;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    /**
+     * @return the buffer itself; its position and limit belong to whoever filled it
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public PooledBuffer retain() {
+        if (references.getAndUpdate(count -> count > 0 ? count + 1 : count) <= 0) {
+            throw new IllegalStateException("Pooled buffer already released");
+        }
+        return this;
+    }
+
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            pool.recycle(this);
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Pooled buffer released more often than retained");
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.p2p.network;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.UUID;
+
+/**
+ * Receiver state carried by an {@link AckType#SELECTIVE} packet: a cumulative ACK (every chunk
+ * below it has arrived) in the header chunk id, plus the ranges of chunks received above it.
+ * Chunks between the cumulative ACK and the highest acknowledged chunk that fall outside every
+ * range are the gaps the sender has to fill. The header total-chunks field carries a per-session
+ * sequence number so the sender can discard selective ACKs overtaken by newer ones. The same
+ * encoding answers the metadata of a resumed transfer ({@link AckType#RESUME}).
+ *
+ * <pre>
+ * Payload layout:
+ * [0..3]     - range count (int)
+ * then per range:
+ * [+0..3]    - first chunk id of the range (int)
+ * [+4..7]    - number of chunks in the range (int)
+ * </pre>
+ */
+public final class SelectiveAck {
+
+    public static final int MAX_RANGES = 1024;
+
+    private final int cumulativeAck;
+    private final int sequence;
+    private final int[] rangeStarts;
+    private final int[] rangeEnds;
+
+    private SelectiveAck(int cumulativeAck, int sequence, int[] rangeStarts, int[] rangeEnds) {
+        this.cumulativeAck = cumulativeAck;
+        this.sequence = sequence;
+        this.rangeStarts = rangeStarts;
+        this.rangeEnds = rangeEnds;
+    }
+
+    /**
+     * Summarises the received-chunk bitmap, keeping the {@code maxRanges} ranges closest to the
+     * cumulative ACK because those border the gaps the sender should repair first.
+     */
+    public static SelectiveAck of(BitSet received, int sequence, int maxRanges) {
+        int cumulativeAck = received.nextClearBit(0);
+        int[] starts = new int[Math.min(maxRanges, MAX_RANGES)];
+        int[] ends = new int[starts.length];
+        int count = 0;
+        int start = received.nextSetBit(cumulativeAck);
+        while (start >= 0 && count < starts.length) {
+            int end = received.nextClearBit(start);
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+            start = received.nextSetBit(end);
+        }
+        return new SelectiveAck(cumulativeAck, sequence, Arrays.copyOf(starts, count), Arrays.copyOf(ends, count));
+    }
+
+    public static SelectiveAck fromPacket(Packet packet) {
+        AckType ackType = packet.getAckType().orElse(null);
+        if (ackType != AckType.SELECTIVE && ackType != AckType.RESUME) {
+            throw new IllegalArgumentException("Not a selective ACK: " + packet);
+        }
+        ByteBuffer buffer = packet.payload();
+        int count = buffer.remaining() >= Integer.BYTES ? buffer.getInt() : 0;
+        if (count < 0 || count > MAX_RANGES || buffer.remaining() < count * 2 * Integer.BYTES) {
+            throw new IllegalArgumentException("Invalid selective ACK range count: " + count);
+        }
+        int[] starts = new int[count];
+        int[] ends = new int[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = buffer.getInt();
+            ends[i] = starts[i] + buffer.getInt();
+        }
+        return new SelectiveAck(packet.getChunkId(), packet.getTotalChunks(), starts, ends);
+    }
+
+    public Packet toPacket(UUID sessionId) {
+        return Packet.selectiveAck(sessionId, cumulativeAck, sequence, encodeRanges());
+    }
+
+    public Packet toResumePacket(UUID sessionId) {
+        return Packet.resume(sessionId, cumulativeAck, encodeRanges());
+    }
+
+    private byte[] encodeRanges() {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + rangeStarts.length * 2 * Integer.BYTES);
+        buffer.putInt(rangeStarts.length);
+        for (int i = 0; i < rangeStarts.length; i++) {
+            buffer.putInt(rangeStarts[i]);
+            buffer.putInt(rangeEnds[i] - rangeStarts[i]);
+        }
+        return buffer.array();
+    }
+
+    public int getCumulativeAck() {
+        return cumulativeAck;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public boolean isAcknowledged(int chunkId) {
+        if (chunkId < cumulativeAck) {
+            return true;
+        }
+        int index = Arrays.binarySearch(rangeStarts, chunkId);
+        if (index >= 0) {
+            return true;
+        }
+        int candidate = -index - 2;
+        return candidate >= 0 && chunkId < rangeEnds[candidate];
+    }
+
+    /**
+     * Highest chunk id this ACK covers, or {@code -1} if nothing has been received yet.
+     */
+    public int getHighestAcknowledged() {
+        return rangeEnds.length > 0 ? rangeEnds[rangeEnds.length - 1] - 1 : cumulativeAck - 1;
+    }
+
+    /**
+     * Expands the acknowledged chunks below {@code totalChunks} into a bitmap.
+     */
+    public BitSet toBitSet(int totalChunks) {
+        BitSet acknowledged = new BitSet(totalChunks);
+        acknowledged.set(0, Math.max(0, Math.min(cumulativeAck, totalChunks)));
+        for (int i = 0; i < rangeStarts.length; i++) {
+            int start = Math.max(0, Math.min(rangeStarts[i], totalChunks));
+            acknowledged.set(start, Math.max(start, Math.min(rangeEnds[i], totalChunks)));
+        }
+        return acknowledged;
+    }
+
+    public int getRangeCount() {
+        return rangeStarts.length;
+    }
+
+    @Override
+    public String toString() {
+        return "SelectiveAck{" +
+                "cumulativeAck=" + cumulativeAck +
+                ", sequence=" + sequence +
+                ", ranges=" + rangeStarts.length +
+                ", highest=" + getHighestAcknowledged() +
+                '}';
+    }
+}
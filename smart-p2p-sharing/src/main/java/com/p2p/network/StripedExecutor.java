@@ -0,0 +1,178 @@
+package com.p2p.network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks in order per key. Tasks submitted for the same key run in the order they were submitted and
+ * never concurrently, so state owned by a key needs no lock against other tasks of that key, while
+ * different keys still run in parallel.
+ * <p>
+ * On platform threads the keys are hashed onto a fixed number of lanes, each a single thread working
+ * through its own queue, so a task that blocks holds up every key sharing its lane. On virtual threads
+ * every key gets a queue of its own, drained by a virtual thread started when work arrives and ending once
+ * the queue is empty, so a blocked task holds up only its own key.
+ */
+final class StripedExecutor {
+
+    // Platform lanes, or null when every key has its own queue.
+    private final ExecutorService[] lanes;
+    // Starts a virtual thread per drain of a key queue, or null with lanes.
+    private final Executor perTask;
+    private final Map<Long, KeyQueue> queues = new ConcurrentHashMap<>();
+    private volatile boolean shutdown;
+
+    private StripedExecutor(ExecutorService[] lanes, Executor perTask) {
+        this.lanes = lanes;
+        this.perTask = perTask;
+    }
+
+    /**
+     * @param laneCount lanes to hash keys onto on platform threads; unused on virtual threads
+     */
+    static StripedExecutor create(int laneCount, ExecutionModel executionModel, String name) {
+        if (executionModel == ExecutionModel.VIRTUAL && executionModel.isAvailable()) {
+            return new StripedExecutor(null, executionModel.asyncExecutor(name));
+        }
+        ThreadFactory threadFactory = executionModel.threadFactory(name);
+        ExecutorService[] lanes = new ExecutorService[Math.max(1, laneCount)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        }
+        return new StripedExecutor(lanes, null);
+    }
+
+    /**
+     * @throws RejectedExecutionException once shut down
+     */
+    void execute(long key, Runnable task) {
+        if (lanes != null) {
+            lanes[laneOf(key)].execute(task);
+            return;
+        }
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor shut down");
+        }
+        // A queue that just drained has retired and left the map, so the retry finds a fresh one.
+        while (!queues.computeIfAbsent(key, KeyQueue::new).offer(task)) {
+            continue;
+        }
+    }
+
+    private int laneOf(long key) {
+        // Spread the high bits too, keys such as session IDs differ anywhere in their 64 bits.
+        int hash = Long.hashCode(key);
+        return Math.floorMod(hash ^ (hash >>> 16), lanes.length);
+    }
+
+    /**
+     * Stops taking tasks, interrupts those running on lanes and lets those running on virtual threads
+     * finish.
+     *
+     * @return the tasks that never ran, for the caller to release what they hold
+     */
+    List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> pending = new ArrayList<>();
+        if (lanes != null) {
+            for (ExecutorService lane : lanes) {
+                pending.addAll(lane.shutdownNow());
+            }
+            return pending;
+        }
+        queues.values().forEach(queue -> queue.drainTo(pending));
+        return pending;
+    }
+
+    /**
+     * The tasks of one key, drained by one virtual thread at a time.
+     */
+    private final class KeyQueue implements Runnable {
+        private final long key;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        // Both guarded by this queue.
+        private boolean draining;
+        private boolean retired;
+
+        private KeyQueue(long key) {
+            this.key = key;
+        }
+
+        /**
+         * @return {@code false} if the queue drained and retired, so the task must go to a fresh one
+         */
+        private boolean offer(Runnable task) {
+            synchronized (this) {
+                if (shutdown) {
+                    // Checked under the lock shutdownNow drains through, so no task slips in after it.
+                    throw new RejectedExecutionException("Executor shut down");
+                }
+                if (retired) {
+                    return false;
+                }
+                tasks.add(task);
+                if (draining) {
+                    return true;
+                }
+                draining = true;
+            }
+            try {
+                perTask.execute(this);
+            } catch (RejectedExecutionException ex) {
+                synchronized (this) {
+                    tasks.remove(task);
+                    draining = false;
+                }
+                throw ex;
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    if (shutdown) {
+                        // The queue stays in the map for shutdownNow to hand its tasks back.
+                        draining = false;
+                        return;
+                    }
+                    task = tasks.poll();
+                    if (task == null) {
+                        draining = false;
+                        retired = true;
+                        queues.remove(key, this);
+                        return;
+                    }
+                }
+                boolean completed = false;
+                try {
+                    task.run();
+                    completed = true;
+                } finally {
+                    if (!completed) {
+                        // Carry on with the rest of the queue on a new thread, as a lane replaces a worker that failed.
+                        perTask.execute(this);
+                    }
+                }
+            }
+        }
+
+        private synchronized void drainTo(List<Runnable> pending) {
+            pending.addAll(tasks);
+            tasks.clear();
+        }
+    }
+}
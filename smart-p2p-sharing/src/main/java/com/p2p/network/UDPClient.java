@@ -17,6 +17,8 @@ public class UDPClient implements Closeable {
     private static final Logger LOGGER = LogManager.getLogger(UDPClient.class);
 
     private final DatagramSocket socket;
+    // Only touched by receive, which is synchronised.
+    private final DatagramPacket datagramPacket = new DatagramPacket(new byte[65535], 65535);
 
     public UDPClient() throws SocketException {
         this.socket = new DatagramSocket();
@@ -26,24 +28,33 @@ public class UDPClient implements Closeable {
         this.socket = new DatagramSocket(localPort);
     }
 
-    public synchronized void send(Packet packet, InetSocketAddress target) throws IOException {
+    /**
+     * Not synchronised with {@link #receive(Duration)}: datagram sockets send and receive concurrently, so a
+     * thread blocked waiting for packets never holds up senders sharing the socket.
+     */
+    public void send(Packet packet, InetSocketAddress target) throws IOException {
         Objects.requireNonNull(packet, "packet");
         Objects.requireNonNull(target, "target");
-        byte[] payload = packet.toBytes();
-        DatagramPacket datagramPacket = new DatagramPacket(payload, payload.length, target);
-        socket.send(datagramPacket);
+        Datagrams.send(socket, packet, target);
         LOGGER.debug("Sent {} to {}", packet, target);
     }
 
     public synchronized Packet receive(Duration timeout) throws IOException {
         Objects.requireNonNull(timeout, "timeout");
         socket.setSoTimeout((int) timeout.toMillis());
-        byte[] buffer = new byte[65535];
-        DatagramPacket datagramPacket = new DatagramPacket(buffer, buffer.length);
-        socket.receive(datagramPacket);
-        byte[] data = new byte[datagramPacket.getLength()];
-        System.arraycopy(buffer, 0, data, 0, datagramPacket.getLength());
-        Packet packet = Packet.fromBytes(data);
+        Packet packet = Datagrams.receive(socket, datagramPacket);
+        LOGGER.debug("Received {} from {}:{}", packet, datagramPacket.getAddress(), datagramPacket.getPort());
+        return packet;
+    }
+
+    /**
+     * Receives without copying the datagram: the packet views this client's receive buffer and is only
+     * valid until the next receive, so it suits a single thread consuming each packet before the next.
+     */
+    public synchronized Packet receiveInPlace(Duration timeout) throws IOException {
+        Objects.requireNonNull(timeout, "timeout");
+        socket.setSoTimeout((int) timeout.toMillis());
+        Packet packet = Datagrams.receiveInPlace(socket, datagramPacket);
         LOGGER.debug("Received {} from {}:{}", packet, datagramPacket.getAddress(), datagramPacket.getPort());
         return packet;
     }
@@ -5,75 +5,470 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Receives datagrams on non-blocking {@link DatagramChannel}s. Whenever a channel becomes readable its
+ * listener drains it until empty into direct buffers from a {@link BufferPool} and hands the datagrams to
+ * workers in batches of up to {@code batchSize}; each buffer returns to the pool once its handler is done
+ * with it. At most {@code queueCapacity} datagrams per shard wait for their handler; while that many are
+ * waiting, the listener receives and drops further datagrams, as a full socket buffer would, so handlers
+ * falling behind cost retransmissions instead of direct memory.
+ * <p>
+ * The listener routes each datagram by the session ID in its header to a {@link StripedExecutor}, so all
+ * packets of a session are handled one after another, in the order they arrived, while different sessions
+ * run in parallel. On platform threads the sessions are hashed onto a fixed number of worker lanes; with
+ * {@link ExecutionModel#VIRTUAL} every session with packets waiting is drained by a virtual thread of its
+ * own, so a handler blocked on disk or on a lock holds up no other session. This only keeps handlers of
+ * different sessions out of each other's way: the receiver still guards a session's state with its lock,
+ * since its timers and hashing threads touch it too.
+ * <p>
+ * With more than one shard, every shard binds its own channel to the same port with {@code SO_REUSEPORT}
+ * and has its own listener and workers. Linux hashes each flow, i.e. source and destination address and
+ * port, to one of the channels, so all packets a sender sends from one socket, and with them the handlers
+ * of its sessions, stay on one shard while different senders spread across cores.
+ */
 public class UDPServer implements Closeable {
 
     private static final Logger LOGGER = LogManager.getLogger(UDPServer.class);
 
+    // Large enough to absorb a full send window of chunks while the listener catches up.
+    public static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_WORKERS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_BATCH_SIZE = 32;
+    // Each one holds a pooled buffer of 64 KiB, so this caps a shard at 64 MiB of queued datagrams.
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    // Sessions hashed onto a busy lane wait for it, so each shard keeps at least two.
+    private static final int MIN_WORKERS_PER_SHARD = 2;
+
+    /**
+     * Handles one decoded packet. The packet may view a pooled buffer, so it must not be used after the
+     * call returns; replies go through {@link Datagrams#send}, as {@code socket} belongs to a non-blocking
+     * channel and cannot send itself.
+     */
     public interface PacketHandler {
         void handle(Packet packet, InetAddress address, int port, DatagramSocket socket);
     }
 
-    private final DatagramSocket socket;
-    private final PacketHandler handler;
-    private final ExecutorService executor;
+    /**
+     * Handles one raw datagram, positioned at its first byte. The buffer goes back to the pool as soon as
+     * the call returns.
+     */
+    public interface DatagramHandler {
+        void handle(ByteBuffer datagram, InetSocketAddress source, DatagramChannel channel);
+    }
+
+    private final DatagramHandler handler;
+    private final int batchSize;
+    private final int queueCapacity;
+    private final BufferPool buffers;
+    private final List<Shard> shards = new ArrayList<>();
+    private final int port;
     private final AtomicBoolean running = new AtomicBoolean(false);
-    private Future<?> listenerTask;
 
-    public UDPServer(int port, PacketHandler handler) throws SocketException {
-        this.socket = new DatagramSocket(port);
-        this.handler = Objects.requireNonNull(handler, "handler");
-        this.executor = Executors.newCachedThreadPool();
+    public UDPServer(int port, PacketHandler handler) throws IOException {
+        this(builder().withPort(port).withPacketHandler(handler));
     }
 
-    public void start() {
-        if (running.compareAndSet(false, true)) {
-            listenerTask = executor.submit(this::listen);
-            LOGGER.info("UDP server started on port {}", socket.getLocalPort());
+    private UDPServer(Builder builder) throws IOException {
+        this.handler = Objects.requireNonNull(builder.handler, "handler");
+        this.batchSize = Math.max(1, builder.batchSize);
+        this.queueCapacity = Math.max(batchSize, builder.queueCapacity);
+        this.buffers = builder.buffers != null ? builder.buffers : new BufferPool();
+        if (!buffers.isDirect() || buffers.getBufferSize() < BufferPool.DEFAULT_BUFFER_SIZE) {
+            throw new IllegalArgumentException("UDP server needs direct buffers of at least " + BufferPool.DEFAULT_BUFFER_SIZE + " bytes");
+        }
+        int shardCount = Math.max(1, builder.shards);
+        if (shardCount > 1 && !reusePortSupported()) {
+            LOGGER.warn("SO_REUSEPORT does not balance datagrams on {}, receiving on a single shard", System.getProperty("os.name"));
+            shardCount = 1;
+        }
+        int workersPerShard = Math.max(MIN_WORKERS_PER_SHARD, (builder.workers + shardCount - 1) / shardCount);
+        int boundPort = builder.port;
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                // The first shard may bind an ephemeral port, which the others then share.
+                StripedExecutor workers = StripedExecutor.create(workersPerShard, builder.executionModel, "udp-worker-" + i);
+                Shard shard = new Shard(i, boundPort, shardCount > 1, workers);
+                shards.add(shard);
+                boundPort = shard.channel.socket().getLocalPort();
+            }
+        } catch (IOException ex) {
+            shards.forEach(Shard::close);
+            throw ex;
+        }
+        this.port = boundPort;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Only Linux spreads datagrams across sockets sharing a port; elsewhere one of them would get them all.
+     */
+    private static boolean reusePortSupported() {
+        if (!System.getProperty("os.name", "").toLowerCase(Locale.ROOT).contains("linux")) {
+            return false;
+        }
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException ex) {
+            return false;
         }
     }
 
-    private void listen() {
-        byte[] buffer = new byte[65535];
-        while (running.get()) {
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    private static DatagramHandler decoding(PacketHandler handler) {
+        return (datagram, source, channel) -> {
+            Packet packet;
             try {
-                socket.receive(packet);
-                byte[] data = new byte[packet.getLength()];
-                System.arraycopy(packet.getData(), packet.getOffset(), data, 0, packet.getLength());
-                Packet decoded = Packet.fromBytes(data);
-                executor.execute(() -> handler.handle(decoded, packet.getAddress(), packet.getPort(), socket));
-            } catch (IOException e) {
-                if (running.get()) {
-                    LOGGER.error("Error while receiving UDP packet", e);
-                } else {
-                    LOGGER.debug("UDP server socket closed");
-                }
+                packet = Packet.decode(datagram);
+            } catch (IllegalArgumentException ex) {
+                LOGGER.warn("Dropping malformed datagram from {}: {}", source, ex.getMessage());
+                return;
             }
+            handler.handle(packet, source.getAddress(), source.getPort(), channel.socket());
+        };
+    }
+
+    public void start() {
+        if (running.compareAndSet(false, true)) {
+            shards.forEach(Shard::start);
+            LOGGER.info("UDP server started on port {} with {} shard(s)", port, shards.size());
         }
     }
 
     @Override
     public void close() {
         running.set(false);
-        if (listenerTask != null) {
-            listenerTask.cancel(true);
-        }
-        socket.close();
-        executor.shutdownNow();
-        LOGGER.info("UDP server on port {} stopped", socket.getLocalPort());
+        shards.forEach(Shard::close);
+        long dropped = shards.stream().mapToLong(shard -> shard.dropped).sum();
+        LOGGER.info("UDP server on port {} stopped, {} datagrams dropped while handlers were behind, buffer pool: {}", port, dropped, buffers);
     }
 
     public int getPort() {
-        return socket.getLocalPort();
+        return port;
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * One channel bound to the server port with its own listener thread and worker lanes.
+     */
+    private final class Shard {
+        private final int index;
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final ExecutorService listener = Executors.newSingleThreadExecutor();
+        private final StripedExecutor workers;
+        // Datagrams received into a pooled buffer and not yet handled.
+        private final AtomicInteger queued = new AtomicInteger();
+        // Datagrams beyond the queue capacity are received into this and dropped.
+        private final ByteBuffer overflow = ByteBuffer.allocateDirect(Packet.HEADER_SIZE);
+        // Written by the listener only.
+        private volatile long dropped;
+        private boolean dropping;
+
+        private Shard(int index, int port, boolean reusePort, StripedExecutor workers) throws IOException {
+            this.index = index;
+            this.workers = workers;
+            this.channel = DatagramChannel.open();
+            try {
+                if (reusePort) {
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+                channel.bind(new InetSocketAddress(port));
+                channel.configureBlocking(false);
+                this.selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException ex) {
+                channel.close();
+                this.workers.shutdownNow();
+                this.listener.shutdownNow();
+                throw ex;
+            }
+        }
+
+        private void start() {
+            listener.execute(this::listen);
+        }
+
+        private void listen() {
+            while (running.get()) {
+                try {
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    drain();
+                } catch (IOException | ClosedSelectorException e) {
+                    if (running.get()) {
+                        LOGGER.error("Error while receiving UDP packet on shard {}", index, e);
+                    } else {
+                        LOGGER.debug("UDP server channel of shard {} closed", index);
+                    }
+                } catch (RuntimeException | Error e) {
+                    // Dying here would leave the port bound but deaf, so log and keep receiving.
+                    LOGGER.error("Listener of shard {} failed, dropping the datagrams it was receiving", index, e);
+                }
+            }
+        }
+
+        /**
+         * Receives until the channel has nothing left, dispatching every full batch on the way, and drops
+         * what arrives while the queue is full.
+         */
+        private void drain() throws IOException {
+            List<Received> batch = new ArrayList<>(batchSize);
+            try {
+                while (true) {
+                    if (queued.get() >= queueCapacity) {
+                        if (channel.receive(overflow.clear()) == null) {
+                            break;
+                        }
+                        dropOverflow();
+                        continue;
+                    }
+                    PooledBuffer pooled = buffers.acquire();
+                    ByteBuffer buffer = pooled.buffer();
+                    InetSocketAddress source;
+                    try {
+                        source = (InetSocketAddress) channel.receive(buffer);
+                    } catch (IOException | RuntimeException ex) {
+                        pooled.release();
+                        throw ex;
+                    }
+                    if (source == null) {
+                        pooled.release();
+                        break;
+                    }
+                    buffer.flip();
+                    if (queued.incrementAndGet() < queueCapacity / 2) {
+                        dropping = false;
+                    }
+                    batch.add(new Received(pooled, source, Packet.peekSessionKey(buffer)));
+                    if (batch.size() == batchSize) {
+                        List<Received> full = batch;
+                        batch = new ArrayList<>(batchSize);
+                        dispatch(full);
+                    }
+                }
+            } catch (IOException | RuntimeException | Error ex) {
+                batch.forEach(this::release);
+                throw ex;
+            }
+            if (!batch.isEmpty()) {
+                dispatch(batch);
+            }
+        }
+
+        private void dropOverflow() {
+            dropped++;
+            if (!dropping) {
+                dropping = true;
+                LOGGER.warn("Shard {} has {} datagrams waiting for their handlers, dropping new ones until they catch up", index, queueCapacity);
+            }
+        }
+
+        private void release(Received received) {
+            received.datagram.release();
+            queued.decrementAndGet();
+        }
+
+        /**
+         * Splits the batch by session, keeping the arrival order within each, and queues one task per session.
+         */
+        private void dispatch(List<Received> batch) {
+            Map<Long, List<Received>> bySession = new HashMap<>();
+            for (Received received : batch) {
+                bySession.computeIfAbsent(received.sessionKey, key -> new ArrayList<>()).add(received);
+            }
+            bySession.forEach(this::dispatch);
+        }
+
+        private void dispatch(long sessionKey, List<Received> datagrams) {
+            HandlerTask task = new HandlerTask(datagrams);
+            try {
+                workers.execute(sessionKey, task);
+            } catch (RejectedExecutionException ex) {
+                LOGGER.debug("Dropping {} datagrams received while stopping", datagrams.size());
+                task.discard();
+            }
+        }
+
+        private void close() {
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException ex) {
+                LOGGER.debug("Failed to close UDP server channel of shard {}", index, ex);
+            }
+            listener.shutdownNow();
+            // Tasks that never ran still hold their datagrams' buffers.
+            int discarded = 0;
+            for (Runnable pending : workers.shutdownNow()) {
+                discarded += ((HandlerTask) pending).discard();
+            }
+            if (discarded > 0) {
+                LOGGER.debug("Dropped {} datagrams of shard {} still waiting for their handlers", discarded, index);
+            }
+        }
+
+        /**
+         * Handles a session's datagrams of one batch in order, releasing each buffer once handled.
+         */
+        private final class HandlerTask implements Runnable {
+            private final List<Received> datagrams;
+
+            private HandlerTask(List<Received> datagrams) {
+                this.datagrams = datagrams;
+            }
+
+            @Override
+            public void run() {
+                for (Received received : datagrams) {
+                    try {
+                        handler.handle(received.datagram.buffer(), received.source, channel);
+                    } catch (RuntimeException ex) {
+                        LOGGER.error("Handler failed on datagram from {}", received.source, ex);
+                    } finally {
+                        release(received);
+                    }
+                }
+            }
+
+            /**
+             * Releases the datagrams of a task that will not run.
+             *
+             * @return how many there were
+             */
+            private int discard() {
+                datagrams.forEach(Shard.this::release);
+                return datagrams.size();
+            }
+        }
+    }
+
+    private static final class Received {
+        private final PooledBuffer datagram;
+        private final InetSocketAddress source;
+        private final long sessionKey;
+
+        private Received(PooledBuffer datagram, InetSocketAddress source, long sessionKey) {
+            this.datagram = datagram;
+            this.source = source;
+            this.sessionKey = sessionKey;
+        }
+    }
+
+    public static final class Builder {
+        private int port;
+        private DatagramHandler handler;
+        private int workers = DEFAULT_WORKERS;
+        private int batchSize = DEFAULT_BATCH_SIZE;
+        private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        private int shards = 1;
+        private ExecutionModel executionModel = ExecutionModel.PLATFORM;
+        private BufferPool buffers;
+
+        private Builder() {}
+
+        /**
+         * {@code 0} binds an ephemeral port, see {@link UDPServer#getPort()}.
+         */
+        public Builder withPort(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder withPacketHandler(PacketHandler handler) {
+            this.handler = decoding(Objects.requireNonNull(handler, "handler"));
+            return this;
+        }
+
+        public Builder withDatagramHandler(DatagramHandler handler) {
+            this.handler = handler;
+            return this;
+        }
+
+        /**
+         * Worker lanes running handlers on platform threads, split evenly across the shards; sessions are
+         * hashed onto them. Unused with {@link ExecutionModel#VIRTUAL}, where each session gets its own.
+         */
+        public Builder withWorkers(int workers) {
+            this.workers = workers;
+            return this;
+        }
+
+        /**
+         * Most datagrams handed to a worker as one task.
+         */
+        public Builder withBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Most datagrams of a shard waiting for their handlers, each in a pooled buffer; further datagrams
+         * are dropped until the handlers catch up. At least the batch size.
+         */
+        public Builder withQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Channels sharing the port through {@code SO_REUSEPORT}, each with its own listener thread; only
+         * honoured on Linux.
+         */
+        public Builder withShards(int shards) {
+            this.shards = shards;
+            return this;
+        }
+
+        /**
+         * With {@link ExecutionModel#VIRTUAL} the packets of each session are handled on a virtual thread
+         * started when they arrive and ending once they are handled, instead of on a fixed lane, so a
+         * handler blocked on disk holds neither a platform thread nor other sessions.
+         */
+        public Builder withExecutionModel(ExecutionModel executionModel) {
+            this.executionModel = Objects.requireNonNull(executionModel, "executionModel");
+            return this;
+        }
+
+        /**
+         * Pool the datagrams are received into, typically shared with the sender and receiver; it must hold
+         * direct buffers of at least {@link BufferPool#DEFAULT_BUFFER_SIZE} bytes. Defaults to a pool of
+         * its own.
+         */
+        public Builder withBufferPool(BufferPool buffers) {
+            this.buffers = Objects.requireNonNull(buffers, "buffers");
+            return this;
+        }
+
+        public UDPServer build() throws IOException {
+            return new UDPServer(this);
+        }
     }
 }
@@ -1,8 +1,11 @@
 package com.p2p.security;
 
 import org.apache.tika.Tika;
+import org.apache.tika.mime.MimeTypes;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Objects;
 
@@ -14,4 +17,30 @@ public class MimeDetector {
         Objects.requireNonNull(file, "file");
         return tika.detect(file);
     }
+
+    /**
+     * Detects the type of {@code file} from its content and {@code fileName} rather than its own name.
+     */
+    public String detect(Path file, String fileName) throws IOException {
+        Objects.requireNonNull(file, "file");
+        try (InputStream input = Files.newInputStream(file)) {
+            return tika.detect(input, fileName);
+        }
+    }
+
+    /**
+     * Detects the type from the leading bytes of a file and its name, as {@link #detect(Path, String)} would for
+     * the whole file when {@code prefix} holds at least {@link #getPrefixLength()} bytes or all of it.
+     */
+    public String detect(byte[] prefix, String fileName) {
+        Objects.requireNonNull(prefix, "prefix");
+        return tika.detect(prefix, fileName);
+    }
+
+    /**
+     * @return how many leading bytes of a file detection looks at
+     */
+    public int getPrefixLength() {
+        return MimeTypes.getDefaultMimeTypes().getMinLength();
+    }
 }
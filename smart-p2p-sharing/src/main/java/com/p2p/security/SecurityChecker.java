@@ -50,8 +50,33 @@ public class SecurityChecker {
 
     public SecurityResult evaluate(Path file) throws IOException {
         Objects.requireNonNull(file, "file");
-        String actualMime = mimeDetector.detect(file);
-        String extension = extractExtension(file.getFileName().toString());
+        return evaluate(file, file.getFileName().toString());
+    }
+
+    /**
+     * Evaluates {@code file} as if it were named {@code fileName}, e.g. a download staged under a temporary name.
+     */
+    public SecurityResult evaluate(Path file, String fileName) throws IOException {
+        Objects.requireNonNull(file, "file");
+        Objects.requireNonNull(fileName, "fileName");
+        return evaluate(mimeDetector.detect(file, fileName), fileName);
+    }
+
+    /**
+     * Evaluates a file from its leading bytes alone, e.g. while it is still being received. With at least
+     * {@link #getPrefixLength()} bytes, or the whole file, the verdict is the one the complete file gets.
+     */
+    public SecurityResult evaluate(byte[] prefix, String fileName) {
+        Objects.requireNonNull(fileName, "fileName");
+        return evaluate(mimeDetector.detect(prefix, fileName), fileName);
+    }
+
+    public int getPrefixLength() {
+        return mimeDetector.getPrefixLength();
+    }
+
+    private SecurityResult evaluate(String actualMime, String fileName) {
+        String extension = extractExtension(fileName);
         String expectedMime = extension != null ? allowedMimeMappings.get(extension) : null;
         if (expectedMime == null) {
             return new SecurityResult(true, null, actualMime, "No MIME mapping configured for extension " + extension);
@@ -0,0 +1,205 @@
+package com.p2p.storage;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.p2p.transfer.ChecksumUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Maps the content hash ({@link ChecksumUtil#contentHash}) of every stored file to where it lives, so peers
+ * can serve content they hold by checksum. Entries whose file has been moved, deleted or rewritten since it
+ * was hashed are dropped on lookup.
+ * <p>
+ * With an index file every hashed file is saved there by path, with the size and modification time it was
+ * hashed at, and loaded again on start, so a scan only hashes the files that are new or changed since.
+ * Entries saved with another content block size or content hash version hash differently and are hashed
+ * again.
+ */
+public class ContentIndex {
+
+    private static final Logger LOGGER = LogManager.getLogger(ContentIndex.class);
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Every file hashed, including copies of content another entry already serves.
+    private final Map<Path, Entry> hashedFiles = new ConcurrentHashMap<>();
+    private final Path indexFile;
+    private volatile boolean dirty;
+
+    public ContentIndex() {
+        this(null);
+    }
+
+    /**
+     * @param indexFile where the entries are saved between runs, or {@code null} to keep them in memory only
+     */
+    public ContentIndex(Path indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Registers {@code file}, which must currently hash to {@code checksum}.
+     */
+    public void register(String checksum, Path file) throws IOException {
+        Path absolute = Objects.requireNonNull(file, "file").toAbsolutePath();
+        Entry entry = new Entry(normalize(checksum), absolute, Files.size(absolute), Files.getLastModifiedTime(absolute));
+        entries.put(entry.checksum, entry);
+        hashedFiles.put(absolute, entry);
+        dirty = true;
+    }
+
+    public Optional<Path> lookup(String checksum) {
+        String key = normalize(checksum);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        if (!entry.isCurrent()) {
+            entries.remove(key, entry);
+            hashedFiles.remove(entry.file, entry);
+            dirty = true;
+            return Optional.empty();
+        }
+        return Optional.of(entry.file);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Loads the entries saved by a previous run. They are checked against their file on lookup like any
+     * other, so they can be served before the next {@link #scan(Path)} has confirmed them.
+     */
+    public void load() {
+        if (indexFile == null || !Files.isRegularFile(indexFile)) {
+            return;
+        }
+        try {
+            JsonArray saved = JsonParser.parseString(Files.readString(indexFile, StandardCharsets.UTF_8)).getAsJsonArray();
+            for (JsonElement element : saved) {
+                JsonObject object = element.getAsJsonObject();
+                if (!object.has("blockSize") || object.get("blockSize").getAsInt() != ChecksumUtil.CONTENT_BLOCK_SIZE
+                        || !object.has("hashVersion") || object.get("hashVersion").getAsInt() != ChecksumUtil.CONTENT_HASH_VERSION) {
+                    continue;
+                }
+                Entry entry = new Entry(normalize(object.get("checksum").getAsString()), Path.of(object.get("path").getAsString()),
+                        object.get("size").getAsLong(), FileTime.from(object.get("lastModifiedNanos").getAsLong(), TimeUnit.NANOSECONDS));
+                hashedFiles.putIfAbsent(entry.file, entry);
+                entries.putIfAbsent(entry.checksum, entry);
+            }
+            LOGGER.info("Loaded {} indexed files from {}", hashedFiles.size(), indexFile);
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.warn("Failed to load the content index from {}, rebuilding it", indexFile, ex);
+        }
+    }
+
+    /**
+     * Registers every regular file below {@code directory}, hashing only those without an entry that still
+     * matches their size and modification time, and forgets entries whose file is gone or changed.
+     */
+    public void scan(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            files = walk.filter(Files::isRegularFile).map(Path::toAbsolutePath).collect(Collectors.toList());
+        }
+        hashedFiles.values().removeIf(entry -> !entry.isCurrent());
+        entries.values().removeIf(entry -> !hashedFiles.containsKey(entry.file));
+        int hashed = 0;
+        for (Path file : files) {
+            Entry known = hashedFiles.get(file);
+            if (known != null) {
+                entries.putIfAbsent(known.checksum, known);
+                continue;
+            }
+            try {
+                register(ChecksumUtil.contentHash(file), file);
+                hashed++;
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to index {}", file, ex);
+            }
+        }
+        dirty = true;
+        LOGGER.info("Indexed {} files under {}, {} of them hashed", files.size(), directory, hashed);
+        save();
+    }
+
+    /**
+     * Writes the entries to the index file if they changed since the last save.
+     */
+    public synchronized void save() {
+        if (indexFile == null || !dirty) {
+            return;
+        }
+        dirty = false;
+        JsonArray saved = new JsonArray();
+        hashedFiles.values().forEach(entry -> {
+            JsonObject object = new JsonObject();
+            object.addProperty("checksum", entry.checksum);
+            object.addProperty("blockSize", ChecksumUtil.CONTENT_BLOCK_SIZE);
+            object.addProperty("hashVersion", ChecksumUtil.CONTENT_HASH_VERSION);
+            object.addProperty("path", entry.file.toString());
+            object.addProperty("size", entry.size);
+            object.addProperty("lastModifiedNanos", entry.lastModified.to(TimeUnit.NANOSECONDS));
+            saved.add(object);
+        });
+        try {
+            Path temporary = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            Files.writeString(temporary, saved.toString(), StandardCharsets.UTF_8);
+            Files.move(temporary, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            dirty = true;
+            LOGGER.warn("Failed to save the content index to {}", indexFile, ex);
+        }
+    }
+
+    private static String normalize(String checksum) {
+        return Objects.requireNonNull(checksum, "checksum").toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Entry {
+        private final String checksum;
+        private final Path file;
+        private final long size;
+        private final FileTime lastModified;
+
+        private Entry(String checksum, Path file, long size, FileTime lastModified) {
+            this.checksum = checksum;
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Size and modification time stand in for re-hashing: a file that kept both still holds the content.
+         */
+        private boolean isCurrent() {
+            try {
+                return Files.isRegularFile(file) && Files.size(file) == size && Files.getLastModifiedTime(file).equals(lastModified);
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+    }
+}
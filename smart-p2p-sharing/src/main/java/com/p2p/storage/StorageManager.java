@@ -8,17 +8,22 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.UUID;
 
 public class StorageManager {
 
     private static final Logger LOGGER = LogManager.getLogger(StorageManager.class);
 
+    // Lives outside the incoming directory so that scanning it does not index the index.
+    private static final String CONTENT_INDEX_FILE = "content-index.json";
+
     private final Path baseDir;
     private final Path incomingDir;
     private final Path organizedDir;
     private final Path quarantineDir;
     private final Path tempDir;
+    private final ContentIndex contentIndex;
 
     public StorageManager(Path baseDir, Path incomingDir, Path organizedDir, Path quarantineDir, Path tempDir) {
         this.baseDir = Objects.requireNonNull(baseDir, "baseDir");
@@ -26,6 +31,7 @@ public class StorageManager {
         this.organizedDir = Objects.requireNonNull(organizedDir, "organizedDir");
         this.quarantineDir = Objects.requireNonNull(quarantineDir, "quarantineDir");
         this.tempDir = Objects.requireNonNull(tempDir, "tempDir");
+        this.contentIndex = new ContentIndex(baseDir.resolve(CONTENT_INDEX_FILE));
     }
 
     public void initialize() throws IOException {
@@ -53,16 +59,42 @@ public class StorageManager {
         return tempDir;
     }
 
+    public ContentIndex getContentIndex() {
+        return contentIndex;
+    }
+
     public Path createSessionTempDirectory(UUID sessionId) throws IOException {
         Path sessionDir = tempDir.resolve(sessionId.toString());
         Files.createDirectories(sessionDir);
         return sessionDir;
     }
 
+    /**
+     * Replaces {@code target} with {@code content} so that readers, including this process after a crash,
+     * see either the old or the new file and never a partial write.
+     */
+    public void writeAtomically(Path target, byte[] content) throws IOException {
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temporary, content);
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
     public Path resolveIncomingPath(String fileName) throws IOException {
         return resolveUniquePath(incomingDir, fileName);
     }
 
+    /**
+     * Looks up a previously received file by name, ignoring any directory part a peer put in the name.
+     */
+    public Optional<Path> findIncoming(String fileName) {
+        Path name = Path.of(fileName).getFileName();
+        if (name == null) {
+            return Optional.empty();
+        }
+        Path candidate = incomingDir.resolve(name);
+        return Files.isRegularFile(candidate) ? Optional.of(candidate) : Optional.empty();
+    }
+
     public Path resolveQuarantinePath(String fileName) throws IOException {
         return resolveUniquePath(quarantineDir, fileName);
     }
@@ -73,6 +105,22 @@ public class StorageManager {
         LOGGER.info("Moved {} to {}", source, target);
     }
 
+    /**
+     * Makes {@code target} a hard link to {@code source}, or a copy where the file system cannot link them
+     * (e.g. different volumes). Stored files are never rewritten in place, so sharing the inode is safe.
+     */
+    public void linkOrCopy(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+            LOGGER.debug("Linked {} to {}", target, source);
+        } catch (IOException | UnsupportedOperationException ex) {
+            LOGGER.debug("Cannot link {} to {} ({}), copying instead", target, source, ex.toString());
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     public void cleanupSession(UUID sessionId) {
         Path sessionDir = tempDir.resolve(sessionId.toString());
         try {
@@ -0,0 +1,51 @@
+package com.p2p.transfer;
+
+/**
+ * Classic additive-increase / multiplicative-decrease control: slow start doubles the window every
+ * RTT until the first loss, congestion avoidance then adds one chunk per RTT and every loss event
+ * halves the window.
+ */
+public class AimdCongestionController implements CongestionController {
+
+    private static final int INITIAL_WINDOW = 4;
+    private static final int MIN_WINDOW = 2;
+
+    private final int maxWindow;
+    private double window;
+    private double slowStartThreshold;
+    private long lastReductionNanos;
+
+    public AimdCongestionController(int maxWindow) {
+        if (maxWindow < MIN_WINDOW) {
+            throw new IllegalArgumentException("Maximum window must be at least " + MIN_WINDOW + ": " + maxWindow);
+        }
+        this.maxWindow = maxWindow;
+        this.slowStartThreshold = maxWindow;
+        this.window = Math.min(INITIAL_WINDOW, maxWindow);
+    }
+
+    @Override
+    public void onAck(int ackedChunks, RttEstimator rtt) {
+        for (int i = 0; i < ackedChunks; i++) {
+            window += window < slowStartThreshold ? 1 : 1 / window;
+        }
+        window = Math.min(window, maxWindow);
+    }
+
+    @Override
+    public void onLoss(RttEstimator rtt) {
+        long now = System.nanoTime();
+        // Losses detected within one RTT of the last reduction belong to the same congestion event.
+        if (lastReductionNanos != 0 && now - lastReductionNanos < rtt.getSmoothedRttNanos()) {
+            return;
+        }
+        lastReductionNanos = now;
+        slowStartThreshold = Math.max(MIN_WINDOW, window / 2);
+        window = slowStartThreshold;
+    }
+
+    @Override
+    public int getCongestionWindow() {
+        return (int) window;
+    }
+}
@@ -0,0 +1,182 @@
+package com.p2p.transfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Block signatures of a file the receiver already holds, from which a sender computes a delta. Every
+ * block of {@code blockSize} bytes (the last one may be shorter) gets an rsync-style rolling weak
+ * checksum and a truncated SHA-256 strong hash. Signatures travel in pages of {@link #PAGE_BLOCKS}
+ * blocks so each page fits one datagram.
+ *
+ * <pre>
+ * Page layout:
+ * per block:
+ * [+0..3]    - weak rolling checksum (int)
+ * [+4..19]   - first 16 bytes of the block's SHA-256
+ * </pre>
+ */
+final class BlockSignatures {
+
+    static final int STRONG_HASH_LENGTH = 16;
+    static final int SIGNATURE_LENGTH = Integer.BYTES + STRONG_HASH_LENGTH;
+    static final int PAGE_BLOCKS = 2048;
+    static final int MIN_BLOCK_SIZE = 2048;
+    static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    private final long fileSize;
+    private final int blockSize;
+    private final int[] weak;
+    private final byte[][] strong;
+
+    BlockSignatures(long fileSize, int blockSize) {
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        int blockCount = blockCount(fileSize, blockSize);
+        this.weak = new int[blockCount];
+        this.strong = new byte[blockCount][];
+    }
+
+    /**
+     * Roughly the square root of the file size, like rsync, which balances signature volume against how
+     * much unchanged data surrounding an edit is resent.
+     */
+    static int blockSizeFor(long fileSize) {
+        long root = (long) Math.ceil(Math.sqrt((double) fileSize));
+        long rounded = (root + 1023) / 1024 * 1024;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, rounded));
+    }
+
+    static int blockCount(long fileSize, int blockSize) {
+        return (int) ((fileSize + blockSize - 1) / blockSize);
+    }
+
+    static int pageCount(int blockCount) {
+        return (blockCount + PAGE_BLOCKS - 1) / PAGE_BLOCKS;
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getBlockCount() {
+        return weak.length;
+    }
+
+    int getPageCount() {
+        return pageCount(weak.length);
+    }
+
+    int blockLength(int block) {
+        return (int) Math.min(blockSize, fileSize - (long) block * blockSize);
+    }
+
+    int weak(int block) {
+        return weak[block];
+    }
+
+    boolean strongMatches(int block, byte[] data, int offset, int length) {
+        return Arrays.equals(strong[block], strongHash(data, offset, length));
+    }
+
+    /**
+     * Reads and signs the blocks of {@code page} straight from {@code file}.
+     */
+    static byte[] encodePage(Path file, long fileSize, int blockSize, int page) throws IOException {
+        int blockCount = blockCount(fileSize, blockSize);
+        int first = page * PAGE_BLOCKS;
+        if (page < 0 || first >= blockCount) {
+            throw new IllegalArgumentException("No signature page " + page + " in " + blockCount + " blocks");
+        }
+        int end = Math.min(blockCount, first + PAGE_BLOCKS);
+        ByteBuffer output = ByteBuffer.allocate((end - first) * SIGNATURE_LENGTH);
+        byte[] block = new byte[blockSize];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int index = first; index < end; index++) {
+                long offset = (long) index * blockSize;
+                int length = (int) Math.min(blockSize, fileSize - offset);
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new EOFException("Unexpected end of " + file + " at block " + index);
+                    }
+                }
+                output.putInt(weakChecksum(block, 0, length));
+                output.put(strongHash(block, 0, length));
+            }
+        }
+        return output.array();
+    }
+
+    void decodePage(int page, byte[] payload) {
+        int first = page * PAGE_BLOCKS;
+        int count = Math.min(PAGE_BLOCKS, weak.length - first);
+        if (page < 0 || count <= 0 || payload.length != count * SIGNATURE_LENGTH) {
+            throw new IllegalArgumentException("Invalid signature page " + page + " of " + payload.length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        for (int index = first; index < first + count; index++) {
+            weak[index] = buffer.getInt();
+            strong[index] = new byte[STRONG_HASH_LENGTH];
+            buffer.get(strong[index]);
+        }
+    }
+
+    /**
+     * rsync's weak checksum: {@code a} is the byte sum and {@code b} the sum of {@code a} over every
+     * prefix, both modulo 2^16, packed as {@code b << 16 | a}. {@link #roll} slides it by one byte.
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += a;
+        }
+        return (b & 0xffff) << 16 | (a & 0xffff);
+    }
+
+    /**
+     * Slides the checksum of a {@code length}-byte window one byte forward, dropping {@code out} and
+     * appending {@code in}.
+     */
+    static int roll(int checksum, int length, byte out, byte in) {
+        int a = checksum & 0xffff;
+        int b = checksum >>> 16;
+        a = a - (out & 0xff) + (in & 0xff);
+        b = b - length * (out & 0xff) + a;
+        return (b & 0xffff) << 16 | (a & 0xffff);
+    }
+
+    /**
+     * Shrinks the checksum of a {@code length}-byte window by dropping its first byte {@code out}.
+     */
+    static int drop(int checksum, int length, byte out) {
+        int a = checksum & 0xffff;
+        int b = checksum >>> 16;
+        a = a - (out & 0xff);
+        b = b - length * (out & 0xff);
+        return (b & 0xffff) << 16 | (a & 0xffff);
+    }
+
+    static byte[] strongHash(byte[] data, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, offset, length);
+            return Arrays.copyOf(digest.digest(), STRONG_HASH_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 algorithm not available", e);
+        }
+    }
+}
@@ -11,9 +11,30 @@ import java.util.HexFormat;
 
 public final class ChecksumUtil {
 
+    /**
+     * Size of the blocks the content hash is built over, and in which a receiver checks what arrives.
+     */
+    public static final int CONTENT_BLOCK_SIZE = 1 << 20;
+
+    /**
+     * Version of the content hash, raised whenever the same content starts hashing differently so hashes
+     * persisted by an older version are computed again.
+     */
+    public static final int CONTENT_HASH_VERSION = 2;
+
     private ChecksumUtil() {
     }
 
+    /**
+     * Identifies the content of {@code file}: the root of the {@link MerkleTree} over its blocks of
+     * {@link #CONTENT_BLOCK_SIZE}, whose blocks are hashed in parallel. Leaves and nodes are hashed with
+     * distinct prefixes, so this is not the plain SHA-256 that {@link #sha256(Path)} or {@code sha256sum}
+     * give, even for content of a single block.
+     */
+    public static String contentHash(Path file) throws IOException {
+        return MerkleTree.build(file, CONTENT_BLOCK_SIZE).getRootHex();
+    }
+
     public static String sha256(Path file) throws IOException {
         MessageDigest digest = createDigest("SHA-256");
         try (InputStream inputStream = Files.newInputStream(file); DigestInputStream dis = new DigestInputStream(inputStream, digest)) {
@@ -22,6 +43,17 @@ public final class ChecksumUtil {
                 // reading stream updates digest automatically
             }
         }
+        return toHex(digest);
+    }
+
+    /**
+     * A digest for data hashed piecewise as it arrives, finished with {@link #toHex(MessageDigest)}.
+     */
+    public static MessageDigest newSha256() {
+        return createDigest("SHA-256");
+    }
+
+    public static String toHex(MessageDigest digest) {
         return HexFormat.of().formatHex(digest.digest());
     }
 
@@ -0,0 +1,168 @@
+package com.p2p.transfer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-chunk Deflate compression of one outgoing transfer. A chunk is sent compressed only when that saves
+ * at least {@code 1/MIN_SAVING_FRACTION} of its size; after {@link #INCOMPRESSIBLE_STREAK} chunks in a
+ * row that did not, only every {@link #PROBE_INTERVAL}th chunk is tried until one shrinks again. Content
+ * whose MIME type is already compressed is never tried at all, see {@link #isCompressible(String)}.
+ * <p>
+ * Also accumulates the ratio and the CPU time spent, for the transfer summary; the CPU time is left out
+ * where the JVM cannot measure it for the sending thread.
+ */
+final class ChunkCompressor {
+
+    private static final int MIN_SAVING_FRACTION = 16;
+    private static final int INCOMPRESSIBLE_STREAK = 16;
+    private static final int PROBE_INTERVAL = 64;
+
+    // Formats that carry their own compression; deflating them again only burns CPU.
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed",
+            "application/vnd.rar", "application/x-rar-compressed", "application/x-bzip2", "application/x-xz",
+            "application/zstd", "application/java-archive", "application/pdf",
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+            "application/vnd.openxmlformats-officedocument.presentationml.presentation",
+            "image/jpeg", "image/png", "image/gif", "image/webp", "image/heic",
+            "audio/mpeg", "audio/flac", "audio/ogg", "audio/aac", "audio/mp4");
+    private static final Set<String> COMPRESSED_TYPE_PREFIXES = Set.of("video/");
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private int incompressibleStreak;
+    private int skipped;
+    private long rawBytes;
+    private long sentBytes;
+    private int compressedChunks;
+    // -1 once some compression ran where CPU time could not be measured.
+    private long cpuNanos;
+
+    static boolean isCompressible(String mimeType) {
+        if (mimeType == null) {
+            return true;
+        }
+        String type = mimeType.toLowerCase(Locale.ROOT);
+        int parameters = type.indexOf(';');
+        if (parameters >= 0) {
+            type = type.substring(0, parameters).trim();
+        }
+        if (COMPRESSED_TYPES.contains(type)) {
+            return false;
+        }
+        for (String prefix : COMPRESSED_TYPE_PREFIXES) {
+            if (type.startsWith(prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deflates the remaining bytes of {@code chunk} into {@code target} from its position on.
+     *
+     * @return whether the chunk is worth sending compressed, in which case {@code target} is flipped to the
+     * deflated bytes
+     */
+    boolean compress(ByteBuffer chunk, ByteBuffer target) {
+        int chunkLength = chunk.remaining();
+        rawBytes += chunkLength;
+        if (incompressibleStreak >= INCOMPRESSIBLE_STREAK && ++skipped % PROBE_INTERVAL != 0) {
+            sentBytes += chunkLength;
+            return false;
+        }
+        long started = cpuTimeNanos();
+        deflater.reset();
+        deflater.setInput(chunk.duplicate());
+        deflater.finish();
+        int start = target.position();
+        target.limit(start + Math.min(target.remaining(), chunkLength - chunkLength / MIN_SAVING_FRACTION));
+        while (!deflater.finished() && target.hasRemaining()) {
+            deflater.deflate(target);
+        }
+        cpuNanos = addCpuTime(cpuNanos, started);
+        if (!deflater.finished()) {
+            incompressibleStreak++;
+            sentBytes += chunkLength;
+            return false;
+        }
+        incompressibleStreak = 0;
+        skipped = 0;
+        compressedChunks++;
+        sentBytes += target.position() - start;
+        target.flip().position(start);
+        return true;
+    }
+
+    String describe() {
+        return String.format("compression %d of %d bytes (ratio %.2f, %d chunks compressed%s)",
+                sentBytes, rawBytes, ratio(rawBytes, sentBytes), compressedChunks, describeCpuTime(cpuNanos));
+    }
+
+    void close() {
+        deflater.end();
+    }
+
+    /**
+     * Inflates a chunk sent with {@code FLAG_COMPRESSED} into {@code output} from its position on, refusing
+     * anything that does not fit its remaining bytes, and flips {@code output} to the inflated chunk.
+     * {@code inflater} is reset first, so one can serve every chunk of a transfer.
+     */
+    static void decompress(Inflater inflater, ByteBuffer payload, ByteBuffer output) throws IOException {
+        inflater.reset();
+        try {
+            inflater.setInput(payload);
+            int start = output.position();
+            while (!inflater.finished() && output.hasRemaining()) {
+                int inflated = inflater.inflate(output);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed chunk");
+                }
+            }
+            if (!inflater.finished()) {
+                throw new IOException("Compressed chunk inflates beyond " + (output.limit() - start) + " bytes");
+            }
+            output.flip().position(start);
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt compressed chunk", ex);
+        }
+    }
+
+    static double ratio(long rawBytes, long sentBytes) {
+        return sentBytes == 0 ? 1 : (double) rawBytes / sentBytes;
+    }
+
+    /**
+     * CPU time of the calling thread, or -1 where the JVM cannot measure it, e.g. with thread CPU time
+     * disabled or on a virtual thread.
+     */
+    static long cpuTimeNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * Adds the CPU time the calling thread spent since {@code started}, a reading of {@link #cpuTimeNanos()},
+     * to {@code total}; a total that could not be measured stays -1.
+     */
+    static long addCpuTime(long total, long started) {
+        long now = started < 0 ? -1 : cpuTimeNanos();
+        return total < 0 || now < 0 ? -1 : total + now - started;
+    }
+
+    /**
+     * @return the CPU time for a summary, or nothing where it could not be measured
+     */
+    static String describeCpuTime(long cpuNanos) {
+        return cpuNanos < 0 ? "" : ", " + cpuNanos / 1_000_000 + " ms CPU";
+    }
+}
@@ -0,0 +1,162 @@
+package com.p2p.transfer;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.p2p.network.AckType;
+import com.p2p.network.BufferPool;
+import com.p2p.network.Datagrams;
+import com.p2p.network.ExecutionModel;
+import com.p2p.network.Packet;
+import com.p2p.network.PacketType;
+import com.p2p.network.UDPServer;
+import com.p2p.storage.ContentIndex;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves chunk ranges of locally stored content to peers running a {@link SwarmDownloader}. Requests are
+ * stateless: each names the content by checksum together with the chunk size the requester splits it
+ * into, and is answered with the DATA packets of the range straight from the stored file. The requester
+ * paces the transfer by asking for no more chunks than its congestion window allows.
+ * <p>
+ * Ranges are sent by a few threads of the seeder's own, so a large range does not hold up the other
+ * sessions on the server lane that received the request. Requests beyond what those threads have queued
+ * are dropped; the requester asks again once its retransmission timeout expires.
+ */
+public class ChunkSeeder implements UDPServer.PacketHandler, AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger(ChunkSeeder.class);
+
+    // Bounds the burst a single request can trigger.
+    public static final int MAX_REQUEST_CHUNKS = 256;
+    // Chunks of a range read while the ones before them are being sent.
+    private static final int READ_AHEAD_CHUNKS = 16;
+    private static final int SEND_THREADS = 2;
+    private static final int MAX_QUEUED_REQUESTS = 256;
+
+    private final ContentIndex contentIndex;
+    private final BufferPool buffers;
+    private final ThreadPoolExecutor senders;
+
+    public ChunkSeeder(ContentIndex contentIndex) {
+        this(contentIndex, new BufferPool());
+    }
+
+    /**
+     * @param buffers pool the served chunks are read into, typically shared with the server
+     */
+    public ChunkSeeder(ContentIndex contentIndex, BufferPool buffers) {
+        this(contentIndex, buffers, ExecutionModel.PLATFORM);
+    }
+
+    /**
+     * @param executionModel threads sending the requested ranges
+     */
+    public ChunkSeeder(ContentIndex contentIndex, BufferPool buffers, ExecutionModel executionModel) {
+        this.contentIndex = Objects.requireNonNull(contentIndex, "contentIndex");
+        this.buffers = Objects.requireNonNull(buffers, "buffers");
+        this.senders = new ThreadPoolExecutor(SEND_THREADS, SEND_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_REQUESTS), executionModel.threadFactory("chunk-seeder"));
+    }
+
+    @Override
+    public void handle(Packet packet, InetAddress address, int port, DatagramSocket socket) {
+        if (packet.getPacketType() != PacketType.CHUNK_REQUEST) {
+            return;
+        }
+        try {
+            JsonObject content = JsonParser.parseString(new String(packet.getPayload(), StandardCharsets.UTF_8)).getAsJsonObject();
+            String checksum = content.get("checksum").getAsString();
+            int chunkSize = content.get("chunkSize").getAsInt();
+            Optional<Path> file = contentIndex.lookup(checksum);
+            if (file.isEmpty()) {
+                LOGGER.debug("Peer {}:{} asked for unknown content {}", address.getHostAddress(), port, checksum);
+                send(socket, Packet.ack(packet.getSessionId(), AckType.REJECTED, packet.getChunkId(), "Content not available"), address, port);
+                return;
+            }
+            long fileSize = Files.size(file.get());
+            if (packet.getTotalChunks() == 0) {
+                JsonObject available = new JsonObject();
+                available.addProperty("fileName", file.get().getFileName().toString());
+                available.addProperty("fileSize", fileSize);
+                send(socket, Packet.ack(packet.getSessionId(), AckType.AVAILABLE, packet.getChunkId(), available.toString()), address, port);
+                return;
+            }
+            if (chunkSize < 1 || chunkSize > Math.min(Packet.MAX_PAYLOAD_SIZE, buffers.getBufferSize()) || packet.getChunkId() < 0
+                    || packet.getTotalChunks() < 0 || packet.getTotalChunks() > MAX_REQUEST_CHUNKS) {
+                throw new IllegalArgumentException("Invalid chunk request " + packet);
+            }
+            // The packet views a server buffer that is recycled once this call returns.
+            Path source = file.get();
+            UUID sessionId = packet.getSessionId();
+            int first = packet.getChunkId();
+            int count = packet.getTotalChunks();
+            try {
+                senders.execute(() -> {
+                    try {
+                        sendRange(socket, sessionId, first, count, source, chunkSize, address, port);
+                    } catch (IOException | RuntimeException ex) {
+                        LOGGER.warn("Failed to serve chunks {}+{} of {} to {}:{}", first, count, source.getFileName(),
+                                address.getHostAddress(), port, ex);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                LOGGER.debug("Dropping chunk request {} from {}:{}, {} requests already queued", packet, address.getHostAddress(), port,
+                        MAX_QUEUED_REQUESTS);
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.warn("Failed to serve chunk request {} from {}:{}", packet, address.getHostAddress(), port, ex);
+            send(socket, Packet.ack(packet.getSessionId(), AckType.REJECTED, packet.getChunkId(), String.valueOf(ex.getMessage())), address, port);
+        }
+    }
+
+    private void sendRange(DatagramSocket socket, UUID sessionId, int first, int count, Path file, int chunkSize, InetAddress address,
+                           int port) throws IOException {
+        try (FileChunker chunker = new FileChunker(file, chunkSize, Math.min(count, READ_AHEAD_CHUNKS), buffers)) {
+            int end = (int) Math.min(chunker.getTotalChunks(), (long) first + count);
+            BitSet outside = new BitSet(chunker.getTotalChunks());
+            outside.set(0, Math.min(first, chunker.getTotalChunks()));
+            outside.set(end, chunker.getTotalChunks());
+            for (Iterator<FileChunker.Chunk> chunks = chunker.iterator(outside); chunks.hasNext(); ) {
+                FileChunker.Chunk chunk = chunks.next();
+                try {
+                    send(socket, Packet.data(sessionId, chunk.getIndex(), chunk.getTotalChunks(), chunk.getData(), (byte) 0),
+                            address, port);
+                } finally {
+                    chunk.release();
+                }
+            }
+            LOGGER.debug("Served chunks {}..{} of {} to {}:{}", first, end - 1, file.getFileName(), address.getHostAddress(), port);
+        }
+    }
+
+    @Override
+    public void close() {
+        senders.shutdownNow();
+    }
+
+    private void send(DatagramSocket socket, Packet packet, InetAddress address, int port) {
+        try {
+            Datagrams.send(socket, packet, new InetSocketAddress(address, port));
+        } catch (IOException e) {
+            LOGGER.error("Failed to send {} to {}:{}", packet.getPacketType(), address.getHostAddress(), port, e);
+        }
+    }
+}
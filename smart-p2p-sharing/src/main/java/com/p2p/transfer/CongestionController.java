@@ -0,0 +1,71 @@
+package com.p2p.transfer;
+
+import java.util.Locale;
+
+/**
+ * Decides how many chunks a sender may keep in flight and how fast it may put them on the wire,
+ * based on the RTT and loss signals observed on the ACK stream of a single transfer.
+ */
+public interface CongestionController {
+
+    void onAck(int ackedChunks, RttEstimator rtt);
+
+    void onLoss(RttEstimator rtt);
+
+    int getCongestionWindow();
+
+    /**
+     * Spreads one congestion window evenly over one smoothed RTT; zero until the first RTT sample.
+     */
+    default long getPacingIntervalNanos(RttEstimator rtt) {
+        if (!rtt.hasSample()) {
+            return 0;
+        }
+        return rtt.getSmoothedRttNanos() / Math.max(1, getCongestionWindow());
+    }
+
+    /**
+     * Current sending rate in chunks per second, or zero until the first RTT sample.
+     */
+    default double getChunkRate(RttEstimator rtt) {
+        if (!rtt.hasSample()) {
+            return 0;
+        }
+        return getCongestionWindow() * 1_000_000_000d / rtt.getSmoothedRttNanos();
+    }
+
+    static CongestionController create(String algorithm, int maxWindow) {
+        return switch (algorithm.trim().toLowerCase(Locale.ROOT)) {
+            case "aimd" -> new AimdCongestionController(maxWindow);
+            case "delay" -> new DelayBasedCongestionController(maxWindow);
+            case "none" -> new FixedWindowController(maxWindow);
+            default -> throw new IllegalArgumentException("Unknown congestion control algorithm: " + algorithm);
+        };
+    }
+
+    final class FixedWindowController implements CongestionController {
+        private final int window;
+
+        FixedWindowController(int window) {
+            this.window = window;
+        }
+
+        @Override
+        public void onAck(int ackedChunks, RttEstimator rtt) {
+        }
+
+        @Override
+        public void onLoss(RttEstimator rtt) {
+        }
+
+        @Override
+        public int getCongestionWindow() {
+            return window;
+        }
+
+        @Override
+        public long getPacingIntervalNanos(RttEstimator rtt) {
+            return 0;
+        }
+    }
+}
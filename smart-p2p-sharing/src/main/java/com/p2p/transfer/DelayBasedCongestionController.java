@@ -0,0 +1,79 @@
+package com.p2p.transfer;
+
+/**
+ * Vegas-style control that reacts to queueing delay before packets are lost. Once per RTT the
+ * number of chunks queued in the network is estimated from the gap between the smoothed and the
+ * minimum RTT; the window grows while fewer than {@code ALPHA} chunks are queued and shrinks when
+ * more than {@code BETA} are. Queueing delay below {@code DELAY_TOLERANCE_NANOS} is ignored so that
+ * receiver scheduling jitter on sub-millisecond LAN paths is not mistaken for a standing queue.
+ * Losses still cut the window, but less aggressively than AIMD.
+ */
+public class DelayBasedCongestionController implements CongestionController {
+
+    private static final int INITIAL_WINDOW = 4;
+    private static final int MIN_WINDOW = 2;
+    private static final double ALPHA = 2;
+    private static final double BETA = 4;
+    private static final double SLOW_START_LIMIT = 1;
+    private static final long DELAY_TOLERANCE_NANOS = 500_000;
+
+    private final int maxWindow;
+    private int window;
+    private boolean slowStart = true;
+    private long roundStartNanos;
+    private long lastReductionNanos;
+
+    public DelayBasedCongestionController(int maxWindow) {
+        if (maxWindow < MIN_WINDOW) {
+            throw new IllegalArgumentException("Maximum window must be at least " + MIN_WINDOW + ": " + maxWindow);
+        }
+        this.maxWindow = maxWindow;
+        this.window = Math.min(INITIAL_WINDOW, maxWindow);
+    }
+
+    @Override
+    public void onAck(int ackedChunks, RttEstimator rtt) {
+        if (!rtt.hasSample()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (roundStartNanos == 0) {
+            roundStartNanos = now;
+        }
+        if (now - roundStartNanos < rtt.getSmoothedRttNanos()) {
+            return;
+        }
+        roundStartNanos = now;
+        long queueingDelay = Math.max(0, rtt.getSmoothedRttNanos() - rtt.getMinRttNanos() - DELAY_TOLERANCE_NANOS);
+        double queued = window * (double) queueingDelay / rtt.getSmoothedRttNanos();
+        if (slowStart) {
+            if (queued > SLOW_START_LIMIT) {
+                slowStart = false;
+            } else {
+                window = Math.min(maxWindow, window * 2);
+                return;
+            }
+        }
+        if (queued < ALPHA) {
+            window = Math.min(maxWindow, window + 1);
+        } else if (queued > BETA) {
+            window = Math.max(MIN_WINDOW, window - 1);
+        }
+    }
+
+    @Override
+    public void onLoss(RttEstimator rtt) {
+        long now = System.nanoTime();
+        if (lastReductionNanos != 0 && now - lastReductionNanos < rtt.getSmoothedRttNanos()) {
+            return;
+        }
+        lastReductionNanos = now;
+        slowStart = false;
+        window = Math.max(MIN_WINDOW, window * 3 / 4);
+    }
+
+    @Override
+    public int getCongestionWindow() {
+        return window;
+    }
+}
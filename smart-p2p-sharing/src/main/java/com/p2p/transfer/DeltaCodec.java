@@ -0,0 +1,260 @@
+package com.p2p.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * rsync-style delta between a new file and the {@link BlockSignatures} of an older copy. The sender
+ * slides a window over the new file; wherever the window matches a block of the old copy it emits a
+ * block reference, everything else goes out as literal bytes. The receiver replays the delta against
+ * its old copy to rebuild the new file.
+ *
+ * <pre>
+ * Delta layout, a sequence of:
+ * [0]        - 0 = COPY: [1..4] first block (int), [5..8] block count (int)
+ *              1 = LITERAL: [1..4] length (int), then the literal bytes
+ * </pre>
+ */
+final class DeltaCodec {
+
+    private static final int COPY = 0;
+    private static final int LITERAL = 1;
+    private static final int IO_BUFFER_SIZE = 256 * 1024;
+
+    private DeltaCodec() {
+    }
+
+    /**
+     * Writes the delta turning the signed old copy into {@code file} to {@code delta}.
+     *
+     * @return the size of the delta in bytes
+     */
+    static long encode(Path file, BlockSignatures signatures, Path delta) throws IOException {
+        int blockSize = signatures.getBlockSize();
+        Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+        for (int block = 0; block < signatures.getBlockCount(); block++) {
+            if (signatures.blockLength(block) == blockSize) {
+                blocksByWeak.computeIfAbsent(signatures.weak(block), key -> new ArrayList<>(1)).add(block);
+            }
+        }
+        int lastBlock = signatures.getBlockCount() - 1;
+        int lastBlockLength = lastBlock < 0 ? 0 : signatures.blockLength(lastBlock);
+
+        byte[] buffer = new byte[Math.max(4 * blockSize, IO_BUFFER_SIZE)];
+        try (InputStream input = Files.newInputStream(file);
+             DeltaWriter writer = new DeltaWriter(new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(delta))))) {
+            Window window = new Window(input, buffer, writer);
+            int length = Math.min(blockSize, window.limit);
+            int checksum = BlockSignatures.weakChecksum(buffer, 0, length);
+            while (length > 0) {
+                int match = -1;
+                if (length == blockSize) {
+                    match = find(blocksByWeak.get(checksum), signatures, writer.nextBlock(), buffer, window.position, length);
+                } else if (length == lastBlockLength && checksum == signatures.weak(lastBlock)
+                        && signatures.strongMatches(lastBlock, buffer, window.position, length)) {
+                    match = lastBlock;
+                }
+                if (match >= 0) {
+                    writer.literal(buffer, window.literalStart, window.position - window.literalStart);
+                    writer.copy(match);
+                    window.position += length;
+                    window.literalStart = window.position;
+                    if (window.limit - window.position < blockSize) {
+                        window.refill();
+                    }
+                    length = Math.min(blockSize, window.limit - window.position);
+                    checksum = BlockSignatures.weakChecksum(buffer, window.position, length);
+                    continue;
+                }
+                if (window.position + length >= window.limit) {
+                    window.refill();
+                }
+                int next = window.position + length;
+                if (next < window.limit) {
+                    checksum = BlockSignatures.roll(checksum, length, buffer[window.position], buffer[next]);
+                } else {
+                    // Past the end of the file the window shrinks until it matches the old copy's short last block.
+                    checksum = BlockSignatures.drop(checksum, length, buffer[window.position]);
+                    length--;
+                }
+                window.position++;
+            }
+            writer.literal(buffer, window.literalStart, window.position - window.literalStart);
+        }
+        return Files.size(delta);
+    }
+
+    /**
+     * Prefers the block following the last one copied so consecutive references merge into one.
+     */
+    private static int find(List<Integer> candidates, BlockSignatures signatures, int preferred, byte[] data, int offset, int length) {
+        if (candidates == null) {
+            return -1;
+        }
+        if (candidates.contains(preferred) && signatures.strongMatches(preferred, data, offset, length)) {
+            return preferred;
+        }
+        for (int block : candidates) {
+            if (block != preferred && signatures.strongMatches(block, data, offset, length)) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Rebuilds the new file into {@code output} from {@code basis}, the old copy signed with
+     * {@code blockSize}, and the delta.
+     */
+    static void apply(Path basis, int blockSize, Path delta, Path output) throws IOException {
+        byte[] buffer = new byte[blockSize];
+        try (FileChannel basisChannel = FileChannel.open(basis, StandardOpenOption.READ);
+             DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(delta)));
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(output))) {
+            long basisSize = basisChannel.size();
+            int op;
+            while ((op = input.read()) >= 0) {
+                if (op == COPY) {
+                    int first = input.readInt();
+                    int count = input.readInt();
+                    if (first < 0 || count < 1 || (long) first + count > BlockSignatures.blockCount(basisSize, blockSize)) {
+                        throw new IOException("Delta references blocks " + first + "+" + count + " outside " + basis);
+                    }
+                    for (int block = first; block < first + count; block++) {
+                        long offset = (long) block * blockSize;
+                        ByteBuffer data = ByteBuffer.wrap(buffer, 0, (int) Math.min(blockSize, basisSize - offset));
+                        while (data.hasRemaining()) {
+                            if (basisChannel.read(data, offset + data.position()) < 0) {
+                                throw new EOFException("Unexpected end of " + basis + " at block " + block);
+                            }
+                        }
+                        out.write(buffer, 0, data.position());
+                    }
+                } else if (op == LITERAL) {
+                    int remaining = input.readInt();
+                    if (remaining < 0) {
+                        throw new IOException("Invalid literal length " + remaining + " in delta");
+                    }
+                    while (remaining > 0) {
+                        int read = Math.min(remaining, buffer.length);
+                        input.readFully(buffer, 0, read);
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                } else {
+                    throw new IOException("Invalid delta operation " + op);
+                }
+            }
+        }
+    }
+
+    /**
+     * The part of the new file held in memory: the window starts at {@code position}, and the bytes from
+     * {@code literalStart} up to it have matched nothing yet.
+     */
+    private static final class Window {
+        private final InputStream input;
+        private final byte[] buffer;
+        private final DeltaWriter writer;
+        private int position;
+        private int literalStart;
+        private int limit;
+        private boolean endOfFile;
+
+        private Window(InputStream input, byte[] buffer, DeltaWriter writer) throws IOException {
+            this.input = input;
+            this.buffer = buffer;
+            this.writer = writer;
+            this.limit = input.readNBytes(buffer, 0, buffer.length);
+            this.endOfFile = limit < buffer.length;
+        }
+
+        /**
+         * Flushes the pending literal, moves the unread tail to the front and reads more of the file.
+         */
+        private void refill() throws IOException {
+            if (endOfFile) {
+                return;
+            }
+            writer.literal(buffer, literalStart, position - literalStart);
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+            literalStart = 0;
+            int read = input.readNBytes(buffer, limit, buffer.length - limit);
+            limit += read;
+            endOfFile = limit < buffer.length;
+        }
+    }
+
+    /**
+     * Writes delta operations, merging references to consecutive blocks.
+     */
+    private static final class DeltaWriter implements AutoCloseable {
+        private final DataOutputStream output;
+        private int copyFirst = -1;
+        private int copyCount;
+
+        private DeltaWriter(DataOutputStream output) {
+            this.output = output;
+        }
+
+        private int nextBlock() {
+            return copyFirst + copyCount;
+        }
+
+        private void copy(int block) throws IOException {
+            if (copyCount > 0 && block == nextBlock()) {
+                copyCount++;
+                return;
+            }
+            flushCopy();
+            copyFirst = block;
+            copyCount = 1;
+        }
+
+        private void literal(byte[] data, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            flushCopy();
+            output.writeByte(LITERAL);
+            output.writeInt(length);
+            output.write(data, offset, length);
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyCount > 0) {
+                output.writeByte(COPY);
+                output.writeInt(copyFirst);
+                output.writeInt(copyCount);
+                copyCount = 0;
+                copyFirst = -1;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushCopy();
+            } finally {
+                output.close();
+            }
+        }
+    }
+}
@@ -1,23 +1,57 @@
 package com.p2p.transfer;
 
+import com.p2p.network.BufferPool;
+import com.p2p.network.PooledBuffer;
+
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Reads a file as chunks of {@code chunkSize} bytes, the last one possibly shorter. Chunks are read at
+ * their offset through one {@link FileChannel}, so any chunk can be read at any time and iterations may
+ * overlap. Each chunk is read into a buffer of a {@link BufferPool} and goes back to it when the chunk is
+ * released, so streaming a file reuses a window's worth of buffers instead of allocating one per chunk.
+ * <p>
+ * With a read-ahead of {@code n} chunks, iterating keeps reads of the next {@code n} chunks to be returned
+ * running in the background, so the caller finds them in memory instead of waiting on the disk.
+ */
 public class FileChunker implements Iterable<FileChunker.Chunk>, AutoCloseable {
 
+    // Chunks one reader thread reads in a row.
+    private static final int READ_AHEAD_BATCH = 8;
+
+    /**
+     * One chunk, held in a pooled buffer that its holder releases once done with the data.
+     */
     public static class Chunk {
         private final int index;
         private final int totalChunks;
-        private final byte[] data;
+        private final PooledBuffer buffer;
+        private final int length;
 
-        public Chunk(int index, int totalChunks, byte[] data) {
+        private Chunk(int index, int totalChunks, PooledBuffer buffer, int length) {
             this.index = index;
             this.totalChunks = totalChunks;
-            this.data = data;
+            this.buffer = buffer;
+            this.length = length;
         }
 
         public int getIndex() {
@@ -28,8 +62,26 @@ public class FileChunker implements Iterable<FileChunker.Chunk>, AutoCloseable {
             return totalChunks;
         }
 
-        public byte[] getData() {
-            return data;
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return a view of the chunk's bytes, valid until the chunk is released
+         */
+        public ByteBuffer getData() {
+            return buffer.buffer().duplicate().position(0).limit(length);
+        }
+
+        /**
+         * @return the buffer holding the data, for holders that need the chunk beyond their own release
+         */
+        public PooledBuffer getBuffer() {
+            return buffer;
+        }
+
+        public void release() {
+            buffer.release();
         }
     }
 
@@ -37,14 +89,39 @@ public class FileChunker implements Iterable<FileChunker.Chunk>, AutoCloseable {
     private final int chunkSize;
     private final long fileSize;
     private final int totalChunks;
-    private final InputStream inputStream;
+    private final FileChannel channel;
+    private final int readAhead;
+    private final BufferPool buffers;
+    // Chunks being read ahead of the iteration, by index; guarded by this.
+    private final Map<Integer, PendingChunk> ahead = new HashMap<>();
 
     public FileChunker(Path file, int chunkSize) throws IOException {
+        this(file, chunkSize, 0, null);
+    }
+
+    /**
+     * @param readAhead chunks read in the background ahead of an iteration, {@code 0} to read each chunk
+     *                  only when it is asked for
+     * @param buffers   pool the chunks are read into, or {@code null} for a pool of this chunker's own;
+     *                  its buffers must hold a whole chunk
+     */
+    public FileChunker(Path file, int chunkSize, int readAhead, BufferPool buffers) throws IOException {
+        if (buffers != null && buffers.getBufferSize() < chunkSize) {
+            throw new IllegalArgumentException("Pooled buffers of " + buffers.getBufferSize() + " bytes cannot hold " + chunkSize + " byte chunks");
+        }
         this.file = file;
         this.chunkSize = chunkSize;
         this.fileSize = Files.size(file);
         this.totalChunks = (int) Math.ceil((double) fileSize / chunkSize);
-        this.inputStream = Files.newInputStream(file);
+        // A single core has no spare cycles to read on while the caller works, and the kernel already reads
+        // sequential files ahead into the page cache.
+        this.readAhead = Runtime.getRuntime().availableProcessors() > 1 ? Math.max(0, readAhead) : 0;
+        this.buffers = buffers != null ? buffers : new BufferPool(Math.max(1, chunkSize), this.readAhead + 1, false);
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    public Path getFile() {
+        return file;
     }
 
     public long getFileSize() {
@@ -55,10 +132,22 @@ public class FileChunker implements Iterable<FileChunker.Chunk>, AutoCloseable {
         return totalChunks;
     }
 
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
     @Override
     public Iterator<Chunk> iterator() {
+        return iterator(new BitSet());
+    }
+
+    /**
+     * Iterates the chunks whose index is not set in {@code skipped}, reading ahead as configured. Any number
+     * of iterations, e.g. to resend repaired chunks, can follow one another.
+     */
+    public Iterator<Chunk> iterator(BitSet skipped) {
         return new Iterator<>() {
-            private int index = 0;
+            private int index = skipped.nextClearBit(0);
 
             @Override
             public boolean hasNext() {
@@ -71,13 +160,9 @@ public class FileChunker implements Iterable<FileChunker.Chunk>, AutoCloseable {
                     throw new NoSuchElementException();
                 }
                 try {
-                    int remaining = (int) Math.min(chunkSize, fileSize - (long) index * chunkSize);
-                    byte[] buffer = inputStream.readNBytes(remaining);
-                    if (buffer.length != remaining) {
-                        throw new IOException("Unexpected end of file while chunking " + file);
-                    }
-                    Chunk chunk = new Chunk(index, totalChunks, buffer);
-                    index++;
+                    Chunk chunk = readChunk(index);
+                    index = skipped.nextClearBit(index + 1);
+                    readAhead(index, skipped);
                     return chunk;
                 } catch (IOException e) {
                     throw new IllegalStateException("Failed to read chunk " + index + " from file " + file, e);
@@ -86,8 +171,133 @@ public class FileChunker implements Iterable<FileChunker.Chunk>, AutoCloseable {
         };
     }
 
+    /**
+     * Reads chunk {@code index}, taking it from the read-ahead if it is already there. A chunk the reader
+     * threads have not started on yet is read right here instead of waiting for them.
+     */
+    public Chunk readChunk(int index) throws IOException {
+        if (index < 0 || index >= totalChunks) {
+            throw new IndexOutOfBoundsException("Chunk " + index + " of " + totalChunks + " in " + file);
+        }
+        PendingChunk pending;
+        synchronized (this) {
+            pending = ahead.remove(index);
+        }
+        if (pending == null || pending.claim()) {
+            return read(index);
+        }
+        try {
+            return pending.data.get();
+        } catch (InterruptedException ex) {
+            // Not interrupting the reader, which would close the channel under every other read.
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading chunk " + index + " of " + file);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Failed to read chunk " + index + " of " + file, ex.getCause());
+        }
+    }
+
+    /**
+     * Starts reading the chunks from {@code from} on that are not skipped, until {@link #readAhead} chunks
+     * are pending. Chunks are handed to the reader threads in batches, and only once a whole batch fits,
+     * so a consumer that keeps up with the disk does not pay a hand-off per chunk.
+     */
+    private synchronized void readAhead(int from, BitSet skipped) {
+        if (readAhead - ahead.size() < Math.min(READ_AHEAD_BATCH, readAhead)) {
+            return;
+        }
+        Map<Integer, PendingChunk> batch = new LinkedHashMap<>();
+        for (int index = skipped.nextClearBit(from); index < totalChunks && ahead.size() < readAhead; index = skipped.nextClearBit(index + 1)) {
+            if (!ahead.containsKey(index)) {
+                PendingChunk pending = new PendingChunk();
+                ahead.put(index, pending);
+                batch.put(index, pending);
+                if (batch.size() == READ_AHEAD_BATCH) {
+                    submit(batch);
+                    batch = new LinkedHashMap<>();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            submit(batch);
+        }
+    }
+
+    private void submit(Map<Integer, PendingChunk> batch) {
+        ReadAhead.EXECUTOR.execute(() -> batch.forEach((index, pending) -> {
+            // Skips chunks the consumer got to first and those of a closed chunker.
+            if (!pending.claim()) {
+                return;
+            }
+            try {
+                Chunk chunk = read(index);
+                if (!pending.data.complete(chunk)) {
+                    chunk.release();
+                }
+            } catch (IOException | RuntimeException ex) {
+                pending.data.completeExceptionally(ex);
+            }
+        }));
+    }
+
+    private Chunk read(int index) throws IOException {
+        long offset = (long) index * chunkSize;
+        int length = (int) Math.min(chunkSize, fileSize - offset);
+        PooledBuffer pooled = buffers.acquire();
+        try {
+            ByteBuffer buffer = pooled.buffer().limit(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of file while chunking " + file);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            pooled.release();
+            throw ex;
+        }
+        return new Chunk(index, totalChunks, pooled, length);
+    }
+
     @Override
     public void close() throws IOException {
-        inputStream.close();
+        synchronized (this) {
+            for (PendingChunk pending : ahead.values()) {
+                // A chunk a reader thread is still on is released by that thread once it sees the cancellation.
+                if (!pending.claim() && !pending.data.cancel(false)) {
+                    pending.data.thenAccept(Chunk::release);
+                }
+            }
+            ahead.clear();
+        }
+        channel.close();
+    }
+
+    /**
+     * Threads reading ahead for every chunker, started on first use. They are daemons, as a chunker left
+     * open must not keep the JVM alive.
+     */
+    private static final class ReadAhead {
+        private static final int THREADS = 4;
+        private static final AtomicInteger COUNTER = new AtomicInteger();
+        private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "chunk-read-ahead-" + COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * A chunk queued for reading ahead; whoever claims it first, a reader thread or the consumer, reads it.
+     */
+    private static final class PendingChunk {
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CompletableFuture<Chunk> data = new CompletableFuture<>();
+
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
     }
 }
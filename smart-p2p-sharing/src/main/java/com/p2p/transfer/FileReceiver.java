@@ -3,45 +3,153 @@ package com.p2p.transfer;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.p2p.network.AckType;
+import com.p2p.network.BufferPool;
+import com.p2p.network.Datagrams;
 import com.p2p.network.Packet;
 import com.p2p.network.PacketType;
+import com.p2p.network.PooledBuffer;
+import com.p2p.network.SelectiveAck;
 import com.p2p.network.UDPServer;
 import com.p2p.security.SecurityChecker;
 import com.p2p.security.SecurityChecker.SecurityResult;
 import com.p2p.storage.StorageManager;
 import com.p2p.webhook.N8nClient;
-import com.p2p.webhook.WebhookPayload;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.time.Instant;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.Inflater;
 
-public class FileReceiver implements UDPServer.PacketHandler {
+public class FileReceiver implements UDPServer.PacketHandler, AutoCloseable {
 
     private static final Logger LOGGER = LogManager.getLogger(FileReceiver.class);
 
+    public static final int DEFAULT_ACK_FREQUENCY = 16;
+    public static final Duration DEFAULT_ACK_INTERVAL = Duration.ofMillis(5);
+
+    // Session state persisted in the session temp directory so a restarted receiver can resume transfers.
+    private static final String METADATA_FILE = "metadata.json";
+    private static final String BITMAP_FILE = "received.bitmap";
+    // Chunks are written straight to their offset in this file, which becomes the assembled file by a rename.
+    private static final String STREAM_FILE = "stream.part";
+    private static final Duration BITMAP_PERSIST_INTERVAL = Duration.ofSeconds(1);
+    // Sessions answered from local content or rejected while receiving are remembered this long, so a
+    // retransmitted METADATA or chunk gets the same verdict instead of storing the file twice.
+    private static final Duration INSTANT_VERDICT_TTL = Duration.ofSeconds(30);
+    private static final int MAX_INSTANT_VERDICTS = 256;
+    // While a completed session is being verified and stored, the sender is reminded this often that the
+    // verdict is coming, so it keeps waiting however long that takes. Each reminder carries the interval in
+    // its chunk ID, for senders whose own timeout is shorter.
+    private static final Duration FINALIZING_INTERVAL = Duration.ofSeconds(1);
+    private static final int VERIFY_THREADS = 2;
+    private static final int STORE_THREADS = 2;
+    private static final int PIPELINE_QUEUE_CAPACITY = 16;
+    // How long closing waits for each pipeline stage to finish the sessions handed to it.
+    private static final Duration PIPELINE_DRAIN_TIMEOUT = Duration.ofSeconds(30);
+
     private final StorageManager storageManager;
     private final SecurityChecker securityChecker;
-    private final N8nClient n8nClient;
+    private final ReceivedFileProcessor processor;
+    private final int ackFrequency;
+    // Inflated chunks and chunks read back for hashing or parity repair.
+    private final BufferPool buffers;
     private final Map<UUID, TransferSession> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService ackScheduler = Executors.newSingleThreadScheduledExecutor();
+    // Completed sessions go through a pipeline off the server workers, so sessions sharing the worker that
+    // received the last chunk keep being acknowledged: the verifiers assemble and check the stream, then the
+    // storers inspect, move and index the file. Each stage queues a bounded number of sessions, and handing
+    // work to a full stage blocks until it has room, so a burst of completed transfers holds back the stage
+    // feeding it rather than piling up in memory.
+    private final ExecutorService verifiers = pipelineStage(VERIFY_THREADS);
+    private final ExecutorService storers = pipelineStage(STORE_THREADS);
+    private final Map<UUID, InstantVerdict> instantVerdicts = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, InstantVerdict> eldest) {
+            return size() > MAX_INSTANT_VERDICTS;
+        }
+    };
 
     public FileReceiver(StorageManager storageManager, SecurityChecker securityChecker, N8nClient n8nClient) {
+        this(storageManager, securityChecker, n8nClient, DEFAULT_ACK_FREQUENCY, DEFAULT_ACK_INTERVAL);
+    }
+
+    /**
+     * @param ackFrequency number of new chunks after which a selective ACK is sent immediately
+     * @param ackInterval  maximum delay before chunks received since the last selective ACK are acknowledged
+     */
+    public FileReceiver(StorageManager storageManager, SecurityChecker securityChecker, N8nClient n8nClient,
+                        int ackFrequency, Duration ackInterval) {
+        this(storageManager, securityChecker, n8nClient, ackFrequency, ackInterval, new BufferPool());
+    }
+
+    /**
+     * @param buffers pool of buffers of at least {@link Packet#MAX_PAYLOAD_SIZE} bytes, usually shared with
+     *                the server and the sender
+     */
+    public FileReceiver(StorageManager storageManager, SecurityChecker securityChecker, N8nClient n8nClient,
+                        int ackFrequency, Duration ackInterval, BufferPool buffers) {
+        if (buffers.getBufferSize() < Packet.MAX_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Buffers of " + buffers.getBufferSize() + " bytes cannot hold a chunk");
+        }
+        this.buffers = buffers;
         this.storageManager = storageManager;
         this.securityChecker = securityChecker;
-        this.n8nClient = n8nClient;
+        this.processor = new ReceivedFileProcessor(storageManager, securityChecker, n8nClient);
+        this.ackFrequency = Math.max(1, ackFrequency);
+        long intervalMicros = Math.max(1, ackInterval.toNanos() / 1000);
+        ackScheduler.scheduleWithFixedDelay(this::flushSelectiveAcks, intervalMicros, intervalMicros, TimeUnit.MICROSECONDS);
+        ackScheduler.scheduleWithFixedDelay(this::persistBitmaps, BITMAP_PERSIST_INTERVAL.toMillis(),
+                BITMAP_PERSIST_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+        ackScheduler.scheduleWithFixedDelay(this::remindFinalizing, FINALIZING_INTERVAL.toMillis(),
+                FINALIZING_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static ExecutorService pipelineStage(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY),
+                (task, executor) -> {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("Receiver is closed");
+                    }
+                    try {
+                        executor.getQueue().put(task);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for the post-receive pipeline", ex);
+                    }
+                });
     }
 
     @Override
@@ -51,6 +159,19 @@ public class FileReceiver implements UDPServer.PacketHandler {
                 handleMetadata(packet, address, port, socket);
             } else if (packet.getPacketType() == PacketType.DATA) {
                 handleData(packet, address, port, socket);
+            } else if (packet.getPacketType() == PacketType.PARITY) {
+                handleParity(packet, address, port, socket);
+            } else if (packet.getPacketType() == PacketType.SIGNATURE_REQUEST) {
+                handleSignatureRequest(packet, address, port, socket);
+            } else if (packet.getPacketType() == PacketType.NODE_REQUEST) {
+                handleNodeRequest(packet, address, port, socket);
+            } else if (packet.getPacketType() == PacketType.REPAIR) {
+                handleRepair(packet, address, port, socket);
+            } else if (packet.getPacketType() == PacketType.BLOCK_HASHES) {
+                handleBlockHashes(packet, address, port, socket);
+            } else if (packet.getPacketType() == PacketType.MTU_PROBE) {
+                // Echo the size that actually arrived, which is what the prober needs to know.
+                sendAck(socket, packet.getSessionId(), AckType.PROBE, packet.encodedLength(), null, address, port);
             }
         } catch (Exception ex) {
             LOGGER.error("Failed to process packet {}", packet, ex);
@@ -58,25 +179,397 @@ public class FileReceiver implements UDPServer.PacketHandler {
         }
     }
 
+    /**
+     * Opens the session, or picks up the one a previous attempt left behind in memory or on disk. The
+     * metadata of a session that already holds chunks is answered with {@link AckType#RESUME} listing them,
+     * that of content already stored here with {@link AckType#ALREADY_PRESENT}, and that of a sender able to
+     * send a delta against an older copy stored here with {@link AckType#DELTA_BASIS}. A proposed chunk size
+     * this receiver cannot use is answered with {@link AckType#CHUNK_SIZE} naming the one to use instead.
+     * A session still waiting for the repair of corrupted chunks repeats its {@link AckType#CORRUPT} verdict.
+     */
     private void handleMetadata(Packet packet, InetAddress address, int port, DatagramSocket socket) throws IOException {
-        JsonObject metadata = JsonParser.parseString(new String(packet.getPayload(), StandardCharsets.UTF_8)).getAsJsonObject();
+        byte[] metadataBytes = packet.getPayload();
+        JsonObject metadata = JsonParser.parseString(new String(metadataBytes, StandardCharsets.UTF_8)).getAsJsonObject();
         UUID sessionId = packet.getSessionId();
+        TransferSession session = sessions.get(sessionId);
+        if (session == null && tryInstantTransfer(sessionId, metadata, socket, address, port)) {
+            return;
+        }
+        if (offerDeltaBasis(session, sessionId, metadata, socket, address, port)) {
+            return;
+        }
+        int proposedChunkSize = metadata.has("chunkSize") ? metadata.get("chunkSize").getAsInt() : 0;
+        int agreedChunkSize = agreeChunkSize(session, sessionId, metadata, proposedChunkSize);
+        if (session == null && agreedChunkSize == proposedChunkSize) {
+            TransferSession opened = openSession(sessionId, metadata, metadataBytes);
+            session = sessions.putIfAbsent(sessionId, opened);
+            if (session == null) {
+                session = opened;
+            } else {
+                closeStream(opened);
+            }
+            // A concurrent METADATA may have opened the session with another chunk size.
+            agreedChunkSize = agreeChunkSize(session, sessionId, metadata, proposedChunkSize);
+        }
+        if (agreedChunkSize != proposedChunkSize) {
+            LOGGER.info("Asking session {} from {}:{} to use {} byte chunks instead of {}", sessionId, address.getHostAddress(), port,
+                    agreedChunkSize, proposedChunkSize);
+            sendAck(socket, sessionId, AckType.CHUNK_SIZE, agreedChunkSize, null, address, port);
+            return;
+        }
+        BitSet received;
+        boolean complete;
+        boolean corrupt;
+        boolean finalizing;
+        synchronized (session) {
+            session.replyTo(socket, address, port);
+            received = (BitSet) session.chunkReceived.clone();
+            corrupt = session.tree != null;
+            finalizing = session.finalizing;
+            complete = session.isComplete() && !session.assembling;
+            if (complete) {
+                session.assembling = true;
+            }
+        }
+        if (received.isEmpty()) {
+            LOGGER.info("Metadata received for session {} from {}:{} -> {} ({} bytes, {} chunks)",
+                    sessionId, address.getHostAddress(), port, session.fileName, session.fileSize, session.totalChunks);
+            sendAck(socket, sessionId, AckType.METADATA, -1, "Metadata accepted", address, port);
+        } else {
+            LOGGER.info("Resuming session {} from {}:{} -> {} with {} of {} chunks already received",
+                    sessionId, address.getHostAddress(), port, session.fileName, received.cardinality(), session.totalChunks);
+            sendPacket(socket, SelectiveAck.of(received, 0, SelectiveAck.MAX_RANGES).toResumePacket(sessionId), address, port);
+        }
+        if (corrupt) {
+            sendPacket(socket, corruptVerdict(session), address, port);
+        } else if (finalizing) {
+            sendAck(socket, sessionId, AckType.FINALIZING, (int) FINALIZING_INTERVAL.toMillis(), null, address, port);
+        }
+        if (complete) {
+            LOGGER.info("All chunks of session {} were received before it resumed. Assembling...", sessionId);
+            assemble(session);
+        }
+    }
+
+    /**
+     * Completes a transfer without any chunks when the content index already holds a file with the
+     * announced checksum: the file is linked or copied into the session directory and stored like an
+     * assembled transfer, so it still passes the security checks for its new name.
+     *
+     * @return whether the METADATA has been answered
+     */
+    private boolean tryInstantTransfer(UUID sessionId, JsonObject metadata, DatagramSocket socket, InetAddress address, int port)
+            throws IOException {
+        synchronized (instantVerdicts) {
+            InstantVerdict remembered = instantVerdicts.get(sessionId);
+            if (remembered != null && remembered.isExpired()) {
+                instantVerdicts.remove(sessionId);
+            } else if (remembered != null) {
+                // Without a verdict the content is still being stored and the sender will ask again.
+                if (remembered.packet != null) {
+                    sendPacket(socket, remembered.packet, address, port);
+                }
+                return true;
+            }
+        }
+        String checksum = metadata.get("checksum").getAsString();
+        long fileSize = metadata.get("fileSize").getAsLong();
+        Optional<Path> existing = storageManager.getContentIndex().lookup(checksum)
+                .filter(path -> sizeOf(path) == fileSize);
+        if (existing.isEmpty()) {
+            return false;
+        }
+        synchronized (instantVerdicts) {
+            if (instantVerdicts.putIfAbsent(sessionId, new InstantVerdict(null)) != null) {
+                return true;
+            }
+        }
+        String fileName = metadata.get("fileName").getAsString();
+        Packet verdict;
+        try {
+            Path staged = storageManager.createSessionTempDirectory(sessionId).resolve(fileName + ".assembled");
+            storageManager.linkOrCopy(existing.get(), staged);
+            SecurityResult securityResult = processor.process(staged, fileName, fileSize, checksum,
+                    metadata.get("senderPeerId").getAsString()).getSecurityResult();
+            LOGGER.info("Session {} from {}:{} completed from local content {}: {}", sessionId, address.getHostAddress(), port,
+                    existing.get(), securityResult.getMessage());
+            verdict = Packet.ack(sessionId, securityResult.isSafe() ? AckType.ALREADY_PRESENT : AckType.REJECTED, -1,
+                    securityResult.getMessage());
+        } catch (IOException | RuntimeException ex) {
+            synchronized (instantVerdicts) {
+                instantVerdicts.remove(sessionId);
+            }
+            throw ex;
+        } finally {
+            storageManager.cleanupSession(sessionId);
+        }
+        synchronized (instantVerdicts) {
+            instantVerdicts.put(sessionId, new InstantVerdict(verdict));
+        }
+        sendPacket(socket, verdict, address, port);
+        return true;
+    }
+
+    private Packet rememberedVerdict(UUID sessionId) {
+        synchronized (instantVerdicts) {
+            InstantVerdict remembered = instantVerdicts.get(sessionId);
+            return remembered == null || remembered.isExpired() ? null : remembered.packet;
+        }
+    }
+
+    private static long sizeOf(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Offers the stored file of the same name as the basis for a delta instead of opening a session for
+     * the whole file. Sessions that already hold chunks of the whole file keep resuming it.
+     *
+     * @return whether the METADATA has been answered
+     */
+    private boolean offerDeltaBasis(TransferSession session, UUID sessionId, JsonObject metadata, DatagramSocket socket,
+                                    InetAddress address, int port) throws IOException {
+        if (!metadata.has("deltaCapable") || !metadata.get("deltaCapable").getAsBoolean() || metadata.has("delta")) {
+            return false;
+        }
+        if (session != null ? session.delta == null : persistedWholeFileSession(sessionId)) {
+            return false;
+        }
+        Optional<Path> basis = storageManager.findIncoming(metadata.get("fileName").getAsString())
+                .filter(path -> sizeOf(path) >= BlockSignatures.MIN_BLOCK_SIZE);
+        if (basis.isEmpty()) {
+            return false;
+        }
+        long basisSize = Files.size(basis.get());
+        JsonObject offer = new JsonObject();
+        offer.addProperty("basisId", basisId(basis.get()));
+        offer.addProperty("basisSize", basisSize);
+        offer.addProperty("blockSize", BlockSignatures.blockSizeFor(basisSize));
+        LOGGER.info("Offering {} ({} bytes) to session {} from {}:{} as delta basis", basis.get(), basisSize, sessionId,
+                address.getHostAddress(), port);
+        sendAck(socket, sessionId, AckType.DELTA_BASIS, -1, offer.toString(), address, port);
+        return true;
+    }
+
+    private boolean persistedWholeFileSession(UUID sessionId) throws IOException {
+        return persistedMetadata(sessionId).map(persisted -> !persisted.has("delta")).orElse(false);
+    }
+
+    private Optional<JsonObject> persistedMetadata(UUID sessionId) throws IOException {
+        Path metadataFile = storageManager.getTempDir().resolve(sessionId.toString()).resolve(METADATA_FILE);
+        if (!Files.exists(metadataFile)) {
+            return Optional.empty();
+        }
+        return Optional.of(JsonParser.parseString(Files.readString(metadataFile, StandardCharsets.UTF_8)).getAsJsonObject());
+    }
+
+    /**
+     * Accepts the sender's chunk size unless chunks of the same content were already received with another
+     * size, which the sender then has to match to resume, or it exceeds what fits in one packet. Senders
+     * that do not announce a chunk size are accepted as they are.
+     */
+    private int agreeChunkSize(TransferSession session, UUID sessionId, JsonObject metadata, int proposed) throws IOException {
+        if (proposed <= 0) {
+            return proposed;
+        }
+        if (session != null && session.chunkSize > 0) {
+            return session.chunkSize;
+        }
+        Optional<JsonObject> persisted = persistedMetadata(sessionId);
+        if (persisted.isPresent() && persisted.get().has("chunkSize")
+                && Files.exists(storageManager.getTempDir().resolve(sessionId.toString()).resolve(BITMAP_FILE))
+                && Objects.equals(persisted.get().get("checksum"), metadata.get("checksum"))
+                && Objects.equals(persisted.get().get("delta"), metadata.get("delta"))) {
+            return persisted.get().get("chunkSize").getAsInt();
+        }
+        return Math.min(proposed, Packet.MAX_PAYLOAD_SIZE);
+    }
+
+    /**
+     * Identifies one version of a basis file, so a delta is never applied to a file that changed after it
+     * was signed.
+     */
+    private static String basisId(Path basis) throws IOException {
+        return Files.size(basis) + ":" + Files.getLastModifiedTime(basis).toMillis();
+    }
+
+    /**
+     * Answers with one page of block signatures of the basis named in the request. Requests are stateless
+     * and may be repeated freely.
+     */
+    private void handleSignatureRequest(Packet packet, InetAddress address, int port, DatagramSocket socket) throws IOException {
+        JsonObject request = JsonParser.parseString(new String(packet.getPayload(), StandardCharsets.UTF_8)).getAsJsonObject();
+        Optional<Path> basis = storageManager.findIncoming(request.get("fileName").getAsString());
+        int blockSize = request.get("blockSize").getAsInt();
+        if (basis.isEmpty() || !basisId(basis.get()).equals(request.get("basisId").getAsString())) {
+            sendAck(socket, packet.getSessionId(), AckType.REJECTED, packet.getChunkId(), "Delta basis changed", address, port);
+            return;
+        }
+        if (blockSize < BlockSignatures.MIN_BLOCK_SIZE || blockSize > BlockSignatures.MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Invalid signature block size " + blockSize);
+        }
+        byte[] page = BlockSignatures.encodePage(basis.get(), Files.size(basis.get()), blockSize, packet.getChunkId());
+        sendPacket(socket, Packet.signatures(packet.getSessionId(), packet.getChunkId(), page), address, port);
+    }
+
+    /**
+     * Answers with one page of the Merkle tree over the received blocks of a session that failed verification,
+     * so the sender can narrow the mismatch down to the corrupted blocks when they were not named.
+     */
+    private void handleNodeRequest(Packet packet, InetAddress address, int port, DatagramSocket socket) {
+        TransferSession session = sessions.get(packet.getSessionId());
+        MerkleTree tree = null;
+        if (session != null) {
+            synchronized (session) {
+                tree = session.tree;
+            }
+        }
+        int level = packet.getTotalChunks();
+        int page = packet.getChunkId();
+        if (tree == null || level < 0 || level >= tree.getHeight() || page < 0 || page >= tree.getPageCount(level)) {
+            sendAck(socket, packet.getSessionId(), AckType.REJECTED, page, "No such Merkle tree page", address, port);
+            return;
+        }
+        sendPacket(socket, Packet.nodes(packet.getSessionId(), level, page, tree.encodePage(level, page)), address, port);
+    }
+
+    /**
+     * Forgets the chunks the sender found corrupted and answers with {@link AckType#RESUME} listing the chunks
+     * still held, so the sender streams just the forgotten ones again. A repeated request changes nothing.
+     */
+    private void handleRepair(Packet packet, InetAddress address, int port, DatagramSocket socket) {
+        TransferSession session = sessions.get(packet.getSessionId());
+        if (session == null) {
+            sendAck(socket, packet.getSessionId(), AckType.RETRY, -1, "Unknown session", address, port);
+            return;
+        }
+        ByteBuffer chunkIds = packet.payload();
+        BitSet received;
+        synchronized (session) {
+            session.replyTo(socket, address, port);
+            if (session.tree != null) {
+                int cleared = 0;
+                while (chunkIds.remaining() >= Integer.BYTES) {
+                    int chunkId = chunkIds.getInt();
+                    if (chunkId >= 0 && chunkId < session.totalChunks && session.chunkReceived.get(chunkId)) {
+                        session.chunkReceived.clear(chunkId);
+                        session.chunkClaimed.clear(chunkId);
+                        session.receivedChunks--;
+                        session.receivedBytes -= chunkLength(session, chunkId);
+                        cleared++;
+                        // The blocks of a cleared chunk are hashed again once it is back.
+                        for (int block = firstBlockOf(session, chunkId); block <= lastBlockOf(session, chunkId); block++) {
+                            session.blocksScheduled.clear(block);
+                            session.blocksHashed.clear(block);
+                            session.corruptBlocks.clear(block);
+                        }
+                    }
+                }
+                session.tree = null;
+                session.assembling = false;
+                session.bitmapDirty = true;
+                LOGGER.info("Receiving {} corrupted chunks of session {} again", cleared, session.sessionId);
+            }
+            received = (BitSet) session.chunkReceived.clone();
+        }
+        sendPacket(socket, SelectiveAck.of(received, 0, SelectiveAck.MAX_RANGES).toResumePacket(session.sessionId), address, port);
+    }
+
+    private TransferSession openSession(UUID sessionId, JsonObject metadata, byte[] metadataBytes) throws IOException {
         TransferSession session = new TransferSession(sessionId,
                 metadata.get("fileName").getAsString(),
                 metadata.get("checksum").getAsString(),
                 metadata.get("totalChunks").getAsInt(),
                 metadata.get("fileSize").getAsLong(),
                 metadata.get("senderPeerId").getAsString(),
+                metadata.has("chunkSize") ? metadata.get("chunkSize").getAsInt() : 0,
+                metadata.has("delta") ? metadata.getAsJsonObject("delta") : null,
                 storageManager.createSessionTempDirectory(sessionId));
-        sessions.put(sessionId, session);
-        LOGGER.info("Metadata received for session {} from {}:{} -> {} ({} bytes, {} chunks)",
-                sessionId, address.getHostAddress(), port, session.fileName, session.fileSize, session.totalChunks);
-        sendAck(socket, sessionId, AckType.METADATA, -1, "Metadata accepted", address, port);
+        Path metadataFile = session.sessionDir.resolve(METADATA_FILE);
+        Path bitmapFile = session.sessionDir.resolve(BITMAP_FILE);
+        Path streamFile = session.sessionDir.resolve(STREAM_FILE);
+        boolean streamIntact = Files.exists(streamFile) && Files.size(streamFile) == session.streamSize;
+        session.stream = openStream(streamFile, session.streamSize);
+        if (Files.exists(metadataFile) && Files.exists(bitmapFile)) {
+            JsonObject persisted = JsonParser.parseString(Files.readString(metadataFile, StandardCharsets.UTF_8)).getAsJsonObject();
+            if (!sameContent(persisted, metadata)) {
+                LOGGER.warn("Discarding persisted state of session {}: it describes different content", sessionId);
+            } else if (!streamIntact || session.chunkSize <= 0) {
+                LOGGER.warn("Discarding persisted state of session {}: its received chunks cannot be located", sessionId);
+            } else {
+                restore(session, BitSet.valueOf(Files.readAllBytes(bitmapFile)));
+            }
+        }
+        storageManager.writeAtomically(metadataFile, metadataBytes);
+        return session;
+    }
+
+    /**
+     * Opens the file the chunks are written into, sized to the whole stream up front so that chunks can be
+     * written at their offsets in any order. Fails early if the file system cannot hold it.
+     */
+    private static FileChannel openStream(Path streamFile, long size) throws IOException {
+        FileChannel channel = FileChannel.open(streamFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long missing = size - channel.size();
+            if (missing > Files.getFileStore(streamFile).getUsableSpace()) {
+                throw new IOException("Not enough space for " + size + " bytes in " + streamFile.getParent());
+            }
+            if (missing < 0) {
+                channel.truncate(size);
+            } else if (missing > 0) {
+                // Writing the last byte sets the length without writing the rest, which file systems leave sparse.
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            }
+            return channel;
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private static void closeStream(TransferSession session) {
+        session.endInflater();
+        try {
+            session.stream.close();
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to close received data of session {}", session.sessionId, ex);
+        }
+    }
+
+    private static boolean sameContent(JsonObject persisted, JsonObject metadata) {
+        for (String key : new String[]{"checksum", "fileSize", "totalChunks", "chunkSize", "delta"}) {
+            if (!Objects.equals(persisted.get(key), metadata.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Marks the chunks of a persisted bitmap as received; their data is already in place in the stream file.
+     */
+    private void restore(TransferSession session, BitSet persisted) {
+        for (int chunkId = persisted.nextSetBit(0); chunkId >= 0 && chunkId < session.totalChunks; chunkId = persisted.nextSetBit(chunkId + 1)) {
+            session.chunkReceived.set(chunkId);
+            session.receivedChunks++;
+            session.receivedBytes += chunkLength(session, chunkId);
+        }
+        LOGGER.info("Restored {} of {} chunks of session {} from {}", session.receivedChunks, session.totalChunks, session.sessionId, session.sessionDir);
     }
 
     private void handleData(Packet packet, InetAddress address, int port, DatagramSocket socket) throws IOException {
         TransferSession session = sessions.get(packet.getSessionId());
         if (session == null) {
+            Packet verdict = rememberedVerdict(packet.getSessionId());
+            if (verdict != null) {
+                sendPacket(socket, verdict, address, port);
+                return;
+            }
             LOGGER.warn("Received chunk for unknown session {}", packet.getSessionId());
             sendAck(socket, packet.getSessionId(), AckType.RETRY, packet.getChunkId(), "Unknown session", address, port);
             return;
@@ -87,111 +580,873 @@ public class FileReceiver implements UDPServer.PacketHandler {
             sendAck(socket, session.sessionId, AckType.RETRY, chunkId, "Invalid chunk id", address, port);
             return;
         }
-        if (session.chunkReceived[chunkId]) {
-            LOGGER.debug("Chunk {} already received for session {}", chunkId, session.sessionId);
-            sendAck(socket, session.sessionId, AckType.CHUNK, chunkId, "Duplicate chunk", address, port);
+        ByteBuffer payload = packet.payload();
+        synchronized (session) {
+            session.replyTo(socket, address, port);
+            if (session.chunkReceived.get(chunkId) || session.chunkClaimed.get(chunkId)) {
+                // A duplicate means the sender believes the chunk was lost; tell it what we have right away.
+                LOGGER.debug("Chunk {} already received for session {}", chunkId, session.sessionId);
+                sendSelectiveAck(session);
+                return;
+            }
+            session.chunkClaimed.set(chunkId);
+        }
+        PooledBuffer inflated = null;
+        try {
+            if (packet.hasFlag(Packet.FLAG_COMPRESSED)) {
+                inflated = inflate(session, chunkId, payload);
+                payload = inflated.buffer();
+            }
+            writeChunk(session, chunkId, payload.duplicate());
+            chunkStored(session, chunkId, payload, packet.hasFlag(Packet.FLAG_ACK_REQUESTED));
+        } finally {
+            if (inflated != null) {
+                inflated.release();
+            }
+        }
+    }
+
+    /**
+     * @return a pooled buffer holding the inflated chunk, to be released by the caller
+     */
+    private PooledBuffer inflate(TransferSession session, int chunkId, ByteBuffer compressed) throws IOException {
+        long started = ChunkCompressor.cpuTimeNanos();
+        int compressedLength = compressed.remaining();
+        PooledBuffer inflated = buffers.acquire();
+        ByteBuffer chunk = inflated.buffer();
+        try {
+            chunk.limit(Math.min(chunk.capacity(), session.chunkSize > 0 ? session.chunkSize : Packet.MAX_PAYLOAD_SIZE));
+            ChunkCompressor.decompress(session.inflater(), compressed, chunk);
+        } catch (IOException ex) {
+            inflated.release();
+            synchronized (session) {
+                session.chunkClaimed.clear(chunkId);
+            }
+            throw ex;
+        }
+        synchronized (session) {
+            session.compressedChunks++;
+            session.compressedBytes += compressedLength;
+            session.inflatedBytes += chunk.remaining();
+            session.inflateCpuNanos = ChunkCompressor.addCpuTime(session.inflateCpuNanos, started);
+        }
+        return inflated;
+    }
+
+    /**
+     * Keeps the XOR parity of a group of chunks until the group is complete, rebuilding its one missing
+     * chunk as soon as all the others have been stored.
+     */
+    private void handleParity(Packet packet, InetAddress address, int port, DatagramSocket socket) throws IOException {
+        TransferSession session = sessions.get(packet.getSessionId());
+        if (session == null || session.chunkSize <= 0) {
+            LOGGER.debug("Ignoring parity for session {} without known chunk size", packet.getSessionId());
+            return;
+        }
+        int firstChunkId = packet.getChunkId();
+        int groupSize = packet.getTotalChunks();
+        if (firstChunkId < 0 || groupSize < 1 || groupSize > session.totalChunks - firstChunkId) {
+            LOGGER.warn("Received invalid parity group {}+{} for session {}", firstChunkId, groupSize, session.sessionId);
+            return;
+        }
+        ParityGroup group = new ParityGroup(firstChunkId, groupSize, packet.getPayload());
+        synchronized (session) {
+            session.replyTo(socket, address, port);
+            if (session.chunkReceived.nextClearBit(firstChunkId) >= group.endChunkId()) {
+                return;
+            }
+            session.parityGroups.put(firstChunkId, group);
+        }
+        repair(session, group);
+    }
+
+    /**
+     * Claimed chunks are written at their offset in the stream file outside the session lock, so handlers of
+     * one session do not queue behind disk I/O; positional writes to the shared channel do not interfere.
+     */
+    private void writeChunk(TransferSession session, int chunkId, ByteBuffer payload) throws IOException {
+        try {
+            long position = chunkOffset(session, chunkId, payload.remaining());
+            while (payload.hasRemaining()) {
+                position += session.stream.write(payload, position);
+            }
+        } catch (IOException | RuntimeException ex) {
+            synchronized (session) {
+                session.chunkClaimed.clear(chunkId);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Every chunk but the last is one chunk size long and the last one ends the stream, so the offset of a
+     * chunk follows from its id and length even for senders that do not announce their chunk size.
+     */
+    private static long chunkOffset(TransferSession session, int chunkId, int length) {
+        boolean last = chunkId == session.totalChunks - 1;
+        long offset = last ? session.streamSize - length : (long) chunkId * (session.chunkSize > 0 ? session.chunkSize : length);
+        boolean valid = session.chunkSize > 0 ? length == chunkLength(session, chunkId) : offset >= 0 && offset + length <= session.streamSize;
+        if (!valid) {
+            throw new IllegalArgumentException("Chunk " + chunkId + " of session " + session.sessionId + " has invalid length " + length);
+        }
+        return offset;
+    }
+
+    private static int chunkLength(TransferSession session, int chunkId) {
+        return (int) Math.min(session.chunkSize, session.streamSize - (long) chunkId * session.chunkSize);
+    }
+
+    /**
+     * Answers with {@link AckType#NODES} once the sender's hashes of one page of content blocks are stored.
+     * Blocks already hashed are checked against them right away, the others as they complete.
+     */
+    private void handleBlockHashes(Packet packet, InetAddress address, int port, DatagramSocket socket) {
+        TransferSession session = sessions.get(packet.getSessionId());
+        int page = packet.getChunkId();
+        if (session == null) {
+            sendAck(socket, packet.getSessionId(), AckType.RETRY, page, "Unknown session", address, port);
+            return;
+        }
+        ByteBuffer hashes = packet.payload();
+        synchronized (session) {
+            session.replyTo(socket, address, port);
+            // Sessions not hashed by block, such as deltas, are verified after assembly and need no hashes.
+            if (session.blockCount > 0) {
+                int first = page * MerkleTree.ARITY;
+                int count = page < 0 || page > (session.blockCount - 1) / MerkleTree.ARITY ? 0
+                        : Math.min(MerkleTree.ARITY, session.blockCount - first);
+                if (count == 0 || hashes.remaining() != count * MerkleTree.HASH_LENGTH) {
+                    throw new IllegalArgumentException("Invalid block hash page " + page + " for session " + session.sessionId);
+                }
+                hashes.get(session.expectedHashes, first * MerkleTree.HASH_LENGTH, hashes.remaining());
+                session.expectedBlocks.set(first, first + count);
+                for (int block = session.blocksHashed.nextSetBit(first); block >= 0 && block < first + count;
+                     block = session.blocksHashed.nextSetBit(block + 1)) {
+                    checkBlock(session, block);
+                }
+            }
+        }
+        sendAck(socket, session.sessionId, AckType.NODES, page, null, address, port);
+    }
+
+    /**
+     * Hashes every content block the chunk completes, on the fork-join pool, so the file is verified block
+     * by block while it arrives. Blocks are independent of each other, so they are hashed in whatever order
+     * they complete and on all cores at once.
+     */
+    private void hashCompletedBlocks(TransferSession session, int chunkId) {
+        if (session.blockCount == 0) {
+            return;
+        }
+        for (int block = firstBlockOf(session, chunkId); block <= lastBlockOf(session, chunkId); block++) {
+            synchronized (session) {
+                if (session.blocksScheduled.get(block)
+                        || session.chunkReceived.nextClearBit(firstChunkOf(session, block)) < endChunkOf(session, block)) {
+                    continue;
+                }
+                session.blocksScheduled.set(block);
+                session.hashingBlocks++;
+            }
+            int completed = block;
+            ForkJoinPool.commonPool().execute(() -> hashBlock(session, completed));
+        }
+    }
+
+    private void hashBlock(TransferSession session, int block) {
+        byte[] hash = null;
+        PooledBuffer readBack = buffers.acquire();
+        try {
+            hash = MerkleTree.hashLeaf(session.stream, session.streamSize, ChecksumUtil.CONTENT_BLOCK_SIZE, block, readBack.buffer(),
+                    ChecksumUtil.newSha256());
+        } catch (IOException ex) {
+            LOGGER.warn("Cannot hash block {} of session {} while receiving, hashing it before assembly instead", block, session.sessionId, ex);
+        } finally {
+            readBack.release();
+            synchronized (session) {
+                if (hash != null) {
+                    System.arraycopy(hash, 0, session.blockHashes, block * MerkleTree.HASH_LENGTH, MerkleTree.HASH_LENGTH);
+                    session.blocksHashed.set(block);
+                    checkBlock(session, block);
+                } else {
+                    session.blocksScheduled.clear(block);
+                }
+                session.hashingBlocks--;
+                session.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Compares a hashed block with the hash the sender announced for it, if any; the caller holds the session lock.
+     */
+    private static void checkBlock(TransferSession session, int block) {
+        int from = block * MerkleTree.HASH_LENGTH;
+        int to = from + MerkleTree.HASH_LENGTH;
+        if (session.expectedBlocks.get(block) && !Arrays.equals(session.blockHashes, from, to, session.expectedHashes, from, to)) {
+            if (!session.corruptBlocks.get(block)) {
+                LOGGER.warn("Block {} of session {} does not match the hash announced by the sender", block, session.sessionId);
+            }
+            session.corruptBlocks.set(block);
+        }
+    }
+
+    /**
+     * Waits for the blocks still being hashed, then hashes those that were not hashed while they arrived,
+     * such as blocks restored from disk.
+     *
+     * @return the hashes of all content blocks, or {@code null} if the session is not hashed by block or a
+     * block could not be read
+     */
+    private byte[] receivedBlockHashes(TransferSession session) throws IOException {
+        if (session.blockCount == 0) {
+            return null;
+        }
+        BitSet missing;
+        synchronized (session) {
+            awaitHashedBlocks(session);
+            missing = (BitSet) session.blocksScheduled.clone();
+            missing.flip(0, session.blockCount);
+            session.blocksScheduled.set(0, session.blockCount);
+            session.hashingBlocks += missing.cardinality();
+        }
+        for (int block = missing.nextSetBit(0); block >= 0; block = missing.nextSetBit(block + 1)) {
+            int unhashed = block;
+            ForkJoinPool.commonPool().execute(() -> hashBlock(session, unhashed));
+        }
+        synchronized (session) {
+            awaitHashedBlocks(session);
+            return session.blocksHashed.cardinality() < session.blockCount ? null : session.blockHashes.clone();
+        }
+    }
+
+    private static void awaitHashedBlocks(TransferSession session) throws InterruptedIOException {
+        while (session.hashingBlocks > 0) {
+            try {
+                session.wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while hashing session " + session.sessionId);
+            }
+        }
+    }
+
+    private static int firstBlockOf(TransferSession session, int chunkId) {
+        return (int) ((long) chunkId * session.chunkSize / ChecksumUtil.CONTENT_BLOCK_SIZE);
+    }
+
+    private static int lastBlockOf(TransferSession session, int chunkId) {
+        return (int) (((long) chunkId * session.chunkSize + chunkLength(session, chunkId) - 1) / ChecksumUtil.CONTENT_BLOCK_SIZE);
+    }
+
+    private static int firstChunkOf(TransferSession session, int block) {
+        return (int) ((long) block * ChecksumUtil.CONTENT_BLOCK_SIZE / session.chunkSize);
+    }
+
+    /**
+     * @return the chunk after the last one holding bytes of {@code block}; a chunk may hold bytes of two blocks
+     */
+    private static int endChunkOf(TransferSession session, int block) {
+        long end = Math.min(session.streamSize, (long) (block + 1) * ChecksumUtil.CONTENT_BLOCK_SIZE);
+        return (int) ((end - 1) / session.chunkSize) + 1;
+    }
+
+    /**
+     * Reads a stored chunk back into {@code buffer}, which is cleared first.
+     *
+     * @return {@code buffer} flipped to the chunk
+     */
+    private static ByteBuffer readChunk(TransferSession session, int chunkId, ByteBuffer buffer) throws IOException {
+        int length = chunkLength(session, chunkId);
+        if (length > buffer.capacity()) {
+            throw new IOException("Chunk " + chunkId + " of session " + session.sessionId + " exceeds " + buffer.capacity() + " bytes");
+        }
+        buffer.clear().limit(length);
+        long position = (long) chunkId * session.chunkSize;
+        while (buffer.hasRemaining()) {
+            int read = session.stream.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Chunk " + chunkId + " of session " + session.sessionId + " is truncated");
+            }
+            position += read;
+        }
+        return buffer.flip();
+    }
+
+    private void chunkStored(TransferSession session, int chunkId, ByteBuffer data, boolean ackRequested) throws IOException {
+        boolean complete;
+        boolean ackNow;
+        ParityGroup group = null;
+        synchronized (session) {
+            session.chunkReceived.set(chunkId);
+            session.receivedChunks++;
+            session.receivedBytes += data.remaining();
+            session.unacknowledgedChunks++;
+            session.bitmapDirty = true;
+            complete = session.isComplete() && !session.assembling;
+            if (complete) {
+                session.assembling = true;
+            }
+            ackNow = complete || session.unacknowledgedChunks >= ackFrequency || ackRequested;
+            Map.Entry<Integer, ParityGroup> candidate = session.parityGroups.floorEntry(chunkId);
+            if (candidate != null && chunkId < candidate.getValue().endChunkId()) {
+                group = candidate.getValue();
+            }
+        }
+        if (ackNow) {
+            sendSelectiveAck(session);
+        }
+        hashCompletedBlocks(session, chunkId);
+        if (!screenContent(session)) {
             return;
         }
-        Path chunkPath = session.sessionDir.resolve(String.format("chunk-%05d.part", chunkId));
-        Files.write(chunkPath, packet.getPayload(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
-        session.chunkReceived[chunkId] = true;
-        session.receivedChunks++;
-        session.receivedBytes += packet.getPayload().length;
-        sendAck(socket, session.sessionId, AckType.CHUNK, chunkId, "Chunk received", address, port);
-        if (session.isComplete()) {
+        if (complete) {
             LOGGER.info("All chunks received for session {}. Assembling...", session.sessionId);
-            assembleAndValidate(session, socket, address, port);
+            assemble(session);
+        } else if (group != null) {
+            repair(session, group);
+        }
+    }
+
+    /**
+     * Runs the MIME check on the leading bytes of the file as soon as all of them have arrived, so a file
+     * whose content does not match its name is rejected before the bulk of it is sent, and the part received
+     * so far is quarantined. The detector looks no further than those bytes, so the verdict is the one the
+     * assembled file would get; that check still runs as a backstop, and is the only one for deltas, whose
+     * stream is not the file. Without quarantine a suspicious file is stored like any other, so it is
+     * received whole.
+     *
+     * @return whether the session goes on
+     */
+    private boolean screenContent(TransferSession session) throws IOException {
+        int length;
+        long receivedPrefix;
+        synchronized (session) {
+            if (session.screened || session.delta != null || session.chunkSize <= 0 || !securityChecker.isQuarantineEnabled()) {
+                return true;
+            }
+            length = (int) Math.min(session.streamSize, securityChecker.getPrefixLength());
+            receivedPrefix = Math.min(session.streamSize, (long) session.chunkReceived.nextClearBit(0) * session.chunkSize);
+            if (receivedPrefix < length) {
+                return true;
+            }
+            session.screened = true;
+        }
+        ByteBuffer prefix = ByteBuffer.allocate(length);
+        while (prefix.hasRemaining()) {
+            if (session.stream.read(prefix, prefix.position()) < 0) {
+                throw new EOFException("Stream of session " + session.sessionId + " is truncated");
+            }
+        }
+        SecurityResult securityResult = securityChecker.evaluate(prefix.array(), session.fileName);
+        if (securityResult.isSafe()) {
+            return true;
+        }
+        LOGGER.warn("Rejecting session {} after its first {} bytes: {} ({} detected, {} expected)", session.sessionId, length,
+                securityResult.getMessage(), securityResult.getActualMime(), securityResult.getExpectedMime());
+        synchronized (session) {
+            // Keeps the session from being assembled or having its bitmap persisted while it is dropped.
+            session.assembling = true;
+        }
+        sessions.remove(session.sessionId);
+        quarantinePrefix(session, receivedPrefix, securityResult);
+        Packet verdict = Packet.ack(session.sessionId, AckType.REJECTED, -1, securityResult.getMessage());
+        synchronized (instantVerdicts) {
+            instantVerdicts.put(session.sessionId, new InstantVerdict(verdict));
+        }
+        sendFinalAck(session, AckType.REJECTED, securityResult.getMessage());
+        return false;
+    }
+
+    /**
+     * Moves the contiguous part of a rejected session's stream to the quarantine directory, under the file's
+     * name with a {@code .partial} suffix, and drops the rest of the session.
+     */
+    private void quarantinePrefix(TransferSession session, long receivedPrefix, SecurityResult securityResult) throws IOException {
+        try {
+            session.stream.truncate(receivedPrefix);
+        } finally {
+            closeStream(session);
+        }
+        Path targetPath = storageManager.resolveQuarantinePath(session.fileName + ".partial");
+        try {
+            storageManager.move(session.sessionDir.resolve(STREAM_FILE), targetPath);
+            LOGGER.info("First {} bytes of {} from {} stored at {} ({})", receivedPrefix, session.fileName, session.senderPeerId,
+                    targetPath, securityResult.getMessage());
+        } finally {
+            storageManager.cleanupSession(session.sessionId);
+        }
+    }
+
+    /**
+     * Rebuilds the missing chunk of a parity group once every other chunk of the group has been written. Groups
+     * missing more than one chunk wait for retransmissions; complete groups are discarded.
+     */
+    private void repair(TransferSession session, ParityGroup group) throws IOException {
+        int missing = -1;
+        synchronized (session) {
+            for (int chunkId = group.firstChunkId; chunkId < group.endChunkId(); chunkId++) {
+                if (session.chunkReceived.get(chunkId)) {
+                    continue;
+                }
+                if (missing >= 0 || session.chunkClaimed.get(chunkId)) {
+                    return;
+                }
+                missing = chunkId;
+            }
+            session.parityGroups.remove(group.firstChunkId);
+            if (missing < 0) {
+                return;
+            }
+            session.chunkClaimed.set(missing);
+        }
+        byte[] rebuilt = group.parity;
+        PooledBuffer readBack = buffers.acquire();
+        try {
+            for (int chunkId = group.firstChunkId; chunkId < group.endChunkId(); chunkId++) {
+                if (chunkId != missing) {
+                    ParityEncoder.xorInto(rebuilt, readChunk(session, chunkId, readBack.buffer()));
+                }
+            }
+        } catch (IOException ex) {
+            synchronized (session) {
+                session.chunkClaimed.clear(missing);
+            }
+            throw ex;
+        } finally {
+            readBack.release();
+        }
+        int length = chunkLength(session, missing);
+        if (length < 0 || length > rebuilt.length) {
+            LOGGER.warn("Parity of group {}+{} cannot rebuild chunk {} for session {}", group.firstChunkId, group.size, missing, session.sessionId);
+            synchronized (session) {
+                session.chunkClaimed.clear(missing);
+            }
+            return;
+        }
+        writeChunk(session, missing, ByteBuffer.wrap(rebuilt, 0, length));
+        LOGGER.debug("Rebuilt chunk {} of session {} from parity", missing, session.sessionId);
+        // Acknowledge right away so the sender does not retransmit the chunk it believes lost.
+        chunkStored(session, missing, ByteBuffer.wrap(rebuilt, 0, length), true);
+    }
+
+    private void flushSelectiveAcks() {
+        for (TransferSession session : sessions.values()) {
+            try {
+                boolean pending;
+                synchronized (session) {
+                    pending = session.unacknowledgedChunks > 0;
+                }
+                if (pending) {
+                    sendSelectiveAck(session);
+                }
+            } catch (RuntimeException ex) {
+                LOGGER.error("Failed to flush selective ACK for session {}", session.sessionId, ex);
+            }
+        }
+    }
+
+    /**
+     * Persists the received-chunk bitmap of every session that has changed. The bitmap lags the stream
+     * file, never the other way round, so a restored session at worst asks for a few chunks again.
+     */
+    private void persistBitmaps() {
+        for (TransferSession session : sessions.values()) {
+            BitSet snapshot;
+            synchronized (session) {
+                if (!session.bitmapDirty || session.assembling) {
+                    continue;
+                }
+                snapshot = (BitSet) session.chunkReceived.clone();
+                session.bitmapDirty = false;
+            }
+            try {
+                storageManager.writeAtomically(session.sessionDir.resolve(BITMAP_FILE), snapshot.toByteArray());
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.warn("Failed to persist received chunks of session {}", session.sessionId, ex);
+                synchronized (session) {
+                    session.bitmapDirty = true;
+                }
+            }
+        }
+    }
+
+    private void sendSelectiveAck(TransferSession session) {
+        Packet ack;
+        synchronized (session) {
+            if (session.replySocket == null) {
+                return;
+            }
+            ack = SelectiveAck.of(session.chunkReceived, ++session.ackSequence, SelectiveAck.MAX_RANGES).toPacket(session.sessionId);
+            session.unacknowledgedChunks = 0;
+        }
+        sendPacket(session.replySocket, ack, session.replyAddress, session.replyPort);
+    }
+
+    /**
+     * Hands a session whose chunks have all arrived to the post-receive pipeline, telling its sender right
+     * away so that it waits for the verdict instead of timing out while the file is verified and stored.
+     */
+    private void assemble(TransferSession session) {
+        synchronized (session) {
+            session.finalizing = true;
+        }
+        sendFinalAck(session, AckType.FINALIZING, (int) FINALIZING_INTERVAL.toMillis(), null);
+        try {
+            verifiers.execute(() -> {
+                try {
+                    Path assembledFile = assembleAndVerify(session);
+                    if (assembledFile != null) {
+                        storers.execute(() -> store(session, assembledFile));
+                    }
+                } catch (Exception ex) {
+                    finalizingFailed(session, ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // The chunks stay on disk, so the sender resumes the session once the receiver is back.
+            LOGGER.info("Receiver is closing, leaving session {} to be resumed", session.sessionId);
+            finish(session, AckType.RETRY, "Receiver is closing");
         }
     }
 
-    private void assembleAndValidate(TransferSession session, DatagramSocket socket, InetAddress address, int port) throws IOException {
+    /**
+     * Every chunk already sits at its offset in the stream file, so assembling it is a rename, and unless the
+     * chunks carried a delta their blocks were hashed while they arrived, leaving only the root to compute.
+     *
+     * @return the assembled file if it matches the announced checksum, otherwise {@code null} once the sender
+     * has been told
+     */
+    private Path assembleAndVerify(TransferSession session) throws IOException {
+        byte[] blockHashes = receivedBlockHashes(session);
+        session.endInflater();
+        session.stream.close();
+        Path streamFile = session.sessionDir.resolve(STREAM_FILE);
         Path assembledFile = session.sessionDir.resolve(session.fileName + ".assembled");
-        try (OutputStream outputStream = Files.newOutputStream(assembledFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-            for (int i = 0; i < session.totalChunks; i++) {
-                Path chunk = session.sessionDir.resolve(String.format("chunk-%05d.part", i));
-                byte[] data = Files.readAllBytes(chunk);
-                outputStream.write(data);
+        if (session.delta == null) {
+            Files.move(streamFile, assembledFile, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Path deltaFile = assembledFile.resolveSibling(session.fileName + ".delta");
+            Files.move(streamFile, deltaFile, StandardCopyOption.REPLACE_EXISTING);
+            Optional<Path> basis = storageManager.findIncoming(session.fileName);
+            if (basis.isEmpty() || !basisId(basis.get()).equals(session.delta.get("basisId").getAsString())) {
+                LOGGER.warn("Delta basis of session {} changed before it could be applied", session.sessionId);
+                storageManager.cleanupSession(session.sessionId);
+                sessions.remove(session.sessionId);
+                finish(session, AckType.RETRY, "Delta basis changed");
+                return null;
             }
+            DeltaCodec.apply(basis.get(), session.delta.get("blockSize").getAsInt(), deltaFile, assembledFile);
+            LOGGER.info("Rebuilt {} for session {} from {} and a {} byte delta", session.fileName, session.sessionId,
+                    basis.get(), session.streamSize);
+        }
+        if (session.compressedChunks > 0) {
+            LOGGER.info("Session {} inflated {} compressed chunks from {} to {} bytes (ratio {}{})", session.sessionId,
+                    session.compressedChunks, session.compressedBytes, session.inflatedBytes,
+                    String.format("%.2f", ChunkCompressor.ratio(session.inflatedBytes, session.compressedBytes)),
+                    ChunkCompressor.describeCpuTime(session.inflateCpuNanos));
         }
-        String checksum = ChecksumUtil.sha256(assembledFile);
+        MerkleTree received = blockHashes != null ? MerkleTree.fromLeaves(blockHashes)
+                : MerkleTree.build(assembledFile, ChecksumUtil.CONTENT_BLOCK_SIZE);
+        String checksum = received.getRootHex();
         if (!checksum.equalsIgnoreCase(session.expectedChecksum)) {
             LOGGER.warn("Checksum mismatch for session {}. Expected {}, got {}", session.sessionId, session.expectedChecksum, checksum);
+            if (session.delta == null && session.chunkSize > 0) {
+                awaitRepair(session, assembledFile, streamFile, received);
+                return null;
+            }
             storageManager.cleanupSession(session.sessionId);
             sessions.remove(session.sessionId);
-            sendAck(socket, session.sessionId, AckType.RETRY, -1, "Checksum mismatch", address, port);
-            return;
+            finish(session, AckType.RETRY, "Checksum mismatch");
+            return null;
         }
-        SecurityResult securityResult = securityChecker.evaluate(assembledFile);
-        Path targetPath;
-        if (securityResult.isSafe()) {
-            targetPath = storageManager.resolveIncomingPath(session.fileName);
-        } else if (securityChecker.isQuarantineEnabled()) {
-            targetPath = storageManager.resolveQuarantinePath(session.fileName);
-        } else {
-            targetPath = storageManager.resolveIncomingPath(session.fileName);
+        return assembledFile;
+    }
+
+    /**
+     * Inspects a verified file, moves it to its final place and notifies n8n, then gives the sender its verdict.
+     */
+    private void store(TransferSession session, Path assembledFile) {
+        try {
+            SecurityResult securityResult = processor.process(assembledFile, session.fileName, session.fileSize,
+                    session.expectedChecksum, session.senderPeerId).getSecurityResult();
+            LOGGER.info("Session {} finished: {}", session.sessionId, securityResult.getMessage());
+            storageManager.cleanupSession(session.sessionId);
+            sessions.remove(session.sessionId);
+            finish(session, securityResult.isSafe() ? AckType.COMPLETE : AckType.REJECTED, securityResult.getMessage());
+        } catch (Exception ex) {
+            finalizingFailed(session, ex);
         }
-        storageManager.move(assembledFile, targetPath);
-        LOGGER.info("Session {} stored at {} ({})", session.sessionId, targetPath, securityResult.getMessage());
-        storageManager.cleanupSession(session.sessionId);
-        sessions.remove(session.sessionId);
-        AckType ackType = securityResult.isSafe() ? AckType.COMPLETE : AckType.REJECTED;
-        sendAck(socket, session.sessionId, ackType, -1, securityResult.getMessage(), address, port);
-        if (securityResult.isSafe()) {
-            triggerWebhook(session, targetPath, securityResult);
+    }
+
+    private void finalizingFailed(TransferSession session, Exception ex) {
+        LOGGER.error("Failed to finalize session {}", session.sessionId, ex);
+        finish(session, AckType.RETRY, ex.getMessage());
+    }
+
+    /**
+     * Ends the pipeline run of a session, sending the verdict in place of further {@link AckType#FINALIZING} reminders.
+     */
+    private void finish(TransferSession session, AckType verdict, String message) {
+        finish(session, Packet.ack(session.sessionId, verdict, -1, message));
+    }
+
+    private void finish(TransferSession session, Packet verdict) {
+        synchronized (session) {
+            session.finalizing = false;
         }
+        sendFinalPacket(session, verdict);
     }
 
-    private void triggerWebhook(TransferSession session, Path targetPath, SecurityResult result) {
-        if (n8nClient == null) {
-            return;
+    private void remindFinalizing() {
+        for (TransferSession session : sessions.values()) {
+            boolean finalizing;
+            synchronized (session) {
+                finalizing = session.finalizing;
+            }
+            if (finalizing) {
+                sendFinalAck(session, AckType.FINALIZING, (int) FINALIZING_INTERVAL.toMillis(), null);
+            }
         }
-        WebhookPayload payload = WebhookPayload.builder()
-                .withFileName(session.fileName)
-                .withFilePath(targetPath.toAbsolutePath().toString())
-                .withFileSize(session.fileSize)
-                .withChecksum(session.expectedChecksum)
-                .withMimeType(Optional.ofNullable(result.getActualMime()).orElse("unknown"))
-                .withReceivedFrom(session.senderPeerId)
-                .withTimestamp(Instant.now().toEpochMilli())
-                .withSecurityStatus("SAFE")
-                .build();
-        n8nClient.sendAsync(payload);
+    }
+
+    /**
+     * Keeps the chunks of a session that failed verification and reports the blocks that did not match the
+     * hashes announced by the sender. The Merkle tree over the received blocks is kept for a sender that
+     * has to compare it with its own because the blocks could not be named; the session then waits, still
+     * assembling, until the sender names the corrupted chunks.
+     */
+    private void awaitRepair(TransferSession session, Path assembledFile, Path streamFile, MerkleTree tree) throws IOException {
+        Files.move(assembledFile, streamFile, StandardCopyOption.REPLACE_EXISTING);
+        FileChannel stream = openStream(streamFile, session.streamSize);
+        synchronized (session) {
+            session.stream = stream;
+            session.tree = tree;
+        }
+        finish(session, corruptVerdict(session));
+    }
+
+    /**
+     * Names the corrupted blocks unless there are none known or more than one packet can list.
+     */
+    private static Packet corruptVerdict(TransferSession session) {
+        ByteBuffer blockIds;
+        synchronized (session) {
+            int count = session.corruptBlocks.cardinality();
+            blockIds = ByteBuffer.allocate(count * Integer.BYTES > Packet.MAX_PAYLOAD_SIZE ? 0 : count * Integer.BYTES);
+            for (int block = session.corruptBlocks.nextSetBit(0); block >= 0 && blockIds.hasRemaining();
+                 block = session.corruptBlocks.nextSetBit(block + 1)) {
+                blockIds.putInt(block);
+            }
+        }
+        return Packet.corrupt(session.sessionId, blockIds.array());
+    }
+
+    /**
+     * Sends the verdict to wherever the sender last reached us from, which changes when a transfer resumes.
+     */
+    private void sendFinalAck(TransferSession session, AckType ackType, String message) {
+        sendFinalAck(session, ackType, -1, message);
+    }
+
+    private void sendFinalAck(TransferSession session, AckType ackType, int chunkId, String message) {
+        sendFinalPacket(session, Packet.ack(session.sessionId, ackType, chunkId, message));
+    }
+
+    private void sendFinalPacket(TransferSession session, Packet packet) {
+        DatagramSocket socket;
+        InetAddress address;
+        int port;
+        synchronized (session) {
+            socket = session.replySocket;
+            address = session.replyAddress;
+            port = session.replyPort;
+        }
+        sendPacket(socket, packet, address, port);
     }
 
     private void sendAck(DatagramSocket socket, UUID sessionId, AckType ackType, int chunkId, String message, InetAddress address, int port) {
+        sendPacket(socket, Packet.ack(sessionId, ackType, chunkId, message), address, port);
+    }
+
+    private void sendPacket(DatagramSocket socket, Packet ack, InetAddress address, int port) {
         try {
-            Packet ack = Packet.ack(sessionId, ackType, chunkId, message);
-            socket.send(new java.net.DatagramPacket(ack.toBytes(), ack.toBytes().length, address, port));
+            Datagrams.send(socket, ack, new InetSocketAddress(address, port));
         } catch (IOException e) {
-            LOGGER.error("Failed to send ACK {} for session {}", ackType, sessionId, e);
+            LOGGER.error("Failed to send ACK {} for session {}", ack.getAckType().orElse(null), ack.getSessionId(), e);
+        }
+    }
+
+    /**
+     * Lets the post-receive pipeline finish the sessions handed to it, verifiers first since they feed the
+     * storers, before closing the streams of the other sessions. A session the pipeline still holds after
+     * {@link #PIPELINE_DRAIN_TIMEOUT} is left to it; its chunks stay on disk and the sender resumes it later.
+     */
+    @Override
+    public void close() {
+        drain(verifiers, "verifying");
+        drain(storers, "storing");
+        ackScheduler.shutdown();
+        try {
+            ackScheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        persistBitmaps();
+        for (TransferSession session : sessions.values()) {
+            boolean finalizing;
+            synchronized (session) {
+                finalizing = session.finalizing;
+            }
+            if (!finalizing) {
+                closeStream(session);
+            }
+        }
+    }
+
+    private static void drain(ExecutorService stage, String name) {
+        stage.shutdown();
+        try {
+            if (!stage.awaitTermination(PIPELINE_DRAIN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Sessions still {} after {} s, closing without them", name, PIPELINE_DRAIN_TIMEOUT.toSeconds());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
 
     private static final class TransferSession {
+        private static final Pattern HEX_HASH = Pattern.compile("[0-9a-fA-F]{" + 2 * MerkleTree.HASH_LENGTH + "}");
+
         private final UUID sessionId;
         private final String fileName;
         private final String expectedChecksum;
         private final int totalChunks;
         private final long fileSize;
         private final String senderPeerId;
+        private final int chunkSize;
+        // Set when the chunks carry a delta against a stored basis rather than the file itself.
+        private final JsonObject delta;
+        private final long streamSize;
         private final Path sessionDir;
-        private final boolean[] chunkReceived;
+        private final BitSet chunkReceived;
+        private final BitSet chunkClaimed;
+        private final NavigableMap<Integer, ParityGroup> parityGroups = new TreeMap<>();
+        private FileChannel stream;
+        // Built over the received blocks when they fail verification, until the sender names the bad chunks.
+        private MerkleTree tree;
+        // Content blocks hashed as they complete, for whole-file sessions of a known chunk size; none otherwise.
+        private final int blockCount;
+        private final byte[] blockHashes;
+        private final BitSet blocksHashed;
+        // Blocks being hashed or hashed already.
+        private final BitSet blocksScheduled;
+        private int hashingBlocks;
+        // Hashes announced by the sender, which received blocks are checked against.
+        private final byte[] expectedHashes;
+        private final BitSet expectedBlocks;
+        private final BitSet corruptBlocks;
         private int receivedChunks;
         private long receivedBytes;
+        private boolean assembling;
+        // Set while the session is in the post-receive pipeline.
+        private boolean finalizing;
+        // Whether the leading bytes passed the MIME check.
+        private boolean screened;
+        private boolean bitmapDirty;
+        private int unacknowledgedChunks;
+        private int ackSequence;
+        private int compressedChunks;
+        private long compressedBytes;
+        private long inflatedBytes;
+        private long inflateCpuNanos;
+        // Inflates every compressed chunk of the session, which its server lane handles one at a time.
+        private Inflater inflater;
+        private DatagramSocket replySocket;
+        private InetAddress replyAddress;
+        private int replyPort;
 
-        private TransferSession(UUID sessionId, String fileName, String expectedChecksum, int totalChunks, long fileSize, String senderPeerId, Path sessionDir) {
+        private TransferSession(UUID sessionId, String fileName, String expectedChecksum, int totalChunks, long fileSize, String senderPeerId,
+                                int chunkSize, JsonObject delta, Path sessionDir) {
             this.sessionId = sessionId;
             this.fileName = fileName;
             this.expectedChecksum = expectedChecksum;
             this.totalChunks = totalChunks;
             this.fileSize = fileSize;
             this.senderPeerId = senderPeerId;
+            this.chunkSize = chunkSize;
+            this.delta = delta;
+            this.streamSize = delta != null ? delta.get("deltaSize").getAsLong() : fileSize;
             this.sessionDir = sessionDir;
-            this.chunkReceived = new boolean[totalChunks];
+            this.chunkReceived = new BitSet(totalChunks);
+            this.chunkClaimed = new BitSet(totalChunks);
+            this.blockCount = delta == null && chunkSize > 0 ? MerkleTree.leafCount(fileSize, ChecksumUtil.CONTENT_BLOCK_SIZE) : 0;
+            this.blockHashes = new byte[blockCount * MerkleTree.HASH_LENGTH];
+            this.blocksHashed = new BitSet(blockCount);
+            this.blocksScheduled = new BitSet(blockCount);
+            this.expectedHashes = new byte[blockCount * MerkleTree.HASH_LENGTH];
+            this.expectedBlocks = new BitSet(blockCount);
+            this.corruptBlocks = new BitSet(blockCount);
+            if (blockCount == 1 && HEX_HASH.matcher(expectedChecksum).matches()) {
+                // The only block is the whole content, whose hash is the checksum.
+                System.arraycopy(HexFormat.of().parseHex(expectedChecksum), 0, expectedHashes, 0, MerkleTree.HASH_LENGTH);
+                expectedBlocks.set(0);
+            }
+        }
+
+        private void replyTo(DatagramSocket socket, InetAddress address, int port) {
+            this.replySocket = socket;
+            this.replyAddress = address;
+            this.replyPort = port;
         }
 
         private boolean isComplete() {
-            return receivedChunks == totalChunks && Arrays.stream(chunkReceived).allMatch(received -> received);
+            return receivedChunks == totalChunks && chunkReceived.cardinality() == totalChunks;
+        }
+
+        private synchronized Inflater inflater() {
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            return inflater;
+        }
+
+        /**
+         * Frees the native state of the inflater with the stream; chunks repaired later get a new one.
+         */
+        private synchronized void endInflater() {
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+        }
+    }
+
+    private static final class InstantVerdict {
+        private final Packet packet;
+        private final long createdAtNanos = System.nanoTime();
+
+        private InstantVerdict(Packet packet) {
+            this.packet = packet;
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - createdAtNanos > INSTANT_VERDICT_TTL.toNanos();
+        }
+    }
+
+    private static final class ParityGroup {
+        private final int firstChunkId;
+        private final int size;
+        private final byte[] parity;
+
+        private ParityGroup(int firstChunkId, int size, byte[] parity) {
+            this.firstChunkId = firstChunkId;
+            this.size = size;
+            this.parity = parity;
+        }
+
+        private int endChunkId() {
+            return firstChunkId + size;
         }
     }
 }
@@ -2,119 +2,860 @@ package com.p2p.transfer;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.p2p.network.AckType;
+import com.p2p.network.BufferPool;
 import com.p2p.network.Packet;
 import com.p2p.network.PacketType;
+import com.p2p.network.PathMtuProber;
+import com.p2p.network.PooledBuffer;
+import com.p2p.network.SelectiveAck;
 import com.p2p.network.UDPClient;
+import com.p2p.security.MimeDetector;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.OptionalInt;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class FileSender {
 
     private static final Logger LOGGER = LogManager.getLogger(FileSender.class);
 
+    public static final int DEFAULT_WINDOW_SIZE = 64;
+    public static final String DEFAULT_CONGESTION_CONTROL = "aimd";
+    public static final int DEFAULT_PARITY_GROUP_SIZE = 8;
+    // Signature pages requested at once while preparing a delta.
+    private static final int SIGNATURE_WINDOW = 4;
+    // Rounds of repairing corrupted chunks before a transfer that keeps failing verification gives up.
+    private static final int MAX_REPAIRS = 3;
+    private static final Duration PATH_MTU_PROBE_TIMEOUT = Duration.ofMillis(250);
+    // Probed paths are trusted this long before they are probed again, as routes change.
+    private static final Duration PATH_MTU_TTL = Duration.ofMinutes(10);
+
+    private static final Duration MIN_RETRANSMISSION_TIMEOUT = Duration.ofMillis(200);
+    private static final int DUPLICATE_GAP_THRESHOLD = 3;
+    // Timer resolution of the ACK poll; pacing may release this much backlog in one burst.
+    private static final long PACING_BURST_NANOS = Duration.ofMillis(1).toNanos();
+    // Weight of one chunk in the moving loss rate that sizes adaptive parity groups.
+    private static final double LOSS_RATE_GAIN = 1.0 / 64;
+
     private final String peerId;
     private final int chunkSize;
     private final Duration ackTimeout;
     private final int maxRetries;
+    private final int windowSize;
+    private final String congestionControl;
+    private final int parityGroupSize;
+    private final boolean adaptiveParity;
+    private final boolean deltaTransfer;
+    private final MimeDetector mimeDetector;
+    private final PathMtuProber mtuProber;
+    private final BufferPool buffers;
+    private final Map<InetSocketAddress, ProbedPath> probedPaths = new ConcurrentHashMap<>();
+    private final Map<UUID, SessionRate> activeSessions = new ConcurrentHashMap<>();
     private final Gson gson = new Gson();
 
     public FileSender(String peerId, int chunkSize, Duration ackTimeout, int maxRetries) {
-        this.peerId = Objects.requireNonNull(peerId, "peerId");
-        this.chunkSize = chunkSize;
-        this.ackTimeout = ackTimeout;
-        this.maxRetries = maxRetries;
+        this(builder().withPeerId(peerId).withChunkSize(chunkSize).withAckTimeout(ackTimeout).withMaxRetries(maxRetries));
+    }
+
+    private FileSender(Builder builder) {
+        this.peerId = Objects.requireNonNull(builder.peerId, "peerId");
+        this.chunkSize = builder.chunkSize;
+        this.ackTimeout = Objects.requireNonNull(builder.ackTimeout, "ackTimeout");
+        this.maxRetries = builder.maxRetries;
+        if (builder.windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be positive: " + builder.windowSize);
+        }
+        this.windowSize = builder.windowSize;
+        this.congestionControl = Objects.requireNonNull(builder.congestionControl, "congestionControl");
+        CongestionController.create(congestionControl, windowSize); // fail fast on unknown algorithm names
+        if (builder.parityGroupSize != 0 && builder.parityGroupSize < ParityEncoder.MIN_GROUP_SIZE) {
+            throw new IllegalArgumentException("Parity group size must be 0 (disabled) or at least "
+                    + ParityEncoder.MIN_GROUP_SIZE + ": " + builder.parityGroupSize);
+        }
+        this.parityGroupSize = builder.parityGroupSize;
+        this.adaptiveParity = builder.adaptiveParity;
+        this.deltaTransfer = builder.deltaTransfer;
+        this.mimeDetector = builder.compression ? new MimeDetector() : null;
+        this.mtuProber = builder.pathMtuDiscovery ? new PathMtuProber(PATH_MTU_PROBE_TIMEOUT) : null;
+        this.buffers = builder.buffers != null ? builder.buffers : new BufferPool();
+        if (buffers.getBufferSize() < Packet.MAX_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Pooled buffers of " + buffers.getBufferSize() + " bytes cannot hold every chunk size");
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Current pacing rate in bytes per second of every transfer in progress, keyed by session.
+     */
+    public Map<UUID, Double> getSendRates() {
+        Map<UUID, Double> rates = new HashMap<>();
+        activeSessions.forEach((sessionId, rate) -> rates.put(sessionId, rate.bytesPerSecond));
+        return rates;
     }
 
     public void sendFile(Path file, InetSocketAddress target) throws IOException {
+        sendFile(file, target, DedicatedChannel::new);
+    }
+
+    /**
+     * Sends the file over the channel {@code channels} opens for its session; {@link TransferManager} uses
+     * this to run many sessions over one shared socket.
+     */
+    void sendFile(Path file, InetSocketAddress target, SessionChannel.Factory channels) throws IOException {
         Objects.requireNonNull(file, "file");
         Objects.requireNonNull(target, "target");
-        UUID sessionId = UUID.randomUUID();
-        String checksum = ChecksumUtil.sha256(file);
-        try (UDPClient client = new UDPClient(); FileChunker chunker = new FileChunker(file, chunkSize)) {
+        // The content hash is the root of the tree over the blocks, which are hashed on all cores.
+        MerkleTree content = MerkleTree.build(file, ChecksumUtil.CONTENT_BLOCK_SIZE);
+        UUID sessionId = sessionIdFor(content.getRootHex(), target);
+        boolean compress = shouldCompress(file);
+        int sessionChunkSize = chunkSizeFor(target);
+        try (SessionChannel channel = channels.open(sessionId)) {
+            try {
+                sendSession(channel, sessionId, file, content, target, sessionChunkSize, compress);
+            } catch (ChunkSizeRequested request) {
+                LOGGER.info("Receiver asked session {} to use {} byte chunks instead of {}", sessionId, request.chunkSize, sessionChunkSize);
+                if (request.chunkSize < 1 || request.chunkSize > Packet.MAX_PAYLOAD_SIZE) {
+                    throw new IOException("Receiver requested invalid chunk size " + request.chunkSize, request);
+                }
+                sendSession(channel, sessionId, file, content, target, request.chunkSize, compress);
+            }
+        }
+    }
+
+    private void sendSession(SessionChannel channel, UUID sessionId, Path file, MerkleTree content, InetSocketAddress target,
+                             int sessionChunkSize, boolean compress) throws IOException {
+        // Reading a window ahead keeps the next window of chunks in memory by the time the window opens.
+        try (FileChunker chunker = new FileChunker(file, sessionChunkSize, windowSize, buffers)) {
             JsonObject metadata = new JsonObject();
             metadata.addProperty("sessionId", sessionId.toString());
             metadata.addProperty("fileName", file.getFileName().toString());
             metadata.addProperty("fileSize", chunker.getFileSize());
             metadata.addProperty("totalChunks", chunker.getTotalChunks());
-            metadata.addProperty("checksum", checksum);
+            metadata.addProperty("chunkSize", sessionChunkSize);
+            metadata.addProperty("checksum", content.getRootHex());
             metadata.addProperty("senderPeerId", peerId);
             metadata.addProperty("timestamp", Instant.now().toEpochMilli());
+            if (deltaTransfer) {
+                metadata.addProperty("deltaCapable", true);
+            }
+
+            Packet metadataAck = sendMetadata(channel, sessionId, metadata, target,
+                    EnumSet.of(AckType.METADATA, AckType.RESUME, AckType.ALREADY_PRESENT, AckType.DELTA_BASIS));
+            if (metadataAck.getAckType().orElse(AckType.METADATA) == AckType.DELTA_BASIS) {
+                JsonObject basis = JsonParser.parseString(new String(metadataAck.getPayload(), StandardCharsets.UTF_8)).getAsJsonObject();
+                if (sendDelta(channel, sessionId, file, target, metadata, basis, compress)) {
+                    return;
+                }
+                metadata.remove("deltaCapable");
+                metadataAck = sendMetadata(channel, sessionId, metadata, target, EnumSet.of(AckType.METADATA, AckType.RESUME, AckType.ALREADY_PRESENT));
+            }
+            transfer(channel, sessionId, chunker, content, target, metadataAck, compress);
+        }
+    }
 
-            sendWithRetry(client, Packet.metadata(sessionId, gson.toJson(metadata).getBytes()), target, AckType.METADATA, -1);
+    /**
+     * Sends the metadata until one of {@code expectedAcks} answers it, throwing {@link ChunkSizeRequested}
+     * when the receiver asks for another chunk size.
+     */
+    private Packet sendMetadata(SessionChannel channel, UUID sessionId, JsonObject metadata, InetSocketAddress target,
+                                Set<AckType> expectedAcks) throws IOException {
+        Set<AckType> acks = EnumSet.copyOf(expectedAcks);
+        acks.add(AckType.CHUNK_SIZE);
+        Packet ack = sendWithRetry(channel, Packet.metadata(sessionId, gson.toJson(metadata).getBytes()), target, acks, -1);
+        if (ack.getAckType().orElse(AckType.METADATA) == AckType.CHUNK_SIZE) {
+            throw new ChunkSizeRequested(ack.getChunkId());
+        }
+        return ack;
+    }
+
+    /**
+     * Chunk size for a session to {@code target}: the largest that fits the probed path MTU when discovery
+     * is enabled, the configured size otherwise or when the peer does not answer probes.
+     */
+    private int chunkSizeFor(InetSocketAddress target) {
+        if (mtuProber == null) {
+            return chunkSize;
+        }
+        ProbedPath cached = probedPaths.get(target);
+        if (cached != null && !cached.isExpired()) {
+            return cached.chunkSize;
+        }
+        int size = chunkSize;
+        try {
+            OptionalInt datagramSize = mtuProber.probe(target);
+            if (datagramSize.isPresent()) {
+                size = datagramSize.getAsInt() - Packet.HEADER_SIZE;
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Path MTU discovery towards {} failed, using {} byte chunks", target, chunkSize, ex);
+        }
+        probedPaths.put(target, new ProbedPath(size));
+        return size;
+    }
+
+    /**
+     * Compression is skipped up front for content whose MIME type says it is compressed already.
+     */
+    private boolean shouldCompress(Path file) {
+        if (mimeDetector == null) {
+            return false;
+        }
+        String mimeType;
+        try {
+            mimeType = mimeDetector.detect(file);
+        } catch (IOException ex) {
+            LOGGER.debug("Cannot detect MIME type of {}, trying compression", file, ex);
+            return true;
+        }
+        boolean compressible = ChunkCompressor.isCompressible(mimeType);
+        LOGGER.debug("{} is {}, {}", file.getFileName(), mimeType, compressible ? "compressing chunks" : "sending chunks uncompressed");
+        return compressible;
+    }
+
+    /**
+     * Streams whatever the receiver still lacks after accepting the metadata, then waits for its verdict.
+     * Chunks of the blocks the receiver reports as {@link AckType#CORRUPT} are sent again.
+     *
+     * @param content the Merkle tree over the blocks of the file, or {@code null} when streaming a delta,
+     *                which the receiver only verifies once it is applied
+     */
+    private void transfer(SessionChannel channel, UUID sessionId, FileChunker chunker, MerkleTree content, InetSocketAddress target,
+                          Packet metadataAck, boolean compress) throws IOException {
+        AckType metadataAckType = metadataAck.getAckType().orElse(AckType.METADATA);
+        if (metadataAckType == AckType.ALREADY_PRESENT) {
+            LOGGER.info("Transfer session {} completed without sending chunks: receiver already holds the content", sessionId);
+            return;
+        }
+        BitSet alreadyReceived = new BitSet(chunker.getTotalChunks());
+        if (metadataAckType == AckType.RESUME) {
+            alreadyReceived = SelectiveAck.fromPacket(metadataAck).toBitSet(chunker.getTotalChunks());
+            LOGGER.info("Resuming session {}: receiver already holds {} of {} chunks",
+                    sessionId, alreadyReceived.cardinality(), chunker.getTotalChunks());
+        } else {
             LOGGER.info("Metadata acknowledged for session {} ({} bytes)", sessionId, chunker.getFileSize());
+        }
+        sendBlockHashes(channel, sessionId, target, content);
+
+        streamChunks(channel, sessionId, chunker, target, alreadyReceived, compress);
+
+        LOGGER.info("All chunks sent for session {}. Awaiting completion ACK", sessionId);
+        Packet completionAck = awaitCompletion(channel, sessionId);
+        for (int repairs = 0; completionAck.getAckType().orElse(AckType.RETRY) == AckType.CORRUPT && repairs < MAX_REPAIRS; repairs++) {
+            repair(channel, sessionId, chunker, content, target, completionAck, compress);
+            completionAck = awaitCompletion(channel, sessionId);
+        }
+        if (completionAck.getAckType().orElse(AckType.RETRY) != AckType.COMPLETE) {
+            throw new IOException("Unexpected completion acknowledgement: " + completionAck);
+        }
+        LOGGER.info("Transfer session {} completed successfully", sessionId);
+    }
+
+    /**
+     * Sends the receiver the hashes of the content blocks, so it checks every block as soon as its chunks
+     * have arrived. Content of a single block needs none, since its hash is the checksum.
+     */
+    private void sendBlockHashes(SessionChannel channel, UUID sessionId, InetSocketAddress target, MerkleTree content) throws IOException {
+        if (content == null || content.getLeafCount() <= 1) {
+            return;
+        }
+        for (int page = 0; page < content.getPageCount(0); page++) {
+            sendWithRetry(channel, Packet.blockHashes(sessionId, page, content.encodePage(0, page)), target, EnumSet.of(AckType.NODES), page);
+        }
+    }
+
+    /**
+     * Tells the receiver which chunks belong to the blocks it found corrupted and streams just those again.
+     * A receiver that cannot name the blocks has its Merkle tree compared with the one of the file instead.
+     */
+    private void repair(SessionChannel channel, UUID sessionId, FileChunker chunker, MerkleTree content, InetSocketAddress target,
+                        Packet corruptAck, boolean compress) throws IOException {
+        if (content == null) {
+            throw new IOException("Receiver reported delta session " + sessionId + " corrupted");
+        }
+        BitSet blocks = new BitSet();
+        ByteBuffer blockIds = corruptAck.payload();
+        while (blockIds.remaining() >= Integer.BYTES) {
+            int block = blockIds.getInt();
+            if (block >= 0 && block < content.getLeafCount()) {
+                blocks.set(block);
+            }
+        }
+        if (blocks.isEmpty()) {
+            blocks = findCorruptBlocks(channel, sessionId, target, content);
+        }
+        if (blocks.isEmpty()) {
+            throw new IOException("Receiver reported session " + sessionId + " corrupted but holds the same blocks");
+        }
+        BitSet corrupt = new BitSet(chunker.getTotalChunks());
+        for (int block = blocks.nextSetBit(0); block >= 0; block = blocks.nextSetBit(block + 1)) {
+            long from = (long) block * ChecksumUtil.CONTENT_BLOCK_SIZE;
+            long to = Math.min(chunker.getFileSize(), from + ChecksumUtil.CONTENT_BLOCK_SIZE);
+            corrupt.set((int) (from / chunker.getChunkSize()), (int) ((to - 1) / chunker.getChunkSize()) + 1);
+        }
+        LOGGER.warn("Receiver of session {} holds {} corrupted blocks, sending their {} chunks again", sessionId, blocks.cardinality(),
+                corrupt.cardinality());
+        BitSet alreadyReceived = null;
+        int maxIds = Packet.MAX_PAYLOAD_SIZE / Integer.BYTES;
+        for (int from = corrupt.nextSetBit(0); from >= 0; ) {
+            ByteBuffer chunkIds = ByteBuffer.allocate(Math.min(maxIds, corrupt.cardinality()) * Integer.BYTES);
+            for (; from >= 0 && chunkIds.hasRemaining(); from = corrupt.nextSetBit(from + 1)) {
+                chunkIds.putInt(from);
+            }
+            Packet resume = sendWithRetry(channel, Packet.repair(sessionId, Arrays.copyOf(chunkIds.array(), chunkIds.position())), target,
+                    EnumSet.of(AckType.RESUME), -1);
+            alreadyReceived = SelectiveAck.fromPacket(resume).toBitSet(chunker.getTotalChunks());
+        }
+        streamChunks(channel, sessionId, chunker, target, alreadyReceived, compress);
+    }
+
+    /**
+     * Walks both trees down from the root, fetching from the receiver only the pages below nodes that differ.
+     *
+     * @return the blocks whose hashes differ
+     */
+    private BitSet findCorruptBlocks(SessionChannel channel, UUID sessionId, InetSocketAddress target, MerkleTree tree) throws IOException {
+        BitSet differing = new BitSet();
+        if (tree.getLeafCount() == 0) {
+            return differing;
+        }
+        // The root has no parent to name it, so it is page 0 of the top level and compared like any other page.
+        int top = tree.getHeight() - 1;
+        tree.diffPage(top, 0, fetchNodes(channel, sessionId, target, top, 0), differing);
+        for (int level = top - 1; level >= 0 && !differing.isEmpty(); level--) {
+            BitSet children = new BitSet();
+            for (int node = differing.nextSetBit(0); node >= 0; node = differing.nextSetBit(node + 1)) {
+                tree.diffPage(level, node, fetchNodes(channel, sessionId, target, level, node), children);
+            }
+            differing = children;
+        }
+        return differing;
+    }
+
+    private ByteBuffer fetchNodes(SessionChannel channel, UUID sessionId, InetSocketAddress target, int level, int page) throws IOException {
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            channel.send(Packet.nodeRequest(sessionId, level, page), target);
+            long deadline = System.nanoTime() + ackTimeout.toNanos();
+            while (deadline - System.nanoTime() > 0) {
+                Packet ack = channel.poll(Duration.ofNanos(deadline - System.nanoTime()));
+                if (ack == null) {
+                    continue;
+                }
+                AckType ackType = ack.getAckType().orElse(AckType.RETRY);
+                if (ackType == AckType.NODES && ack.getTotalChunks() == level && ack.getChunkId() == page) {
+                    return ack.payload();
+                } else if (ackType == AckType.REJECTED) {
+                    throw new IOException("Receiver cannot locate corrupted blocks of session " + sessionId + ": "
+                            + new String(ack.getPayload(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        throw new SocketTimeoutException("Timed out fetching Merkle tree page " + page + " of level " + level + " for session " + sessionId);
+    }
+
+    /**
+     * Sends {@code file} as a delta against the older copy the receiver offered: fetches the copy's block
+     * signatures, encodes the delta into a temporary file and streams that in place of the file.
+     *
+     * @return {@code false} when the delta cannot be built or would not be smaller than the file, in which
+     * case the whole file has to be sent
+     */
+    private boolean sendDelta(SessionChannel channel, UUID sessionId, Path file, InetSocketAddress target, JsonObject metadata,
+                              JsonObject basis, boolean compress) throws IOException {
+        Path deltaFile = Files.createTempFile("delta-" + sessionId, ".bin");
+        try {
+            long deltaSize;
+            try {
+                BlockSignatures signatures = fetchSignatures(channel, sessionId, target, metadata.get("fileName").getAsString(), basis);
+                if (signatures == null) {
+                    return false;
+                }
+                deltaSize = DeltaCodec.encode(file, signatures, deltaFile);
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.warn("Cannot build delta for session {}, sending the whole file", sessionId, ex);
+                return false;
+            }
+            long fileSize = metadata.get("fileSize").getAsLong();
+            if (deltaSize >= fileSize) {
+                LOGGER.info("Delta for session {} is no smaller than the file ({} bytes), sending the whole file", sessionId, fileSize);
+                return false;
+            }
+            LOGGER.info("Sending session {} as a {} byte delta instead of {} bytes", sessionId, deltaSize, fileSize);
+            try (FileChunker deltaChunker = new FileChunker(deltaFile, metadata.get("chunkSize").getAsInt(), windowSize, buffers)) {
+                JsonObject delta = new JsonObject();
+                delta.addProperty("basisId", basis.get("basisId").getAsString());
+                delta.addProperty("blockSize", basis.get("blockSize").getAsInt());
+                delta.addProperty("deltaSize", deltaSize);
+                JsonObject deltaMetadata = metadata.deepCopy();
+                deltaMetadata.remove("deltaCapable");
+                deltaMetadata.addProperty("totalChunks", deltaChunker.getTotalChunks());
+                deltaMetadata.add("delta", delta);
+                Packet metadataAck = sendMetadata(channel, sessionId, deltaMetadata, target,
+                        EnumSet.of(AckType.METADATA, AckType.RESUME, AckType.ALREADY_PRESENT));
+                transfer(channel, sessionId, deltaChunker, null, target, metadataAck, compress);
+            }
+            return true;
+        } finally {
+            Files.deleteIfExists(deltaFile);
+        }
+    }
 
-            for (FileChunker.Chunk chunk : chunker) {
-                boolean delivered = false;
-                int attempts = 0;
-                while (!delivered && attempts <= maxRetries) {
-                    attempts++;
-                    Packet dataPacket = Packet.data(sessionId, chunk.getIndex(), chunk.getTotalChunks(), chunk.getData());
-                    client.send(dataPacket, target);
+    /**
+     * Requests the signature pages of the offered basis, {@link #SIGNATURE_WINDOW} at a time.
+     *
+     * @return the signatures, or {@code null} if the receiver no longer has the basis
+     */
+    private BlockSignatures fetchSignatures(SessionChannel channel, UUID sessionId, InetSocketAddress target, String fileName,
+                                            JsonObject basis) throws IOException {
+        BlockSignatures signatures = new BlockSignatures(basis.get("basisSize").getAsLong(), basis.get("blockSize").getAsInt());
+        JsonObject request = new JsonObject();
+        request.addProperty("fileName", fileName);
+        request.addProperty("basisId", basis.get("basisId").getAsString());
+        request.addProperty("blockSize", signatures.getBlockSize());
+        byte[] requestBytes = gson.toJson(request).getBytes(StandardCharsets.UTF_8);
+        BitSet missing = new BitSet(signatures.getPageCount());
+        missing.set(0, signatures.getPageCount());
+        int timeouts = 0;
+        while (!missing.isEmpty()) {
+            BitSet requested = new BitSet();
+            for (int page = missing.nextSetBit(0); page >= 0 && requested.cardinality() < SIGNATURE_WINDOW; page = missing.nextSetBit(page + 1)) {
+                channel.send(Packet.signatureRequest(sessionId, page, requestBytes), target);
+                requested.set(page);
+            }
+            long deadline = System.nanoTime() + ackTimeout.toNanos();
+            boolean progress = false;
+            while (requested.intersects(missing) && deadline - System.nanoTime() > 0) {
+                Packet ack = channel.poll(Duration.ofNanos(deadline - System.nanoTime()));
+                if (ack == null) {
+                    continue;
+                }
+                AckType ackType = ack.getAckType().orElse(AckType.RETRY);
+                if (ackType == AckType.SIGNATURES && missing.get(ack.getChunkId())) {
+                    signatures.decodePage(ack.getChunkId(), ack.getPayload());
+                    missing.clear(ack.getChunkId());
+                    progress = true;
+                } else if (ackType == AckType.REJECTED) {
+                    LOGGER.info("Receiver withdrew the delta basis of session {}: {}", sessionId, new String(ack.getPayload(), StandardCharsets.UTF_8));
+                    return null;
+                }
+            }
+            if (!progress && ++timeouts > maxRetries) {
+                throw new SocketTimeoutException("Timed out fetching block signatures for session " + sessionId);
+            }
+        }
+        LOGGER.debug("Fetched {} block signatures for session {}", signatures.getBlockCount(), sessionId);
+        return signatures;
+    }
+
+    /**
+     * Transfers are keyed by content, sender and target rather than by attempt, so a retried transfer of the
+     * same file lands in the receiver's existing session and resumes from the chunks it already holds, while
+     * sends of one file to several peers are separate sessions.
+     */
+    private UUID sessionIdFor(String checksum, InetSocketAddress target) {
+        String key = peerId + ":" + target.getHostString() + ":" + target.getPort() + ":" + checksum;
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Keeps up to {@code windowSize} chunks in flight, bounded further by the congestion window and
+     * paced over the smoothed RTT. Chunks are retired by selective ACKs (or per-chunk ACKs from older
+     * receivers); a chunk is sent again when a chunk sent after it has been acknowledged first, or when
+     * its retransmission timeout expires. With forward error correction enabled a parity packet follows
+     * every group of first transmissions; parity always covers the uncompressed chunks.
+     */
+    private void streamChunks(SessionChannel channel, UUID sessionId, FileChunker chunker, InetSocketAddress target,
+                              BitSet alreadyReceived, boolean compress) throws IOException {
+        ChunkStream stream = new ChunkStream(channel, sessionId, target, chunker.getTotalChunks(), chunker.getChunkSize(), compress);
+        stream.acknowledged = alreadyReceived.cardinality();
+        Iterator<FileChunker.Chunk> chunks = chunker.iterator(alreadyReceived);
+        activeSessions.put(sessionId, stream.rate);
+        try {
+            while (stream.acknowledged < stream.totalChunks) {
+                int window = Math.min(windowSize, stream.congestion.getCongestionWindow());
+                long now = System.nanoTime();
+                while (stream.inFlight.size() < window && chunks.hasNext() && now - stream.nextSendNanos >= 0) {
+                    FileChunker.Chunk chunk = chunks.next();
                     try {
-                        Packet ack = awaitAck(client, sessionId);
-                        if (ack.getAckType().orElse(AckType.RETRY) == AckType.CHUNK && ack.getChunkId() == chunk.getIndex()) {
-                            delivered = true;
-                            LOGGER.debug("Chunk {} of {} acknowledged", chunk.getIndex(), chunk.getTotalChunks());
-                        } else if (ack.getAckType().orElse(AckType.RETRY) == AckType.RETRY) {
-                            LOGGER.warn("Chunk {} requested retry: {}", chunk.getIndex(), new String(ack.getPayload(), StandardCharsets.UTF_8));
-                        } else if (ack.getAckType().orElse(AckType.RETRY) == AckType.REJECTED) {
-                            throw new IOException("Transfer rejected by receiver: " + new String(ack.getPayload(), StandardCharsets.UTF_8));
+                        boolean last = !chunks.hasNext();
+                        byte flags = stream.ackRequestDue(window) || last ? Packet.FLAG_ACK_REQUESTED : 0;
+                        PooledBuffer payload = stream.compressor != null ? buffers.acquire() : null;
+                        if (payload != null && stream.compressor.compress(chunk.getData(), payload.buffer())) {
+                            flags |= Packet.FLAG_COMPRESSED;
+                        } else {
+                            if (payload != null) {
+                                payload.release();
+                            }
+                            payload = chunk.getBuffer().retain();
+                            payload.buffer().position(0).limit(chunk.getLength());
+                        }
+                        stream.send(Packet.data(sessionId, chunk.getIndex(), chunk.getTotalChunks(), payload.buffer(), flags), payload);
+                        if (stream.parity != null) {
+                            for (Packet parityPacket : stream.parity.add(chunk.getIndex(), chunk.getData(), last, stream.lossRate)) {
+                                stream.sendParity(parityPacket);
+                            }
                         }
-                    } catch (SocketTimeoutException ex) {
-                        LOGGER.warn("Timeout waiting for ack on chunk {} (attempt {}/{})", chunk.getIndex(), attempts, maxRetries);
+                    } finally {
+                        chunk.release();
                     }
+                    now = System.nanoTime();
+                }
+
+                Duration wait = stream.untilNextExpiry();
+                if (stream.inFlight.size() < window && chunks.hasNext()) {
+                    wait = Duration.ofNanos(Math.max(0, Math.min(wait.toNanos(), stream.nextSendNanos - now)));
                 }
-                if (!delivered) {
-                    throw new IOException("Failed to deliver chunk " + chunk.getIndex() + " after " + maxRetries + " retries");
+                Packet ack = channel.poll(wait);
+                if (ack != null) {
+                    stream.onAck(ack);
                 }
+                stream.retransmitExpired();
             }
-
-            LOGGER.info("All chunks sent for session {}. Awaiting completion ACK", sessionId);
-            Packet completionAck = awaitAck(client, sessionId);
-            if (completionAck.getAckType().orElse(AckType.RETRY) != AckType.COMPLETE) {
-                throw new IOException("Unexpected completion acknowledgement: " + completionAck);
+            LOGGER.info("Session {} finished streaming at {} KiB/s (cwnd {}, srtt {} us, {} parity packets, loss rate {})", sessionId,
+                    (long) (stream.rate.bytesPerSecond / 1024), stream.congestion.getCongestionWindow(), stream.rtt.getSmoothedRttNanos() / 1000,
+                    stream.paritySent, String.format("%.4f", stream.lossRate));
+            if (stream.compressor != null) {
+                LOGGER.info("Session {} {}", sessionId, stream.compressor.describe());
+            }
+        } finally {
+            activeSessions.remove(sessionId);
+            stream.inFlight.values().forEach(entry -> entry.payload.release());
+            if (stream.compressor != null) {
+                stream.compressor.close();
             }
-            LOGGER.info("Transfer session {} completed successfully", sessionId);
         }
     }
 
-    private void sendWithRetry(UDPClient client, Packet packet, InetSocketAddress target, AckType expectedAck, int chunkId) throws IOException {
+    private Packet sendWithRetry(SessionChannel channel, Packet packet, InetSocketAddress target, Set<AckType> expectedAcks, int chunkId) throws IOException {
         int attempts = 0;
         while (attempts <= maxRetries) {
             attempts++;
-            client.send(packet, target);
+            channel.send(packet, target);
             try {
-                Packet ack = awaitAck(client, packet.getSessionId());
-                if (ack.getAckType().orElse(AckType.RETRY) == expectedAck && (chunkId < 0 || ack.getChunkId() == chunkId)) {
-                    return;
+                Packet ack = awaitAck(channel, packet.getSessionId());
+                if (expectedAcks.contains(ack.getAckType().orElse(AckType.RETRY)) && (chunkId < 0 || ack.getChunkId() == chunkId)) {
+                    return ack;
                 }
                 if (ack.getAckType().orElse(AckType.RETRY) == AckType.REJECTED) {
                     throw new IOException("Transfer rejected by receiver: " + new String(ack.getPayload(), StandardCharsets.UTF_8));
                 }
             } catch (SocketTimeoutException ex) {
-                LOGGER.warn("Timeout waiting for {} ack (attempt {}/{})", expectedAck, attempts, maxRetries);
+                LOGGER.warn("Timeout waiting for {} ack (attempt {}/{})", expectedAcks, attempts, maxRetries);
             }
         }
-        throw new IOException("Failed to obtain " + expectedAck + " acknowledgement after " + maxRetries + " retries");
+        throw new IOException("Failed to obtain " + expectedAcks + " acknowledgement after " + maxRetries + " retries");
     }
 
-    private Packet awaitAck(UDPClient client, UUID sessionId) throws IOException {
+    /**
+     * Waits for the receiver's verdict. Every {@link AckType#FINALIZING} the receiver sends while it verifies
+     * and stores the file restarts the timeout, stretched to twice the reminder interval it announces, so only
+     * a receiver that stopped answering makes this time out.
+     */
+    private Packet awaitCompletion(SessionChannel channel, UUID sessionId) throws IOException {
         long deadline = System.nanoTime() + ackTimeout.toNanos();
         while (System.nanoTime() < deadline) {
-            Duration remaining = Duration.ofNanos(Math.max(0, deadline - System.nanoTime()));
-            try {
-                Packet packet = client.receive(remaining);
+            Packet ack = channel.poll(Duration.ofNanos(deadline - System.nanoTime()));
+            if (ack != null && ack.getAckType().orElse(null) == AckType.FINALIZING) {
+                long reminderNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ack.getChunkId()));
+                deadline = System.nanoTime() + Math.max(ackTimeout.toNanos(), 2 * reminderNanos);
+            } else if (ack != null && !isProgressAck(ack)) {
+                return ack;
+            }
+        }
+        throw new SocketTimeoutException("Timed out waiting for completion ACK for session " + sessionId);
+    }
+
+    private static boolean isProgressAck(Packet ack) {
+        AckType ackType = ack.getAckType().orElse(AckType.RETRY);
+        return ackType == AckType.CHUNK || ackType == AckType.SELECTIVE;
+    }
+
+    private Packet awaitAck(SessionChannel channel, UUID sessionId) throws IOException {
+        long deadline = System.nanoTime() + ackTimeout.toNanos();
+        while (System.nanoTime() < deadline) {
+            Packet packet = channel.poll(Duration.ofNanos(deadline - System.nanoTime()));
+            if (packet != null) {
+                return packet;
+            }
+        }
+        throw new SocketTimeoutException("Timed out waiting for ACK for session " + sessionId);
+    }
+
+    /**
+     * Window state of one transfer: chunks in flight, RTT estimate and congestion control.
+     */
+    private final class ChunkStream {
+        private final SessionChannel channel;
+        private final UUID sessionId;
+        private final InetSocketAddress target;
+        private final int totalChunks;
+        // Negotiated for this session; shadows the configured chunk size.
+        private final int chunkSize;
+        private final Map<Integer, InFlightChunk> inFlight = new LinkedHashMap<>();
+        private final CongestionController congestion = CongestionController.create(congestionControl, windowSize);
+        private final RttEstimator rtt = new RttEstimator();
+        private final SessionRate rate = new SessionRate();
+        private final ParityEncoder parity;
+        private final ChunkCompressor compressor;
+        private int acknowledged;
+        private int paritySent;
+        // Moving fraction of chunks lost, counting fast retransmits and timeouts.
+        private double lossRate;
+        private long nextSendNanos = System.nanoTime();
+        // Send time of the most recently sent chunk known to have arrived; anything older still in flight is lost.
+        private long latestDeliveredSentNanos = System.nanoTime();
+        private int latestAckSequence;
+        private int sentSinceAckRequest;
+
+        private ChunkStream(SessionChannel channel, UUID sessionId, InetSocketAddress target, int totalChunks, int chunkSize,
+                            boolean compress) {
+            this.channel = channel;
+            this.sessionId = sessionId;
+            this.target = target;
+            this.totalChunks = totalChunks;
+            this.chunkSize = chunkSize;
+            this.parity = parityGroupSize > 0 ? new ParityEncoder(sessionId, chunkSize, parityGroupSize, adaptiveParity) : null;
+            this.compressor = compress ? new ChunkCompressor() : null;
+            // Seeded with the loss rate the configured group size is meant for, so adaptive groups start there.
+            this.lossRate = parityGroupSize > 0 ? 0.5 / parityGroupSize : 0;
+        }
+
+        /**
+         * @param payload the buffer the packet views, released once the chunk is acknowledged
+         */
+        private void send(Packet packet, PooledBuffer payload) throws IOException {
+            InFlightChunk entry = new InFlightChunk(packet, payload);
+            inFlight.put(packet.getChunkId(), entry);
+            entry.transmit(channel, target);
+            paced();
+        }
+
+        /**
+         * Parity packets are paced like chunks but are never tracked or retransmitted.
+         */
+        private void sendParity(Packet packet) throws IOException {
+            channel.send(packet, target);
+            paritySent++;
+            paced();
+        }
+
+        private void paced() {
+            long now = System.nanoTime();
+            nextSendNanos = Math.max(nextSendNanos, now - PACING_BURST_NANOS) + congestion.getPacingIntervalNanos(rtt);
+        }
+
+        private void lost() {
+            lossRate += (1 - lossRate) * LOSS_RATE_GAIN;
+            congestion.onLoss(rtt);
+        }
+
+        /**
+         * Requests an immediate ACK at least twice per window, so a receiver batching its selective
+         * ACKs never leaves a small window waiting for its ACK timer.
+         */
+        private boolean ackRequestDue(int window) {
+            if (++sentSinceAckRequest >= Math.max(1, window / 2)) {
+                sentSinceAckRequest = 0;
+                return true;
+            }
+            return false;
+        }
+
+        private void onAck(Packet ack) throws IOException {
+            AckType ackType = ack.getAckType().orElse(AckType.RETRY);
+            if (ackType == AckType.SELECTIVE) {
+                onSelectiveAck(SelectiveAck.fromPacket(ack));
+            } else if (ackType == AckType.CHUNK) {
+                InFlightChunk entry = inFlight.remove(ack.getChunkId());
+                if (entry != null) {
+                    delivered(List.of(entry));
+                    LOGGER.debug("Chunk {} of {} acknowledged", ack.getChunkId(), totalChunks);
+                }
+            } else if (ackType == AckType.RETRY) {
+                LOGGER.warn("Chunk {} requested retry: {}", ack.getChunkId(), new String(ack.getPayload(), StandardCharsets.UTF_8));
+                InFlightChunk entry = inFlight.get(ack.getChunkId());
+                if (entry != null) {
+                    retransmit(entry);
+                }
+            } else if (ackType == AckType.REJECTED) {
+                throw new IOException("Transfer rejected by receiver: " + new String(ack.getPayload(), StandardCharsets.UTF_8));
+            }
+        }
+
+        private void onSelectiveAck(SelectiveAck sack) throws IOException {
+            if (sack.getSequence() - latestAckSequence <= 0) {
+                LOGGER.debug("Session {}: ignoring stale {}", sessionId, sack);
+                return;
+            }
+            latestAckSequence = sack.getSequence();
+            List<InFlightChunk> newlyAcked = new ArrayList<>();
+            Iterator<InFlightChunk> iterator = inFlight.values().iterator();
+            while (iterator.hasNext()) {
+                InFlightChunk entry = iterator.next();
+                if (sack.isAcknowledged(entry.packet.getChunkId())) {
+                    iterator.remove();
+                    newlyAcked.add(entry);
+                }
+            }
+            delivered(newlyAcked);
+            LOGGER.debug("Session {}: {} ({} chunks newly acknowledged)", sessionId, sack, newlyAcked.size());
+
+            // A gap below the highest acknowledged chunk is lost once it was sent more than a quarter RTT
+            // before a chunk that has been delivered and DUPLICATE_GAP_THRESHOLD selective ACKs reported it,
+            // which tolerates chunks overtaking each other on the way or inside the receiver.
+            long reorderWindow = rtt.getSmoothedRttNanos() / 4;
+            for (InFlightChunk entry : inFlight.values()) {
+                if (entry.packet.getChunkId() < sack.getHighestAcknowledged()
+                        && latestDeliveredSentNanos - reorderWindow - entry.sentAtNanos > 0
+                        && ++entry.gapReports >= DUPLICATE_GAP_THRESHOLD) {
+                    LOGGER.debug("Chunk {} reported missing, retransmitting", entry.packet.getChunkId());
+                    lost();
+                    retransmit(entry);
+                }
+            }
+        }
+
+        private void delivered(List<InFlightChunk> entries) {
+            if (entries.isEmpty()) {
+                return;
+            }
+            InFlightChunk latest = null;
+            for (InFlightChunk entry : entries) {
+                entry.payload.release();
+                if (latest == null || entry.sentAtNanos - latest.sentAtNanos > 0) {
+                    latest = entry;
+                }
+            }
+            // Karn's rule: a retransmitted chunk gives no unambiguous RTT sample.
+            if (latest.attempts == 1) {
+                rtt.addSample(System.nanoTime() - latest.sentAtNanos);
+            }
+            if (latest.sentAtNanos - latestDeliveredSentNanos > 0) {
+                latestDeliveredSentNanos = latest.sentAtNanos;
+            }
+            acknowledged += entries.size();
+            lossRate *= Math.pow(1 - LOSS_RATE_GAIN, entries.size());
+            congestion.onAck(entries.size(), rtt);
+            rate.bytesPerSecond = congestion.getChunkRate(rtt) * chunkSize;
+        }
+
+        private void retransmitExpired() throws IOException {
+            long now = System.nanoTime();
+            for (InFlightChunk entry : inFlight.values()) {
+                if (now - entry.sentAtNanos >= retransmissionTimeout(entry).toNanos()) {
+                    if (++entry.timeouts > maxRetries) {
+                        throw new IOException("Failed to deliver chunk " + entry.packet.getChunkId() + " after " + maxRetries + " retries");
+                    }
+                    LOGGER.warn("Timeout waiting for ack on chunk {} (attempt {}/{})", entry.packet.getChunkId(), entry.timeouts, maxRetries);
+                    lost();
+                    retransmit(entry);
+                }
+            }
+        }
+
+        private void retransmit(InFlightChunk entry) throws IOException {
+            if (!entry.packet.hasFlag(Packet.FLAG_ACK_REQUESTED)) {
+                Packet packet = entry.packet;
+                entry.packet = packet.withFlags((byte) (packet.getFlags() | Packet.FLAG_ACK_REQUESTED));
+            }
+            entry.transmit(channel, target);
+        }
+
+        /**
+         * RTO backed off exponentially with every retransmission of the chunk and capped at {@code ackTimeout}.
+         */
+        private Duration retransmissionTimeout(InFlightChunk entry) {
+            Duration base = rtt.getRetransmissionTimeout(MIN_RETRANSMISSION_TIMEOUT, ackTimeout);
+            long backedOff = base.toNanos() << Math.min(entry.timeouts, 16);
+            return Duration.ofNanos(Math.min(ackTimeout.toNanos(), backedOff));
+        }
+
+        private Duration untilNextExpiry() {
+            long now = System.nanoTime();
+            long earliest = Long.MAX_VALUE;
+            for (InFlightChunk entry : inFlight.values()) {
+                earliest = Math.min(earliest, entry.sentAtNanos + retransmissionTimeout(entry).toNanos() - now);
+            }
+            return earliest == Long.MAX_VALUE ? ackTimeout : Duration.ofNanos(Math.max(0, earliest));
+        }
+    }
+
+    private static final class InFlightChunk {
+        private final PooledBuffer payload;
+        private Packet packet;
+        private long sentAtNanos;
+        private int attempts;
+        private int timeouts;
+        private int gapReports;
+
+        private InFlightChunk(Packet packet, PooledBuffer payload) {
+            this.packet = packet;
+            this.payload = payload;
+        }
+
+        private void transmit(SessionChannel channel, InetSocketAddress target) throws IOException {
+            attempts++;
+            gapReports = 0;
+            sentAtNanos = System.nanoTime();
+            channel.send(packet, target);
+        }
+    }
+
+    /**
+     * Channel with a socket of its own, which only ever receives the ACKs of its session.
+     */
+    private static final class DedicatedChannel implements SessionChannel {
+        private final UUID sessionId;
+        private final UDPClient client;
+
+        private DedicatedChannel(UUID sessionId) throws IOException {
+            this.sessionId = sessionId;
+            this.client = new UDPClient();
+        }
+
+        @Override
+        public void send(Packet packet, InetSocketAddress target) throws IOException {
+            client.send(packet, target);
+        }
+
+        @Override
+        public Packet poll(Duration timeout) throws IOException {
+            long deadline = System.nanoTime() + timeout.toNanos();
+            do {
+                long remainingMillis = Math.max(1, Duration.ofNanos(deadline - System.nanoTime()).toMillis());
+                Packet packet;
+                try {
+                    packet = client.receive(Duration.ofMillis(remainingMillis));
+                } catch (SocketTimeoutException ex) {
+                    return null;
+                }
                 if (packet.getPacketType() != PacketType.ACK) {
                     continue;
                 }
@@ -123,10 +864,143 @@ public class FileSender {
                     continue;
                 }
                 return packet;
-            } catch (SocketTimeoutException ex) {
-                throw ex;
-            }
+            } while (System.nanoTime() < deadline);
+            return null;
+        }
+
+        @Override
+        public void close() {
+            client.close();
+        }
+    }
+
+    /**
+     * Thrown when the receiver answers the metadata with {@link AckType#CHUNK_SIZE}.
+     */
+    private static final class ChunkSizeRequested extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int chunkSize;
+
+        private ChunkSizeRequested(int chunkSize) {
+            super("Receiver requested " + chunkSize + " byte chunks");
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    private static final class ProbedPath {
+        private final int chunkSize;
+        private final long probedAtNanos = System.nanoTime();
+
+        private ProbedPath(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - probedAtNanos > PATH_MTU_TTL.toNanos();
+        }
+    }
+
+    private static final class SessionRate {
+        private volatile double bytesPerSecond;
+    }
+
+    public static final class Builder {
+        private String peerId;
+        private int chunkSize = 8192;
+        private Duration ackTimeout = Duration.ofSeconds(5);
+        private int maxRetries = 5;
+        private int windowSize = DEFAULT_WINDOW_SIZE;
+        private String congestionControl = DEFAULT_CONGESTION_CONTROL;
+        private int parityGroupSize;
+        private boolean adaptiveParity;
+        private boolean deltaTransfer;
+        private boolean compression;
+        private boolean pathMtuDiscovery;
+        private BufferPool buffers;
+
+        private Builder() {}
+
+        public Builder withPeerId(String peerId) {
+            this.peerId = peerId;
+            return this;
+        }
+
+        public Builder withChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        public Builder withAckTimeout(Duration ackTimeout) {
+            this.ackTimeout = ackTimeout;
+            return this;
+        }
+
+        public Builder withMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        public Builder withWindowSize(int windowSize) {
+            this.windowSize = windowSize;
+            return this;
+        }
+
+        /**
+         * One of {@code aimd}, {@code delay} or {@code none}.
+         */
+        public Builder withCongestionControl(String congestionControl) {
+            this.congestionControl = congestionControl;
+            return this;
+        }
+
+        /**
+         * Sends one XOR parity packet per {@code groupSize} chunks so the receiver can rebuild a lost chunk
+         * of the group locally; {@code 0} disables forward error correction. When {@code adaptive} is set the
+         * group size starts at {@code groupSize} and then follows the measured loss rate.
+         */
+        public Builder withForwardErrorCorrection(int groupSize, boolean adaptive) {
+            this.parityGroupSize = groupSize;
+            this.adaptiveParity = adaptive;
+            return this;
+        }
+
+        /**
+         * Offers the receiver to send only the differences to an older copy of the file it already stores.
+         */
+        public Builder withDeltaTransfer(boolean deltaTransfer) {
+            this.deltaTransfer = deltaTransfer;
+            return this;
+        }
+
+        /**
+         * Deflates chunks that shrink noticeably, unless the file's MIME type is compressed already.
+         */
+        public Builder withCompression(boolean compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * Sizes the chunks of each session to the largest datagram that reaches the receiver unfragmented,
+         * falling back to the configured chunk size when the path cannot be probed.
+         */
+        public Builder withPathMtuDiscovery(boolean pathMtuDiscovery) {
+            this.pathMtuDiscovery = pathMtuDiscovery;
+            return this;
+        }
+
+        /**
+         * Pool chunks are read and compressed into, typically shared with the server and receiver. Defaults
+         * to a pool of its own.
+         */
+        public Builder withBufferPool(BufferPool buffers) {
+            this.buffers = Objects.requireNonNull(buffers, "buffers");
+            return this;
+        }
+
+        public FileSender build() {
+            return new FileSender(this);
         }
-        throw new SocketTimeoutException("Timed out waiting for ACK for session " + sessionId);
     }
 }
@@ -0,0 +1,242 @@
+package com.p2p.transfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Merkle tree over the blocks of a file. Every block of {@code leafSize} bytes (the last one may be
+ * shorter) is a leaf hashed with SHA-256, and every {@link #ARITY} consecutive nodes of a level are
+ * hashed together into one node of the level above, up to a single root. The root of the tree over
+ * blocks of {@link ChecksumUtil#CONTENT_BLOCK_SIZE} is the content hash that identifies a file.
+ * <p>
+ * As in RFC 6962, a leaf hashes a {@code 0x00} byte ahead of its block and a node a {@code 0x01} byte
+ * ahead of its children, so no content can pass for the hashes of another content's blocks: without
+ * them, a 64-byte file holding two leaf hashes would share the root of the two blocks they hash.
+ * <p>
+ * Nodes travel in pages of {@link #ARITY} hashes, so page {@code n} of a level holds exactly the
+ * children of node {@code n} one level up. Two peers comparing their trees from the root down fetch
+ * one page per differing node and end at the exact leaves, i.e. blocks, that differ.
+ * <p>
+ * Leaves are independent of each other, so they are hashed in parallel on the fork-join pool.
+ *
+ * <pre>
+ * Page layout:
+ * per node:
+ * [+0..31]   - SHA-256 of 0x00 and the block, or of 0x01 and the concatenated hashes of the node's children
+ * </pre>
+ */
+final class MerkleTree {
+
+    static final int HASH_LENGTH = 32;
+    static final int ARITY = 1024;
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+    // Leaves hashed by one fork-join task before it stops splitting; a few blocks outweigh the cost of a fork.
+    private static final int LEAVES_PER_TASK = 4;
+    // Leaves are read through a buffer of this size rather than whole.
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // levels.get(0) holds the leaves, the last level the root.
+    private final List<byte[]> levels;
+
+    private MerkleTree(List<byte[]> levels) {
+        this.levels = levels;
+    }
+
+    static MerkleTree build(Path file, int leafSize) throws IOException {
+        if (leafSize < 1) {
+            throw new IllegalArgumentException("Invalid leaf size " + leafSize);
+        }
+        byte[] leaves;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int leafCount = leafCount(size, leafSize);
+            leaves = new byte[leafCount * HASH_LENGTH];
+            try {
+                ForkJoinPool.commonPool().invoke(new LeafTask(channel, size, leafSize, leaves, 0, leafCount));
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+        }
+        return fromLeaves(leaves);
+    }
+
+    /**
+     * Builds the tree above leaves hashed elsewhere, such as those a receiver hashed while the blocks arrived.
+     *
+     * @param leaves the concatenated leaf hashes, which the tree takes ownership of
+     */
+    static MerkleTree fromLeaves(byte[] leaves) {
+        if (leaves.length % HASH_LENGTH != 0) {
+            throw new IllegalArgumentException("Leaf hashes of " + leaves.length + " bytes");
+        }
+        List<byte[]> levels = new ArrayList<>();
+        levels.add(leaves);
+        byte[] level = leaves;
+        while (level.length > HASH_LENGTH) {
+            level = parents(level);
+            levels.add(level);
+        }
+        return new MerkleTree(levels);
+    }
+
+    /**
+     * Hashes leaf {@code leaf} of content {@code size} bytes long, reading it from {@code channel} through
+     * {@code buffer}, which is cleared first.
+     */
+    static byte[] hashLeaf(FileChannel channel, long size, int leafSize, int leaf, ByteBuffer buffer, MessageDigest digest)
+            throws IOException {
+        long offset = (long) leaf * leafSize;
+        long end = Math.min(size, offset + leafSize);
+        digest.update(LEAF_PREFIX);
+        while (offset < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - offset));
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, offset);
+                if (read < 0) {
+                    throw new EOFException("Content shrank while hashing block " + leaf);
+                }
+                offset += read;
+            }
+            digest.update(buffer.flip());
+        }
+        return digest.digest();
+    }
+
+    static int leafCount(long size, int leafSize) {
+        return (int) ((size + leafSize - 1) / leafSize);
+    }
+
+    private static byte[] parents(byte[] children) {
+        int childCount = children.length / HASH_LENGTH;
+        int parentCount = (childCount + ARITY - 1) / ARITY;
+        byte[] parents = new byte[parentCount * HASH_LENGTH];
+        MessageDigest digest = ChecksumUtil.newSha256();
+        for (int parent = 0; parent < parentCount; parent++) {
+            int from = parent * ARITY * HASH_LENGTH;
+            int to = Math.min(children.length, from + ARITY * HASH_LENGTH);
+            digest.update(NODE_PREFIX);
+            digest.update(children, from, to - from);
+            System.arraycopy(digest.digest(), 0, parents, parent * HASH_LENGTH, HASH_LENGTH);
+        }
+        return parents;
+    }
+
+    /**
+     * Number of levels including leaves and root; the root sits at level {@code getHeight() - 1}, and a
+     * tree of at most one leaf is that leaf.
+     */
+    int getHeight() {
+        return levels.size();
+    }
+
+    int getLeafCount() {
+        return levels.get(0).length / HASH_LENGTH;
+    }
+
+    /**
+     * The root in hex, which for empty content is the SHA-256 of nothing.
+     */
+    String getRootHex() {
+        byte[] root = levels.get(levels.size() - 1);
+        return HexFormat.of().formatHex(root.length > 0 ? root : ChecksumUtil.newSha256().digest());
+    }
+
+    int getPageCount(int level) {
+        return (levels.get(checkLevel(level)).length / HASH_LENGTH + ARITY - 1) / ARITY;
+    }
+
+    byte[] encodePage(int level, int page) {
+        byte[] nodes = levels.get(checkLevel(level));
+        if (page < 0 || page >= getPageCount(level)) {
+            throw new IllegalArgumentException("Invalid page " + page + " of Merkle tree level " + level);
+        }
+        int from = page * ARITY * HASH_LENGTH;
+        int to = Math.min(nodes.length, from + ARITY * HASH_LENGTH);
+        byte[] encoded = new byte[to - from];
+        System.arraycopy(nodes, from, encoded, 0, encoded.length);
+        return encoded;
+    }
+
+    /**
+     * Compares page {@code page} of {@code level} with the same page of another tree over content of the
+     * same size and leaf size, setting the index within the level of every node that differs.
+     */
+    void diffPage(int level, int page, ByteBuffer theirs, BitSet differing) {
+        byte[] nodes = levels.get(checkLevel(level));
+        int first = page * ARITY;
+        int count = Math.min(ARITY, nodes.length / HASH_LENGTH - first);
+        if (page < 0 || count <= 0 || theirs.remaining() != count * HASH_LENGTH) {
+            throw new IllegalArgumentException("Merkle tree page " + page + " of level " + level + " does not match this tree");
+        }
+        byte[] hash = new byte[HASH_LENGTH];
+        for (int node = first; node < first + count; node++) {
+            theirs.get(hash);
+            if (!Arrays.equals(hash, 0, HASH_LENGTH, nodes, node * HASH_LENGTH, (node + 1) * HASH_LENGTH)) {
+                differing.set(node);
+            }
+        }
+    }
+
+    private int checkLevel(int level) {
+        if (level < 0 || level >= levels.size()) {
+            throw new IllegalArgumentException("Invalid Merkle tree level " + level);
+        }
+        return level;
+    }
+
+    /**
+     * Hashes a range of leaves, splitting it in halves for other workers to steal while it is large.
+     */
+    private static final class LeafTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long size;
+        private final int leafSize;
+        private final byte[] leaves;
+        private final int from;
+        private final int to;
+
+        private LeafTask(FileChannel channel, long size, int leafSize, byte[] leaves, int from, int to) {
+            this.channel = channel;
+            this.size = size;
+            this.leafSize = leafSize;
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAVES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LeafTask(channel, size, leafSize, leaves, from, middle),
+                        new LeafTask(channel, size, leafSize, leaves, middle, to));
+                return;
+            }
+            MessageDigest digest = ChecksumUtil.newSha256();
+            ByteBuffer buffer = ByteBuffer.allocate(Math.min(leafSize, READ_BUFFER_SIZE));
+            try {
+                for (int leaf = from; leaf < to; leaf++) {
+                    System.arraycopy(hashLeaf(channel, size, leafSize, leaf, buffer, digest), 0, leaves, leaf * HASH_LENGTH, HASH_LENGTH);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.p2p.transfer;
+
+import com.p2p.network.Packet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Forward error correction for a chunk stream: XORs consecutive chunks into parity packets so the
+ * receiver can rebuild one lost chunk per group without waiting for a retransmission.
+ * <p>
+ * With a fixed group size of {@code k} the redundancy is {@code 1/k}. In adaptive mode the size of
+ * each new group follows the measured loss rate so that, on average, about half a chunk per group is
+ * lost: lossy links get small groups while clean links pay for at most one parity per
+ * {@link #MAX_ADAPTIVE_GROUP_SIZE} chunks.
+ */
+final class ParityEncoder {
+
+    static final int MIN_GROUP_SIZE = 2;
+    static final int MAX_ADAPTIVE_GROUP_SIZE = 64;
+
+    private final UUID sessionId;
+    private final int chunkSize;
+    private final int groupSize;
+    private final boolean adaptive;
+    private byte[] parity;
+    private int firstChunkId;
+    private int currentGroupSize;
+    private int groupedChunks;
+
+    ParityEncoder(UUID sessionId, int chunkSize, int groupSize, boolean adaptive) {
+        if (groupSize < MIN_GROUP_SIZE) {
+            throw new IllegalArgumentException("Parity group size must be at least " + MIN_GROUP_SIZE + ": " + groupSize);
+        }
+        this.sessionId = sessionId;
+        this.chunkSize = chunkSize;
+        this.groupSize = groupSize;
+        this.adaptive = adaptive;
+        this.parity = new byte[chunkSize];
+    }
+
+    /**
+     * Adds a chunk sent for the first time. Chunks must be added in ascending order; retransmissions are
+     * not covered. Returns the parity packets of the groups this chunk completes: its own group once it
+     * is full or the chunk is the last one, preceded by the open group if the chunk does not follow it
+     * directly (groups only ever cover consecutive chunks).
+     *
+     * @param lossRate fraction of chunks currently being lost, used to size the next group in adaptive mode
+     */
+    List<Packet> add(int chunkId, ByteBuffer data, boolean last, double lossRate) {
+        List<Packet> packets = new ArrayList<>(2);
+        if (groupedChunks > 0 && chunkId != firstChunkId + groupedChunks) {
+            packets.add(closeGroup());
+        }
+        if (groupedChunks == 0) {
+            firstChunkId = chunkId;
+            currentGroupSize = adaptive ? adaptiveGroupSize(lossRate) : groupSize;
+        }
+        xorInto(parity, data);
+        groupedChunks++;
+        if (groupedChunks >= currentGroupSize || last) {
+            packets.add(closeGroup());
+        }
+        return packets;
+    }
+
+    private Packet closeGroup() {
+        Packet packet = Packet.parity(sessionId, firstChunkId, groupedChunks, parity);
+        parity = new byte[chunkSize];
+        groupedChunks = 0;
+        return packet;
+    }
+
+    private static int adaptiveGroupSize(double lossRate) {
+        if (lossRate <= 0.5 / MAX_ADAPTIVE_GROUP_SIZE) {
+            return MAX_ADAPTIVE_GROUP_SIZE;
+        }
+        return (int) Math.max(MIN_GROUP_SIZE, Math.min(MAX_ADAPTIVE_GROUP_SIZE, Math.round(0.5 / lossRate)));
+    }
+
+    /**
+     * XORs the remaining bytes of {@code source} into the start of {@code target}, eight at a time; a
+     * shorter source acts as if zero padded. The position of {@code source} is left alone.
+     */
+    static void xorInto(byte[] target, ByteBuffer source) {
+        int length = Math.min(target.length, source.remaining());
+        int from = source.position();
+        ByteBuffer words = ByteBuffer.wrap(target);
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            words.putLong(i, words.getLong(i) ^ source.getLong(from + i));
+        }
+        for (; i < length; i++) {
+            target[i] ^= source.get(from + i);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.p2p.transfer;
+
+import com.p2p.security.SecurityChecker;
+import com.p2p.security.SecurityChecker.SecurityResult;
+import com.p2p.storage.StorageManager;
+import com.p2p.webhook.N8nClient;
+import com.p2p.webhook.WebhookPayload;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Stores a fully received, checksum-verified file: inspects it with the {@link SecurityChecker}, moves it
+ * into the incoming or quarantine directory, indexes safe files by checksum and notifies n8n about them.
+ */
+final class ReceivedFileProcessor {
+
+    private static final Logger LOGGER = LogManager.getLogger(ReceivedFileProcessor.class);
+
+    private final StorageManager storageManager;
+    private final SecurityChecker securityChecker;
+    private final N8nClient n8nClient;
+
+    ReceivedFileProcessor(StorageManager storageManager, SecurityChecker securityChecker, N8nClient n8nClient) {
+        this.storageManager = storageManager;
+        this.securityChecker = securityChecker;
+        this.n8nClient = n8nClient;
+    }
+
+    StoredFile process(Path file, String fileName, long fileSize, String checksum, String receivedFrom) throws IOException {
+        SecurityResult securityResult = securityChecker.evaluate(file, fileName);
+        Path targetPath;
+        if (securityResult.isSafe()) {
+            targetPath = storageManager.resolveIncomingPath(fileName);
+        } else if (securityChecker.isQuarantineEnabled()) {
+            targetPath = storageManager.resolveQuarantinePath(fileName);
+        } else {
+            targetPath = storageManager.resolveIncomingPath(fileName);
+        }
+        storageManager.move(file, targetPath);
+        LOGGER.info("{} from {} stored at {} ({})", fileName, receivedFrom, targetPath, securityResult.getMessage());
+        if (securityResult.isSafe()) {
+            storageManager.getContentIndex().register(checksum, targetPath);
+            triggerWebhook(fileName, fileSize, checksum, receivedFrom, targetPath, securityResult);
+        }
+        return new StoredFile(targetPath, securityResult);
+    }
+
+    private void triggerWebhook(String fileName, long fileSize, String checksum, String receivedFrom, Path targetPath, SecurityResult result) {
+        if (n8nClient == null) {
+            return;
+        }
+        WebhookPayload payload = WebhookPayload.builder()
+                .withFileName(fileName)
+                .withFilePath(targetPath.toAbsolutePath().toString())
+                .withFileSize(fileSize)
+                .withChecksum(checksum)
+                .withMimeType(Optional.ofNullable(result.getActualMime()).orElse("unknown"))
+                .withReceivedFrom(receivedFrom)
+                .withTimestamp(Instant.now().toEpochMilli())
+                .withSecurityStatus("SAFE")
+                .build();
+        n8nClient.sendAsync(payload);
+    }
+
+    static final class StoredFile {
+        private final Path path;
+        private final SecurityResult securityResult;
+
+        private StoredFile(Path path, SecurityResult securityResult) {
+            this.path = path;
+            this.securityResult = securityResult;
+        }
+
+        Path getPath() {
+            return path;
+        }
+
+        SecurityResult getSecurityResult() {
+            return securityResult;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.p2p.transfer;
+
+import java.time.Duration;
+
+/**
+ * Smoothed round-trip time and retransmission timeout estimation following RFC 6298.
+ */
+public class RttEstimator {
+
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final long CLOCK_GRANULARITY_NANOS = Duration.ofMillis(1).toNanos();
+
+    private long smoothedRttNanos;
+    private long rttVarianceNanos;
+    private long minRttNanos = Long.MAX_VALUE;
+    private long latestRttNanos;
+
+    public void addSample(long rttNanos) {
+        if (rttNanos <= 0) {
+            return;
+        }
+        latestRttNanos = rttNanos;
+        minRttNanos = Math.min(minRttNanos, rttNanos);
+        if (smoothedRttNanos == 0) {
+            smoothedRttNanos = rttNanos;
+            rttVarianceNanos = rttNanos / 2;
+        } else {
+            rttVarianceNanos = (long) ((1 - BETA) * rttVarianceNanos + BETA * Math.abs(smoothedRttNanos - rttNanos));
+            smoothedRttNanos = (long) ((1 - ALPHA) * smoothedRttNanos + ALPHA * rttNanos);
+        }
+    }
+
+    public boolean hasSample() {
+        return smoothedRttNanos > 0;
+    }
+
+    public long getSmoothedRttNanos() {
+        return smoothedRttNanos;
+    }
+
+    public long getMinRttNanos() {
+        return hasSample() ? minRttNanos : 0;
+    }
+
+    public long getLatestRttNanos() {
+        return latestRttNanos;
+    }
+
+    public Duration getRetransmissionTimeout(Duration min, Duration max) {
+        if (!hasSample()) {
+            return max;
+        }
+        long rto = smoothedRttNanos + Math.max(CLOCK_GRANULARITY_NANOS, 4 * rttVarianceNanos);
+        return Duration.ofNanos(Math.min(max.toNanos(), Math.max(min.toNanos(), rto)));
+    }
+}
@@ -0,0 +1,30 @@
+package com.p2p.transfer;
+
+import com.p2p.network.Packet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.UUID;
+
+/**
+ * Carries the packets of one transfer session: sends them to the receiver and hands back the ACKs the
+ * receiver addressed to this session, whether the session owns its socket or shares one with others.
+ */
+interface SessionChannel extends AutoCloseable {
+
+    void send(Packet packet, InetSocketAddress target) throws IOException;
+
+    /**
+     * Waits up to {@code timeout} for the next ACK of this session, returning {@code null} on timeout.
+     */
+    Packet poll(Duration timeout) throws IOException;
+
+    @Override
+    void close();
+
+    @FunctionalInterface
+    interface Factory {
+        SessionChannel open(UUID sessionId) throws IOException;
+    }
+}
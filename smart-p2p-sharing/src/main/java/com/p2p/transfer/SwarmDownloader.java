@@ -0,0 +1,650 @@
+package com.p2p.transfer;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.p2p.network.AckType;
+import com.p2p.network.Packet;
+import com.p2p.network.PacketType;
+import com.p2p.network.UDPClient;
+import com.p2p.network.UDPServer;
+import com.p2p.security.SecurityChecker;
+import com.p2p.storage.StorageManager;
+import com.p2p.webhook.N8nClient;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Downloads a file identified only by its checksum from every peer that holds it at once. Peers are
+ * probed first; the file is then split into ranges of {@code rangeChunks} chunks which each peer pulls
+ * from a {@link ChunkSeeder} one at a time, so fast peers naturally serve more ranges. Once no range is
+ * left unassigned, an idle peer takes over the missing chunks of a peer that is clearly slower than
+ * itself, and a peer that stalls has its range returned to the pool.
+ * <p>
+ * Within its range a peer is asked for no more chunks than its own {@link CongestionController} window,
+ * and every chunk that arrives frees room for the next request, so the arrivals clock the requests the
+ * way ACKs clock a {@link FileSender}. A chunk is asked for again on its own once chunks requested after
+ * it have arrived first, or once its retransmission timeout, estimated from the peer's round trips,
+ * expires; {@code requestTimeout} only decides when a peer that delivers nothing at all is given up on.
+ */
+public class SwarmDownloader {
+
+    private static final Logger LOGGER = LogManager.getLogger(SwarmDownloader.class);
+
+    public static final int DEFAULT_RANGE_CHUNKS = 64;
+
+    // An idle peer takes over the rest of a range when it would finish it this many times sooner.
+    private static final double STEAL_SPEEDUP = 2.0;
+    private static final long MAX_POLL_NANOS = Duration.ofMillis(50).toNanos();
+    private static final Duration MIN_RETRANSMISSION_TIMEOUT = Duration.ofMillis(200);
+    // Chunks requested later that must arrive first before a chunk counts as lost.
+    private static final int DUPLICATE_GAP_THRESHOLD = 3;
+
+    private final StorageManager storageManager;
+    private final ReceivedFileProcessor processor;
+    private final int chunkSize;
+    private final int rangeChunks;
+    private final Duration requestTimeout;
+    private final int maxRetries;
+    private final String congestionControl;
+
+    private SwarmDownloader(Builder builder) {
+        this.storageManager = Objects.requireNonNull(builder.storageManager, "storageManager");
+        this.processor = new ReceivedFileProcessor(storageManager, Objects.requireNonNull(builder.securityChecker, "securityChecker"), builder.n8nClient);
+        this.chunkSize = builder.chunkSize;
+        if (builder.rangeChunks < 1 || builder.rangeChunks > ChunkSeeder.MAX_REQUEST_CHUNKS) {
+            throw new IllegalArgumentException("Range size must be between 1 and " + ChunkSeeder.MAX_REQUEST_CHUNKS + " chunks: " + builder.rangeChunks);
+        }
+        this.rangeChunks = builder.rangeChunks;
+        this.requestTimeout = Objects.requireNonNull(builder.requestTimeout, "requestTimeout");
+        this.maxRetries = builder.maxRetries;
+        this.congestionControl = Objects.requireNonNull(builder.congestionControl, "congestionControl");
+        CongestionController.create(congestionControl, ChunkSeeder.MAX_REQUEST_CHUNKS);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Downloads the content with the given content hash ({@link ChecksumUtil#contentHash}) from whichever
+     * of {@code peers} hold it and stores it like a received transfer, returning where it was stored.
+     */
+    public Path download(String checksum, Collection<InetSocketAddress> peers) throws IOException {
+        Objects.requireNonNull(checksum, "checksum");
+        UUID sessionId = UUID.randomUUID();
+        JsonObject content = new JsonObject();
+        content.addProperty("checksum", checksum);
+        content.addProperty("chunkSize", chunkSize);
+        byte[] contentBytes = content.toString().getBytes(StandardCharsets.UTF_8);
+        try (UDPClient client = new UDPClient()) {
+            client.getSocket().setReceiveBufferSize(UDPServer.RECEIVE_BUFFER_SIZE);
+            Download download = probe(client, sessionId, contentBytes, checksum, List.copyOf(peers));
+            Path sessionDir = storageManager.createSessionTempDirectory(sessionId);
+            Path file = sessionDir.resolve(download.fileName);
+            try {
+                try (FileChannel output = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE)) {
+                    download.run(output);
+                }
+                String actual = ChecksumUtil.contentHash(file);
+                if (!actual.equalsIgnoreCase(checksum)) {
+                    throw new IOException("Checksum mismatch for swarm download " + download.fileName + ": expected " + checksum + ", got " + actual);
+                }
+                ReceivedFileProcessor.StoredFile stored = processor.process(file, download.fileName, download.fileSize, checksum, download.describeSources());
+                if (!stored.getSecurityResult().isSafe()) {
+                    throw new IOException("Download rejected: " + stored.getSecurityResult().getMessage());
+                }
+                return stored.getPath();
+            } finally {
+                storageManager.cleanupSession(sessionId);
+            }
+        }
+    }
+
+    /**
+     * Asks every peer whether it holds the content. The probe index travels in the chunk id slot and is
+     * echoed back, identifying which peer answered.
+     */
+    private Download probe(UDPClient client, UUID sessionId, byte[] contentBytes, String checksum, List<InetSocketAddress> peers) throws IOException {
+        for (int i = 0; i < peers.size(); i++) {
+            client.send(Packet.chunkRequest(sessionId, i, 0, contentBytes), peers.get(i));
+        }
+        List<Source> sources = new ArrayList<>();
+        String fileName = null;
+        long fileSize = -1;
+        int answers = 0;
+        long deadline = System.nanoTime() + requestTimeout.toNanos();
+        while (answers < peers.size() && deadline - System.nanoTime() > 0) {
+            Packet reply = receive(client, sessionId, deadline - System.nanoTime());
+            if (reply == null || reply.getPacketType() != PacketType.ACK || reply.getChunkId() < 0 || reply.getChunkId() >= peers.size()) {
+                continue;
+            }
+            answers++;
+            InetSocketAddress peer = peers.get(reply.getChunkId());
+            if (reply.getAckType().orElse(AckType.REJECTED) != AckType.AVAILABLE) {
+                LOGGER.debug("Peer {} does not hold {}", peer, checksum);
+                continue;
+            }
+            JsonObject available = JsonParser.parseString(new String(reply.getPayload(), StandardCharsets.UTF_8)).getAsJsonObject();
+            if (fileName == null) {
+                fileName = Path.of(available.get("fileName").getAsString()).getFileName().toString();
+                fileSize = available.get("fileSize").getAsLong();
+            } else if (available.get("fileSize").getAsLong() != fileSize) {
+                LOGGER.warn("Peer {} reports a different size for {}, ignoring it", peer, checksum);
+                continue;
+            }
+            sources.add(new Source(peer, CongestionController.create(congestionControl, ChunkSeeder.MAX_REQUEST_CHUNKS)));
+        }
+        if (sources.isEmpty()) {
+            throw new IOException("No peer holds content " + checksum);
+        }
+        LOGGER.info("Swarm download of {} ({} bytes) from {} peers", fileName, fileSize, sources.size());
+        return new Download(client, sessionId, contentBytes, fileName, fileSize, sources);
+    }
+
+    private static Packet receive(UDPClient client, UUID sessionId, long timeoutNanos) throws IOException {
+        return receive(client, sessionId, timeoutNanos, false);
+    }
+
+    /**
+     * @param inPlace whether the packet may view the client's receive buffer, valid until the next receive
+     */
+    private static Packet receive(UDPClient client, UUID sessionId, long timeoutNanos, boolean inPlace) throws IOException {
+        try {
+            Duration timeout = Duration.ofMillis(Math.max(1, Duration.ofNanos(timeoutNanos).toMillis()));
+            Packet packet = inPlace ? client.receiveInPlace(timeout) : client.receive(timeout);
+            return packet.getSessionId().equals(sessionId) ? packet : null;
+        } catch (SocketTimeoutException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Range and chunk bookkeeping of one swarm download.
+     */
+    private final class Download {
+        private final UDPClient client;
+        private final UUID sessionId;
+        private final byte[] contentBytes;
+        private final String fileName;
+        private final long fileSize;
+        private final int totalChunks;
+        private final List<Source> sources;
+        private final List<Source> allSources;
+        private final BitSet received;
+        private final Deque<Range> pending = new ArrayDeque<>();
+        private int receivedChunks;
+
+        private Download(UDPClient client, UUID sessionId, byte[] contentBytes, String fileName, long fileSize, List<Source> sources) {
+            this.client = client;
+            this.sessionId = sessionId;
+            this.contentBytes = contentBytes;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.totalChunks = (int) ((fileSize + chunkSize - 1) / chunkSize);
+            this.sources = sources;
+            this.allSources = List.copyOf(sources);
+            this.received = new BitSet(totalChunks);
+            for (int first = 0; first < totalChunks; first += rangeChunks) {
+                pending.addLast(new Range(first, Math.min(rangeChunks, totalChunks - first)));
+            }
+        }
+
+        private void run(FileChannel output) throws IOException {
+            while (receivedChunks < totalChunks) {
+                if (sources.isEmpty()) {
+                    throw new IOException("Every peer failed while downloading " + fileName);
+                }
+                long now = System.nanoTime();
+                assignIdle(now);
+                // Every packet is written out or dropped before the next receive, so chunks need not be copied.
+                Packet packet = receive(client, sessionId, Math.min(MAX_POLL_NANOS, untilNextTimeout(now)), true);
+                if (packet != null && packet.getPacketType() == PacketType.DATA) {
+                    onChunk(output, packet);
+                } else if (packet != null && packet.getAckType().orElse(null) == AckType.REJECTED) {
+                    onRejected(packet);
+                }
+                now = System.nanoTime();
+                retransmitExpired(now);
+                expireStalled(now);
+            }
+            LOGGER.info("Swarm download of {} complete: {}", fileName, describeSources());
+        }
+
+        private void assignIdle(long now) throws IOException {
+            for (Source source : sources) {
+                if (source.assigned != null) {
+                    continue;
+                }
+                Range range = nextPending();
+                if (range == null) {
+                    range = steal(source, now);
+                }
+                if (range == null) {
+                    continue;
+                }
+                source.assigned = range;
+                source.nextChunk = range.first;
+                source.requestedAtNanos = now;
+                source.lastProgressNanos = now;
+                requestMore(source, now);
+            }
+        }
+
+        /**
+         * Asks {@code source} for the next chunks of its range that fit its congestion window, in runs of
+         * consecutive missing chunks. Room is only used once a quarter of the window is free, so requests
+         * are not sent one chunk at a time.
+         */
+        private void requestMore(Source source, long now) throws IOException {
+            Range range = source.assigned;
+            int window = source.congestion.getCongestionWindow();
+            int room = window - source.outstanding.size();
+            if (range == null || room < 1 || (!source.outstanding.isEmpty() && room < Math.max(1, window / 4))) {
+                return;
+            }
+            while (room > 0) {
+                int first = received.nextClearBit(source.nextChunk);
+                if (first >= range.end()) {
+                    source.nextChunk = range.end();
+                    return;
+                }
+                int end = first;
+                while (end < range.end() && end - first < room && !received.get(end)) {
+                    source.outstanding.put(end, new ChunkRequest(source.requestSequence++, now));
+                    end++;
+                }
+                source.nextChunk = end;
+                room -= end - first;
+                client.send(Packet.chunkRequest(sessionId, first, end - first, contentBytes), source.address);
+            }
+        }
+
+        /**
+         * Asks {@code source} for one chunk again, behind everything it was asked for before.
+         */
+        private void rerequest(Source source, int chunkId, ChunkRequest lost, long now) throws IOException {
+            source.outstanding.remove(chunkId);
+            source.outstanding.put(chunkId, new ChunkRequest(source.requestSequence++, now, lost.timeouts));
+            client.send(Packet.chunkRequest(sessionId, chunkId, 1, contentBytes), source.address);
+        }
+
+        private Range nextPending() {
+            while (!pending.isEmpty()) {
+                Range range = missingSpan(pending.pollFirst());
+                if (range != null) {
+                    return range;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Hands {@code idle} the missing chunks of the range that will take longest to finish, if
+         * {@code idle} is expected to deliver them at least {@link #STEAL_SPEEDUP} times sooner.
+         */
+        private Range steal(Source idle, long now) {
+            Source slowest = null;
+            double slowestRemaining = 0;
+            for (Source source : sources) {
+                if (source.assigned == null || source.assigned.duplicated) {
+                    continue;
+                }
+                Range missing = missingSpan(source.assigned);
+                if (missing == null) {
+                    continue;
+                }
+                double remaining = source.secondsFor(missing, now);
+                if (slowest == null || remaining > slowestRemaining) {
+                    slowest = source;
+                    slowestRemaining = remaining;
+                }
+            }
+            if (slowest == null) {
+                return null;
+            }
+            Range missing = missingSpan(slowest.assigned);
+            if (idle.bytesPerSecond <= 0 || slowestRemaining < STEAL_SPEEDUP * missing.bytes() / idle.bytesPerSecond) {
+                return null;
+            }
+            LOGGER.debug("Peer {} takes over chunks {}+{} from {}", idle.address, missing.first, missing.count, slowest.address);
+            slowest.assigned.duplicated = true;
+            missing.duplicated = true;
+            return missing;
+        }
+
+        private void onChunk(FileChannel output, Packet packet) throws IOException {
+            int chunkId = packet.getChunkId();
+            if (chunkId < 0 || chunkId >= totalChunks || received.get(chunkId)) {
+                return;
+            }
+            ByteBuffer data = packet.payload();
+            long offset = (long) chunkId * chunkSize;
+            while (data.hasRemaining()) {
+                output.write(data, offset + data.position());
+            }
+            received.set(chunkId);
+            receivedChunks++;
+            long now = System.nanoTime();
+            for (Source source : sources) {
+                ChunkRequest request = source.outstanding.remove(chunkId);
+                if (request != null) {
+                    // Karn's rule: a chunk asked for twice says nothing about the round trip.
+                    if (request.timeouts == 0 && !request.repeated) {
+                        source.rtt.addSample(now - request.sentAtNanos);
+                    }
+                    source.congestion.onAck(1, source.rtt);
+                    detectGaps(source, request.sequence, now);
+                }
+                if (source.assigned != null && source.assigned.contains(chunkId)) {
+                    source.lastProgressNanos = now;
+                    if (missingSpan(source.assigned) == null) {
+                        source.completed(now);
+                    }
+                }
+                requestMore(source, now);
+            }
+        }
+
+        /**
+         * Asks again for every chunk that {@link #DUPLICATE_GAP_THRESHOLD} chunks requested after it from the
+         * same peer have overtaken; a peer sends the chunks it is asked for in order.
+         */
+        private void detectGaps(Source source, long arrivedSequence, long now) throws IOException {
+            List<Map.Entry<Integer, ChunkRequest>> lost = new ArrayList<>();
+            for (Map.Entry<Integer, ChunkRequest> entry : source.outstanding.entrySet()) {
+                if (entry.getValue().sequence > arrivedSequence) {
+                    break;
+                }
+                if (++entry.getValue().overtaken == DUPLICATE_GAP_THRESHOLD) {
+                    lost.add(entry);
+                }
+            }
+            if (lost.isEmpty()) {
+                return;
+            }
+            source.congestion.onLoss(source.rtt);
+            for (Map.Entry<Integer, ChunkRequest> entry : lost) {
+                rerequest(source, entry.getKey(), entry.getValue(), now);
+                source.outstanding.get(entry.getKey()).repeated = true;
+            }
+        }
+
+        /**
+         * Asks again for the chunks whose retransmission timeout expired, backing the timeout off with every
+         * expiry. Requests are kept in the order they were sent, so only the oldest ones need checking.
+         */
+        private void retransmitExpired(long now) throws IOException {
+            for (Source source : sources) {
+                boolean expired = false;
+                for (int checked = source.outstanding.size(); checked > 0; checked--) {
+                    Map.Entry<Integer, ChunkRequest> oldest = source.outstanding.entrySet().iterator().next();
+                    ChunkRequest request = oldest.getValue();
+                    if (now - request.sentAtNanos < source.retransmissionTimeoutNanos(request)) {
+                        break;
+                    }
+                    expired = true;
+                    rerequest(source, oldest.getKey(), new ChunkRequest(request.sequence, request.sentAtNanos, request.timeouts + 1), now);
+                }
+                if (expired) {
+                    source.congestion.onLoss(source.rtt);
+                }
+            }
+        }
+
+        private void onRejected(Packet packet) {
+            for (Iterator<Source> iterator = sources.iterator(); iterator.hasNext(); ) {
+                Source source = iterator.next();
+                if (source.assigned != null && source.outstanding.containsKey(packet.getChunkId())) {
+                    LOGGER.warn("Peer {} rejected chunks {}+{}: {}", source.address, source.assigned.first, source.assigned.count,
+                            new String(packet.getPayload(), StandardCharsets.UTF_8));
+                    release(source.assigned);
+                    iterator.remove();
+                    return;
+                }
+            }
+        }
+
+        private void expireStalled(long now) {
+            for (Iterator<Source> iterator = sources.iterator(); iterator.hasNext(); ) {
+                Source source = iterator.next();
+                if (source.assigned == null || now - source.lastProgressNanos < requestTimeout.toNanos()) {
+                    continue;
+                }
+                release(source.assigned);
+                source.assigned = null;
+                source.outstanding.clear();
+                if (++source.failures > maxRetries) {
+                    LOGGER.warn("Dropping peer {} after {} stalled requests", source.address, source.failures);
+                    iterator.remove();
+                } else {
+                    LOGGER.debug("Request to peer {} stalled ({} of {})", source.address, source.failures, maxRetries);
+                }
+            }
+        }
+
+        /**
+         * Returns the missing chunks of an abandoned range to the front of the pool.
+         */
+        private void release(Range range) {
+            Deque<Range> missing = new ArrayDeque<>();
+            int start = received.nextClearBit(range.first);
+            while (start < range.end()) {
+                int end = Math.min(range.end(), received.nextSetBit(start) < 0 ? range.end() : received.nextSetBit(start));
+                missing.addFirst(new Range(start, end - start));
+                start = received.nextClearBit(end);
+            }
+            missing.forEach(pending::addFirst);
+        }
+
+        private Range missingSpan(Range range) {
+            int first = received.nextClearBit(range.first);
+            if (first >= range.end()) {
+                return null;
+            }
+            int last = range.end() - 1;
+            while (received.get(last)) {
+                last--;
+            }
+            return new Range(first, last - first + 1);
+        }
+
+        private long untilNextTimeout(long now) {
+            long earliest = Long.MAX_VALUE;
+            for (Source source : sources) {
+                if (source.assigned != null) {
+                    earliest = Math.min(earliest, source.lastProgressNanos + requestTimeout.toNanos() - now);
+                }
+                if (!source.outstanding.isEmpty()) {
+                    ChunkRequest oldest = source.outstanding.values().iterator().next();
+                    earliest = Math.min(earliest, oldest.sentAtNanos + source.retransmissionTimeoutNanos(oldest) - now);
+                }
+            }
+            return Math.max(0, earliest);
+        }
+
+        private String describeSources() {
+            return allSources.stream()
+                    .map(source -> source.address.getAddress().getHostAddress() + ":" + source.address.getPort()
+                            + " (" + source.chunksServed + " chunks)")
+                    .collect(Collectors.joining(", ", "swarm[", "]"));
+        }
+    }
+
+    private final class Source {
+        private final InetSocketAddress address;
+        private final CongestionController congestion;
+        private final RttEstimator rtt = new RttEstimator();
+        // Chunks asked for and not yet received, in the order they were asked for.
+        private final LinkedHashMap<Integer, ChunkRequest> outstanding = new LinkedHashMap<>();
+        private long requestSequence;
+        private Range assigned;
+        // First chunk of the assigned range not asked for yet.
+        private int nextChunk;
+        private long requestedAtNanos;
+        private long lastProgressNanos;
+        private double bytesPerSecond;
+        private int failures;
+        private int chunksServed;
+
+        private Source(InetSocketAddress address, CongestionController congestion) {
+            this.address = address;
+            this.congestion = congestion;
+        }
+
+        private void completed(long now) {
+            double seconds = Math.max(1e-6, (now - requestedAtNanos) / 1e9);
+            double sample = assigned.bytes() / seconds;
+            bytesPerSecond = bytesPerSecond == 0 ? sample : (bytesPerSecond + sample) / 2;
+            chunksServed += assigned.count;
+            failures = 0;
+            assigned = null;
+            outstanding.clear();
+        }
+
+        /**
+         * RTO backed off exponentially with every expiry of the request and capped at {@code requestTimeout}.
+         */
+        private long retransmissionTimeoutNanos(ChunkRequest request) {
+            long base = rtt.getRetransmissionTimeout(MIN_RETRANSMISSION_TIMEOUT, requestTimeout).toNanos();
+            return Math.min(requestTimeout.toNanos(), base << Math.min(request.timeouts, 16));
+        }
+
+        /**
+         * Expected seconds until this source delivers {@code missing}, counting from its last request.
+         */
+        private double secondsFor(Range missing, long now) {
+            if (bytesPerSecond <= 0) {
+                return (now - requestedAtNanos) / 1e9 + requestTimeout.toNanos() / 1e9;
+            }
+            return missing.bytes() / bytesPerSecond;
+        }
+    }
+
+    private static final class ChunkRequest {
+        private final long sequence;
+        private final long sentAtNanos;
+        private final int timeouts;
+        private int overtaken;
+        // Asked for again after being overtaken.
+        private boolean repeated;
+
+        private ChunkRequest(long sequence, long sentAtNanos) {
+            this(sequence, sentAtNanos, 0);
+        }
+
+        private ChunkRequest(long sequence, long sentAtNanos, int timeouts) {
+            this.sequence = sequence;
+            this.sentAtNanos = sentAtNanos;
+            this.timeouts = timeouts;
+        }
+    }
+
+    private final class Range {
+        private final int first;
+        private final int count;
+        private boolean duplicated;
+
+        private Range(int first, int count) {
+            this.first = first;
+            this.count = count;
+        }
+
+        private int end() {
+            return first + count;
+        }
+
+        private boolean contains(int chunkId) {
+            return chunkId >= first && chunkId < end();
+        }
+
+        private double bytes() {
+            return (double) count * chunkSize;
+        }
+    }
+
+    public static final class Builder {
+        private StorageManager storageManager;
+        private SecurityChecker securityChecker;
+        private N8nClient n8nClient;
+        private int chunkSize = 8192;
+        private int rangeChunks = DEFAULT_RANGE_CHUNKS;
+        private Duration requestTimeout = Duration.ofSeconds(2);
+        private int maxRetries = 5;
+        private String congestionControl = FileSender.DEFAULT_CONGESTION_CONTROL;
+
+        private Builder() {}
+
+        public Builder withStorageManager(StorageManager storageManager) {
+            this.storageManager = storageManager;
+            return this;
+        }
+
+        public Builder withSecurityChecker(SecurityChecker securityChecker) {
+            this.securityChecker = securityChecker;
+            return this;
+        }
+
+        public Builder withN8nClient(N8nClient n8nClient) {
+            this.n8nClient = n8nClient;
+            return this;
+        }
+
+        public Builder withChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        public Builder withRangeChunks(int rangeChunks) {
+            this.rangeChunks = rangeChunks;
+            return this;
+        }
+
+        /**
+         * How long a peer may go without delivering a chunk of its range before the range is reassigned.
+         */
+        public Builder withRequestTimeout(Duration requestTimeout) {
+            this.requestTimeout = requestTimeout;
+            return this;
+        }
+
+        public Builder withMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Algorithm sizing how many chunks each peer is asked for at once, as for {@link FileSender}.
+         */
+        public Builder withCongestionControl(String congestionControl) {
+            this.congestionControl = congestionControl;
+            return this;
+        }
+
+        public SwarmDownloader build() {
+            return new SwarmDownloader(this);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.p2p.transfer;
+
+import com.p2p.network.ExecutionModel;
+import com.p2p.network.Packet;
+import com.p2p.network.PacketType;
+import com.p2p.network.UDPClient;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Queues outgoing transfers and runs at most {@code maxConcurrent} of them at a time, all over one
+ * shared client socket. A single listener receives every ACK on that socket and hands it to the
+ * session it is addressed to.
+ * <p>
+ * Session ids are derived from the file content and the target, so a second transfer of a file that is
+ * still being sent to the same peer waits for the first one to finish before it opens its session. It
+ * waits off the pool: the slot goes to the next queued transfer and the waiting one is queued again when
+ * the session closes. Closing the manager cancels every transfer that has not finished.
+ */
+public class TransferManager implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger(TransferManager.class);
+
+    public static final int DEFAULT_MAX_CONCURRENT = 4;
+
+    private final FileSender fileSender;
+    private final UDPClient client;
+    private final ThreadPoolExecutor transfers;
+    private final ExecutorService listener = Executors.newSingleThreadExecutor();
+    private final Map<UUID, SharedChannel> channels = new ConcurrentHashMap<>();
+    // Transfers to resubmit once the session they collided with closes; guarded by channelLock.
+    private final Map<UUID, Queue<Runnable>> waitingForChannel = new HashMap<>();
+    private final Object channelLock = new Object();
+    // Results of the transfers not yet finished, queued, parked or running, for close to cancel.
+    private final Set<CompletableFuture<Void>> unfinished = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean running = new AtomicBoolean(true);
+
+    public TransferManager(FileSender fileSender, int maxConcurrent) throws SocketException {
+        this(fileSender, maxConcurrent, ExecutionModel.PLATFORM);
+    }
+
+    /**
+     * @param executionModel threads running the transfers; the queue and the concurrency limit are the
+     *                       same for both models
+     */
+    public TransferManager(FileSender fileSender, int maxConcurrent, ExecutionModel executionModel) throws SocketException {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("Concurrent transfer limit must be positive: " + maxConcurrent);
+        }
+        this.fileSender = Objects.requireNonNull(fileSender, "fileSender");
+        this.client = new UDPClient();
+        this.transfers = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                executionModel.threadFactory("transfer"));
+        listener.execute(this::demultiplex);
+        LOGGER.info("Transfer manager started on port {} with up to {} concurrent transfers", client.getSocket().getLocalPort(), maxConcurrent);
+    }
+
+    /**
+     * Queues a transfer. The returned future completes when the receiver has stored the file; cancelling
+     * it removes a queued transfer or interrupts a running one.
+     *
+     * @throws RejectedExecutionException once the manager is closed
+     */
+    public CompletableFuture<Void> submit(Path file, InetSocketAddress target) {
+        Objects.requireNonNull(file, "file");
+        Objects.requireNonNull(target, "target");
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        AtomicReference<Future<?>> task = new AtomicReference<>();
+        Runnable attempt = new Runnable() {
+            @Override
+            public void run() {
+                if (result.isDone()) {
+                    return;
+                }
+                try {
+                    fileSender.sendFile(file, target, TransferManager.this::openChannel);
+                    result.complete(null);
+                } catch (SessionBusyException busy) {
+                    resubmitWhenClosed(busy.sessionId, () -> {
+                        try {
+                            task.set(transfers.submit(this));
+                        } catch (RejectedExecutionException ex) {
+                            // The manager closed while the transfer was parked.
+                            result.completeExceptionally(ex);
+                        }
+                    });
+                } catch (Throwable ex) {
+                    result.completeExceptionally(ex);
+                }
+            }
+        };
+        unfinished.add(result);
+        result.whenComplete((ignored, ex) -> {
+            unfinished.remove(result);
+            Future<?> submitted = task.get();
+            if (result.isCancelled() && submitted != null) {
+                submitted.cancel(true);
+            }
+        });
+        try {
+            task.set(transfers.submit(attempt));
+        } catch (RejectedExecutionException ex) {
+            result.completeExceptionally(ex);
+            throw ex;
+        }
+        return result;
+    }
+
+    /**
+     * Transfers currently sending.
+     */
+    public int getActiveTransfers() {
+        return transfers.getActiveCount();
+    }
+
+    /**
+     * Transfers waiting for a free slot.
+     */
+    public int getQueuedTransfers() {
+        return transfers.getQueue().size();
+    }
+
+    private SessionChannel openChannel(UUID sessionId) throws IOException {
+        SharedChannel channel = new SharedChannel(sessionId);
+        synchronized (channelLock) {
+            if (channels.putIfAbsent(sessionId, channel) != null) {
+                throw new SessionBusyException(sessionId);
+            }
+        }
+        return channel;
+    }
+
+    private void resubmitWhenClosed(UUID sessionId, Runnable resubmit) {
+        synchronized (channelLock) {
+            if (channels.containsKey(sessionId)) {
+                waitingForChannel.computeIfAbsent(sessionId, id -> new ArrayDeque<>()).add(resubmit);
+                LOGGER.info("Session {} is already sending, queueing the transfer again once it finishes", sessionId);
+                return;
+            }
+        }
+        resubmit.run();
+    }
+
+    private void closeChannel(SharedChannel channel) {
+        Runnable next = null;
+        synchronized (channelLock) {
+            if (channels.remove(channel.sessionId, channel)) {
+                Queue<Runnable> waiting = waitingForChannel.get(channel.sessionId);
+                if (waiting != null) {
+                    // One at a time: the others would only collide with it again.
+                    next = waiting.poll();
+                    if (waiting.isEmpty()) {
+                        waitingForChannel.remove(channel.sessionId);
+                    }
+                }
+            }
+        }
+        if (next != null && running.get()) {
+            next.run();
+        }
+    }
+
+    private void demultiplex() {
+        while (running.get()) {
+            try {
+                Packet packet = client.receive(Duration.ZERO);
+                if (packet.getPacketType() != PacketType.ACK) {
+                    continue;
+                }
+                SharedChannel channel = channels.get(packet.getSessionId());
+                if (channel == null) {
+                    LOGGER.debug("Ignoring ACK for inactive session {}", packet.getSessionId());
+                    continue;
+                }
+                channel.acks.offer(packet);
+            } catch (IOException | RuntimeException e) {
+                if (running.get()) {
+                    LOGGER.error("Error while receiving transfer ACK", e);
+                } else {
+                    LOGGER.debug("Transfer client socket closed");
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running.set(false);
+        transfers.shutdownNow();
+        synchronized (channelLock) {
+            waitingForChannel.clear();
+        }
+        // Queued and parked transfers would otherwise never complete; running ones are interrupted anyway.
+        unfinished.forEach(result -> result.completeExceptionally(new CancellationException("Transfer manager closed")));
+        client.close();
+        listener.shutdownNow();
+        LOGGER.info("Transfer manager stopped");
+    }
+
+    private static final class SessionBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final UUID sessionId;
+
+        private SessionBusyException(UUID sessionId) {
+            super("Session " + sessionId + " is already sending");
+            this.sessionId = sessionId;
+        }
+    }
+
+    private final class SharedChannel implements SessionChannel {
+        private final UUID sessionId;
+        private final BlockingQueue<Packet> acks = new LinkedBlockingQueue<>();
+
+        private SharedChannel(UUID sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public void send(Packet packet, InetSocketAddress target) throws IOException {
+            client.send(packet, target);
+        }
+
+        @Override
+        public Packet poll(Duration timeout) throws IOException {
+            try {
+                return acks.poll(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Transfer of session " + sessionId + " interrupted");
+            }
+        }
+
+        @Override
+        public void close() {
+            closeChannel(this);
+        }
+    }
+}
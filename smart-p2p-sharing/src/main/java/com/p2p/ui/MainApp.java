@@ -1,13 +1,21 @@
 package com.p2p.ui;
 
+import com.p2p.network.BufferPool;
+import com.p2p.network.ExecutionModel;
+import com.p2p.network.PacketDispatcher;
+import com.p2p.network.PacketType;
 import com.p2p.network.PeerDiscoveryService;
 import com.p2p.network.UDPServer;
 import com.p2p.security.MimeDetector;
 import com.p2p.security.SecurityChecker;
 import com.p2p.storage.StorageManager;
+import com.p2p.transfer.ChunkSeeder;
 import com.p2p.transfer.FileReceiver;
 import com.p2p.transfer.FileSender;
+import com.p2p.transfer.SwarmDownloader;
+import com.p2p.transfer.TransferManager;
 import com.p2p.webhook.N8nClient;
+import com.p2p.webhook.WebhookOutbox;
 import javafx.application.Application;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
@@ -34,30 +42,91 @@ public class MainApp extends Application {
     private UDPServer udpServer;
     private PeerDiscoveryService peerDiscoveryService;
     private FileSender fileSender;
+    private TransferManager transferManager;
     private FileReceiver fileReceiver;
+    private ChunkSeeder chunkSeeder;
+    private SwarmDownloader swarmDownloader;
     private N8nClient n8nClient;
     private String peerId;
+    private ExecutionModel executionModel;
     private MainController mainController;
 
     @Override
     public void init() throws Exception {
         Properties properties = loadProperties();
         peerId = resolvePeerId(properties);
+        executionModel = ExecutionModel.fromName(properties.getProperty("execution.model", "platform"));
         storageManager = buildStorageManager(properties);
         storageManager.initialize();
+        storageManager.getContentIndex().load();
 
         SecurityChecker securityChecker = buildSecurityChecker(properties);
         n8nClient = buildN8nClient(properties);
 
-        fileReceiver = new FileReceiver(storageManager, securityChecker, n8nClient);
+        int ackFrequency = Integer.parseInt(properties.getProperty("udp.ack.frequency", String.valueOf(FileReceiver.DEFAULT_ACK_FREQUENCY)));
+        Duration ackInterval = Duration.ofMillis(Long.parseLong(properties.getProperty("udp.ack.intervalMillis", String.valueOf(FileReceiver.DEFAULT_ACK_INTERVAL.toMillis()))));
+        // One pool serves received datagrams, chunks read for sending or seeding and inflated chunks.
+        int maxPooledBuffers = Integer.parseInt(properties.getProperty("udp.bufferPool.maxBuffers", String.valueOf(BufferPool.DEFAULT_MAX_POOLED)));
+        BufferPool buffers = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, maxPooledBuffers, true);
+        fileReceiver = new FileReceiver(storageManager, securityChecker, n8nClient, ackFrequency, ackInterval, buffers);
         int serverPort = Integer.parseInt(properties.getProperty("udp.server.port", "9876"));
-        udpServer = new UDPServer(serverPort, fileReceiver);
+        chunkSeeder = new ChunkSeeder(storageManager.getContentIndex(), buffers, executionModel);
+        PacketDispatcher dispatcher = new PacketDispatcher(fileReceiver)
+                .register(PacketType.CHUNK_REQUEST, chunkSeeder);
+        int serverWorkers = Integer.parseInt(properties.getProperty("udp.server.workers", String.valueOf(UDPServer.DEFAULT_WORKERS)));
+        int serverBatchSize = Integer.parseInt(properties.getProperty("udp.server.batchSize", String.valueOf(UDPServer.DEFAULT_BATCH_SIZE)));
+        int serverShards = Integer.parseInt(properties.getProperty("udp.server.shards", "1"));
+        int serverQueueCapacity = Integer.parseInt(properties.getProperty("udp.server.queueCapacity", String.valueOf(UDPServer.DEFAULT_QUEUE_CAPACITY)));
+        udpServer = UDPServer.builder()
+                .withPort(serverPort)
+                .withPacketHandler(dispatcher)
+                .withWorkers(serverWorkers)
+                .withBatchSize(serverBatchSize)
+                .withShards(serverShards)
+                .withQueueCapacity(serverQueueCapacity)
+                .withBufferPool(buffers)
+                .withExecutionModel(executionModel)
+                .build();
         udpServer.start();
+        scanContentIndex();
 
         int chunkSize = Integer.parseInt(properties.getProperty("udp.chunk.size", "8192"));
         Duration ackTimeout = Duration.ofMillis(Long.parseLong(properties.getProperty("udp.client.timeoutMillis", "5000")));
         int maxRetries = Integer.parseInt(properties.getProperty("udp.max.retries", "5"));
-        fileSender = new FileSender(peerId, chunkSize, ackTimeout, maxRetries);
+        int windowSize = Integer.parseInt(properties.getProperty("udp.window.size", String.valueOf(FileSender.DEFAULT_WINDOW_SIZE)));
+        boolean fecEnabled = Boolean.parseBoolean(properties.getProperty("udp.fec.enabled", "false"));
+        int fecGroupSize = Integer.parseInt(properties.getProperty("udp.fec.groupSize", String.valueOf(FileSender.DEFAULT_PARITY_GROUP_SIZE)));
+        boolean fecAdaptive = Boolean.parseBoolean(properties.getProperty("udp.fec.adaptive", "true"));
+        boolean deltaEnabled = Boolean.parseBoolean(properties.getProperty("udp.delta.enabled", "true"));
+        boolean compressionEnabled = Boolean.parseBoolean(properties.getProperty("udp.compression.enabled", "false"));
+        boolean mtuDiscovery = Boolean.parseBoolean(properties.getProperty("udp.mtu.discovery", "true"));
+        fileSender = FileSender.builder()
+                .withPeerId(peerId)
+                .withChunkSize(chunkSize)
+                .withAckTimeout(ackTimeout)
+                .withMaxRetries(maxRetries)
+                .withWindowSize(windowSize)
+                .withCongestionControl(properties.getProperty("udp.congestion.control", FileSender.DEFAULT_CONGESTION_CONTROL))
+                .withForwardErrorCorrection(fecEnabled ? fecGroupSize : 0, fecAdaptive)
+                .withDeltaTransfer(deltaEnabled)
+                .withCompression(compressionEnabled)
+                .withPathMtuDiscovery(mtuDiscovery)
+                .withBufferPool(buffers)
+                .build();
+        int maxConcurrent = Integer.parseInt(properties.getProperty("transfer.maxConcurrent", String.valueOf(TransferManager.DEFAULT_MAX_CONCURRENT)));
+        transferManager = new TransferManager(fileSender, maxConcurrent, executionModel);
+        int rangeChunks = Integer.parseInt(properties.getProperty("swarm.rangeChunks", String.valueOf(SwarmDownloader.DEFAULT_RANGE_CHUNKS)));
+        Duration swarmTimeout = Duration.ofMillis(Long.parseLong(properties.getProperty("swarm.requestTimeoutMillis", "2000")));
+        swarmDownloader = SwarmDownloader.builder()
+                .withStorageManager(storageManager)
+                .withSecurityChecker(securityChecker)
+                .withN8nClient(n8nClient)
+                .withChunkSize(chunkSize)
+                .withRangeChunks(rangeChunks)
+                .withRequestTimeout(swarmTimeout)
+                .withMaxRetries(maxRetries)
+                .withCongestionControl(properties.getProperty("udp.congestion.control", FileSender.DEFAULT_CONGESTION_CONTROL))
+                .build();
 
         int discoveryPort = Integer.parseInt(properties.getProperty("udp.discovery.port", "9875"));
         peerDiscoveryService = new PeerDiscoveryService(peerId, discoveryPort, serverPort, Duration.ofSeconds(3));
@@ -67,7 +136,8 @@ public class MainApp extends Application {
     @Override
     public void start(Stage primaryStage) {
         TransferController transferController = new TransferController();
-        mainController = new MainController(peerId, peerDiscoveryService, fileSender, transferController);
+        mainController = new MainController(peerId, peerDiscoveryService, transferManager, swarmDownloader, transferController,
+                executionModel.asyncExecutor("swarm-download"));
         Scene scene = new Scene(mainController.build(primaryStage), 900, 600);
         primaryStage.setTitle("Smart P2P File Sharing");
         primaryStage.setScene(scene);
@@ -86,9 +156,41 @@ public class MainApp extends Application {
         } catch (Exception e) {
             LOGGER.warn("Failed to close peer discovery service", e);
         }
+        if (transferManager != null) {
+            transferManager.close();
+        }
+        // The receiver finishes the files it is storing first, so their verdicts still reach the senders.
+        if (fileReceiver != null) {
+            fileReceiver.close();
+        }
         if (udpServer != null) {
             udpServer.close();
         }
+        if (chunkSeeder != null) {
+            chunkSeeder.close();
+        }
+        if (n8nClient != null) {
+            n8nClient.close();
+        }
+        if (storageManager != null) {
+            storageManager.getContentIndex().save();
+        }
+    }
+
+    /**
+     * Confirms the loaded index against the incoming directory in the background, hashing only new or
+     * changed files, so a large store does not hold up the start.
+     */
+    private void scanContentIndex() {
+        Thread scanner = new Thread(() -> {
+            try {
+                storageManager.getContentIndex().scan(storageManager.getIncomingDir());
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.warn("Failed to scan {} for the content index", storageManager.getIncomingDir(), ex);
+            }
+        }, "content-index-scan");
+        scanner.setDaemon(true);
+        scanner.start();
     }
 
     private Properties loadProperties() throws IOException {
@@ -158,7 +260,19 @@ public class MainApp extends Application {
         boolean authActive = Boolean.parseBoolean(properties.getProperty("n8n.auth.active", "false"));
         String username = authActive ? properties.getProperty("n8n.auth.basic.user", "") : null;
         String password = authActive ? properties.getProperty("n8n.auth.basic.password", "") : null;
-        return new N8nClient(URI.create(url), Duration.ofSeconds(10), username, password);
+        Path baseDir = normalizePath(properties.getProperty("storage.baseDir", "./shared-storage"));
+        Path outboxDir = normalizePath(properties.getProperty("n8n.outbox.dir", baseDir.resolve("outbox").toString()), baseDir);
+        int maxBatchSize = Integer.parseInt(properties.getProperty("n8n.outbox.batchSize", String.valueOf(WebhookOutbox.DEFAULT_MAX_BATCH_SIZE)));
+        int maxConnections = Integer.parseInt(properties.getProperty("n8n.outbox.maxConnections", String.valueOf(WebhookOutbox.DEFAULT_MAX_CONCURRENT_REQUESTS)));
+        return N8nClient.builder()
+                .withWebhookUri(URI.create(url))
+                .withTimeout(Duration.ofSeconds(10))
+                .withBasicAuth(username, password)
+                .withExecutor(executionModel.asyncExecutor("n8n-webhook"))
+                .withOutboxDirectory(outboxDir)
+                .withMaxBatchSize(maxBatchSize)
+                .withMaxConnections(maxConnections)
+                .build();
     }
 
     public static void main(String[] args) {
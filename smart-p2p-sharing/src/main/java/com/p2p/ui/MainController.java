@@ -2,7 +2,8 @@ package com.p2p.ui;
 
 import com.p2p.network.PeerDiscoveryService;
 import com.p2p.network.PeerInfo;
-import com.p2p.transfer.FileSender;
+import com.p2p.transfer.SwarmDownloader;
+import com.p2p.transfer.TransferManager;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.application.Platform;
@@ -14,6 +15,7 @@ import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
 import javafx.scene.control.SelectionMode;
+import javafx.scene.control.TextInputDialog;
 import javafx.scene.control.ToolBar;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.VBox;
@@ -24,11 +26,16 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.file.Path;
+import java.io.UncheckedIOException;
 import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 
 public class MainController {
 
@@ -36,19 +43,25 @@ public class MainController {
 
     private final String peerId;
     private final PeerDiscoveryService peerDiscoveryService;
-    private final FileSender fileSender;
+    private final TransferManager transferManager;
+    private final SwarmDownloader swarmDownloader;
     private final TransferController transferController;
+    private final Executor backgroundExecutor;
     private final ObservableList<PeerInfo> peers = FXCollections.observableArrayList();
     private Timeline timeline;
 
     public MainController(String peerId,
                           PeerDiscoveryService peerDiscoveryService,
-                          FileSender fileSender,
-                          TransferController transferController) {
+                          TransferManager transferManager,
+                          SwarmDownloader swarmDownloader,
+                          TransferController transferController,
+                          Executor backgroundExecutor) {
         this.peerId = Objects.requireNonNull(peerId, "peerId");
         this.peerDiscoveryService = Objects.requireNonNull(peerDiscoveryService, "peerDiscoveryService");
-        this.fileSender = Objects.requireNonNull(fileSender, "fileSender");
+        this.transferManager = Objects.requireNonNull(transferManager, "transferManager");
+        this.swarmDownloader = Objects.requireNonNull(swarmDownloader, "swarmDownloader");
         this.transferController = Objects.requireNonNull(transferController, "transferController");
+        this.backgroundExecutor = Objects.requireNonNull(backgroundExecutor, "backgroundExecutor");
     }
 
     public Parent build(Stage stage) {
@@ -81,7 +94,10 @@ public class MainController {
         VBox center = new VBox(10, new Label("Discovered peers:"), peerList);
         center.setPadding(new Insets(10, 0, 10, 0));
 
-        ToolBar toolBar = new ToolBar(sendButton);
+        Button swarmButton = new Button("Download by Checksum");
+        swarmButton.setOnAction(event -> handleSwarmDownload());
+
+        ToolBar toolBar = new ToolBar(sendButton, swarmButton);
 
         root.setTop(header);
         root.setCenter(center);
@@ -123,13 +139,43 @@ public class MainController {
             return;
         }
         transferController.addLog("Queued transfer to " + peerInfo.getPeerId() + ": " + file.getName());
-        CompletableFuture.runAsync(() -> {
+        transferManager.submit(Path.of(file.getAbsolutePath()), new InetSocketAddress(peerInfo.getAddress(), peerInfo.getPort()))
+                .whenComplete((ignored, ex) -> {
+                    if (ex == null) {
+                        transferController.addLog("✅ Transfer completed: " + file.getName());
+                    } else {
+                        LOGGER.error("Transfer failed", ex);
+                        transferController.addLog("❌ Transfer failed: " + ex.getMessage());
+                    }
+                });
+    }
+
+    private void handleSwarmDownload() {
+        TextInputDialog dialog = new TextInputDialog();
+        dialog.setTitle("Download by checksum");
+        dialog.setHeaderText("Download a file from every discovered peer that holds it.\n"
+                + "Enter the content hash this application reports for it; the output of sha256sum differs.");
+        dialog.setContentText("Content hash:");
+        String checksum = dialog.showAndWait().map(String::trim).orElse("");
+        if (checksum.isEmpty()) {
+            return;
+        }
+        List<InetSocketAddress> sources = peerDiscoveryService.getPeers().stream()
+                .map(peer -> new InetSocketAddress(peer.getAddress(), peer.getPort()))
+                .collect(Collectors.toList());
+        transferController.addLog("Swarm download of " + checksum + " from " + sources.size() + " peers");
+        CompletableFuture.supplyAsync(() -> {
             try {
-                fileSender.sendFile(Path.of(file.getAbsolutePath()), new InetSocketAddress(peerInfo.getAddress(), peerInfo.getPort()));
-                transferController.addLog("✅ Transfer completed: " + file.getName());
-            } catch (Exception ex) {
-                LOGGER.error("Transfer failed", ex);
-                transferController.addLog("❌ Transfer failed: " + ex.getMessage());
+                return swarmDownloader.download(checksum, sources);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }, backgroundExecutor).whenComplete((path, ex) -> {
+            if (ex == null) {
+                transferController.addLog("✅ Swarm download completed: " + path.getFileName());
+            } else {
+                LOGGER.error("Swarm download failed", ex);
+                transferController.addLog("❌ Swarm download failed: " + ex.getMessage());
             }
         });
     }
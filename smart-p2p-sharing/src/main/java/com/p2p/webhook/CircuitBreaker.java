@@ -0,0 +1,82 @@
+package com.p2p.webhook;
+
+import java.time.Duration;
+
+/**
+ * Stops calling an endpoint that keeps failing. After {@code failureThreshold} consecutive failures the
+ * breaker opens and refuses calls for {@code openDuration}; it then lets a single trial call through, which
+ * closes it on success and opens it again on failure. Not thread-safe; callers synchronise.
+ */
+final class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtNanos;
+    private boolean trialInFlight;
+
+    CircuitBreaker(int failureThreshold, Duration openDuration) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Invalid failure threshold " + failureThreshold);
+        }
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openDuration.toNanos();
+    }
+
+    /**
+     * @return how long to wait before a call may be made, or 0 if {@link #tryAcquire(long)} would allow one now;
+     * a half-open breaker with its trial call still running waits for that call
+     */
+    long delayNanos(long nowNanos) {
+        if (state == State.OPEN) {
+            return Math.max(0, openedAtNanos + openNanos - nowNanos);
+        }
+        return state == State.HALF_OPEN && trialInFlight ? Long.MAX_VALUE : 0;
+    }
+
+    /**
+     * @return whether a call may be made now; every allowed call must end in {@link #onSuccess()} or
+     * {@link #onFailure(long)}
+     */
+    boolean tryAcquire(long nowNanos) {
+        if (state == State.OPEN && nowNanos - openedAtNanos >= openNanos) {
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialInFlight) {
+                return false;
+            }
+            trialInFlight = true;
+            return true;
+        }
+        return state == State.CLOSED;
+    }
+
+    void onSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialInFlight = false;
+    }
+
+    void onFailure(long nowNanos) {
+        consecutiveFailures++;
+        trialInFlight = false;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAtNanos = nowNanos;
+        }
+    }
+
+    int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    State getState() {
+        return state;
+    }
+}
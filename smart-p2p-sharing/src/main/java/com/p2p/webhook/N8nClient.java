@@ -4,65 +4,209 @@ import com.google.gson.Gson;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Base64;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
-public class N8nClient {
+/**
+ * Notifies the n8n webhook about stored files. {@link #sendAsync} queues the payload in a {@link WebhookOutbox},
+ * which posts payloads in batches, as a JSON array, over a bounded number of requests and retries them while
+ * n8n is unreachable; {@link #send} posts a single payload as a JSON object right away.
+ */
+public class N8nClient implements Closeable {
 
     private static final Logger LOGGER = LogManager.getLogger(N8nClient.class);
 
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
     private final HttpClient httpClient;
     private final URI webhookUri;
     private final String basicAuthHeader;
+    private final WebhookOutbox outbox;
     private final Gson gson = new Gson();
 
     public N8nClient(URI webhookUri, Duration timeout, String basicAuthUser, String basicAuthPassword) {
-        this.webhookUri = Objects.requireNonNull(webhookUri, "webhookUri");
+        this(webhookUri, timeout, basicAuthUser, basicAuthPassword, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param executor runs the HTTP client's callbacks
+     */
+    public N8nClient(URI webhookUri, Duration timeout, String basicAuthUser, String basicAuthPassword, Executor executor) {
+        this(builder()
+                .withWebhookUri(webhookUri)
+                .withTimeout(timeout)
+                .withBasicAuth(basicAuthUser, basicAuthPassword)
+                .withExecutor(executor));
+    }
+
+    private N8nClient(Builder builder) {
+        this.webhookUri = Objects.requireNonNull(builder.webhookUri, "webhookUri");
+        // HTTP/2 multiplexes the batches in flight over one connection where n8n offers it, else HTTP/1.1 is used.
         this.httpClient = HttpClient.newBuilder()
-                .connectTimeout(timeout)
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(builder.timeout)
+                .executor(Objects.requireNonNull(builder.executor, "executor"))
                 .build();
-        if (basicAuthUser != null && !basicAuthUser.isBlank()) {
-            String token = basicAuthUser + ":" + (basicAuthPassword == null ? "" : basicAuthPassword);
+        if (builder.basicAuthUser != null && !builder.basicAuthUser.isBlank()) {
+            String token = builder.basicAuthUser + ":" + (builder.basicAuthPassword == null ? "" : builder.basicAuthPassword);
             this.basicAuthHeader = "Basic " + Base64.getEncoder().encodeToString(token.getBytes(StandardCharsets.UTF_8));
         } else {
             this.basicAuthHeader = null;
         }
+        try {
+            this.outbox = new WebhookOutbox(builder.outboxDirectory, this::postBatch, builder.maxBatchSize,
+                    builder.maxConnections, builder.maxQueued, builder.initialBackoff, builder.breakerOpenDuration);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot open the webhook outbox in " + builder.outboxDirectory, ex);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
     }
 
+    /**
+     * Queues the payload for delivery.
+     *
+     * @return a future completing once n8n acknowledged the payload
+     */
     public CompletableFuture<Void> sendAsync(WebhookPayload payload) {
-        return CompletableFuture.runAsync(() -> {
-            try {
-                send(payload);
-            } catch (Exception ex) {
-                LOGGER.error("Failed to notify n8n webhook", ex);
-            }
-        });
+        Objects.requireNonNull(payload, "payload");
+        return outbox.enqueue(gson.toJson(payload));
     }
 
     public void send(WebhookPayload payload) throws Exception {
         Objects.requireNonNull(payload, "payload");
         String json = gson.toJson(payload);
+        HttpResponse<String> response = httpClient.send(request(json), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() >= 200 && response.statusCode() < 300) {
+            LOGGER.info("n8n webhook acknowledged payload for {}", payload.getFileName());
+        } else {
+            LOGGER.warn("n8n webhook responded with status {}: {}", response.statusCode(), response.body());
+        }
+    }
+
+    private CompletableFuture<Integer> postBatch(String body) {
+        return httpClient.sendAsync(request(body), HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+            if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                LOGGER.debug("n8n webhook responded with status {}: {}", response.statusCode(), response.body());
+            }
+            return response.statusCode();
+        });
+    }
+
+    private HttpRequest request(String json) {
         HttpRequest.Builder builder = HttpRequest.newBuilder()
                 .uri(webhookUri)
-                .timeout(Duration.ofSeconds(10))
+                .timeout(REQUEST_TIMEOUT)
                 .header("Content-Type", "application/json")
                 .POST(HttpRequest.BodyPublishers.ofString(json));
         if (basicAuthHeader != null) {
             builder.header("Authorization", basicAuthHeader);
         }
-        HttpRequest request = builder.build();
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() >= 200 && response.statusCode() < 300) {
-            LOGGER.info("n8n webhook acknowledged payload for {}", payload.getFileName());
-        } else {
-            LOGGER.warn("n8n webhook responded with status {}: {}", response.statusCode(), response.body());
+        return builder.build();
+    }
+
+    /**
+     * Queue depth, delivery latency and failures of the queued payloads.
+     */
+    public WebhookOutbox getOutbox() {
+        return outbox;
+    }
+
+    @Override
+    public void close() {
+        outbox.close();
+    }
+
+    public static final class Builder {
+        private URI webhookUri;
+        private Duration timeout = Duration.ofSeconds(10);
+        private String basicAuthUser;
+        private String basicAuthPassword;
+        private Executor executor = ForkJoinPool.commonPool();
+        private Path outboxDirectory;
+        private int maxBatchSize = WebhookOutbox.DEFAULT_MAX_BATCH_SIZE;
+        private int maxConnections = WebhookOutbox.DEFAULT_MAX_CONCURRENT_REQUESTS;
+        private int maxQueued = WebhookOutbox.DEFAULT_MAX_QUEUED;
+        private Duration initialBackoff = WebhookOutbox.DEFAULT_INITIAL_BACKOFF;
+        private Duration breakerOpenDuration = WebhookOutbox.DEFAULT_BREAKER_OPEN_DURATION;
+
+        private Builder() {
+        }
+
+        public Builder withWebhookUri(URI webhookUri) {
+            this.webhookUri = webhookUri;
+            return this;
+        }
+
+        public Builder withTimeout(Duration timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        public Builder withBasicAuth(String user, String password) {
+            this.basicAuthUser = user;
+            this.basicAuthPassword = password;
+            return this;
+        }
+
+        public Builder withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Keeps queued payloads in this directory until delivered, so they survive a restart. Without one
+         * they are kept in memory only.
+         */
+        public Builder withOutboxDirectory(Path outboxDirectory) {
+            this.outboxDirectory = outboxDirectory;
+            return this;
+        }
+
+        public Builder withMaxBatchSize(int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * Most batch requests in flight at once, and so most connections opened to n8n.
+         */
+        public Builder withMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        public Builder withMaxQueued(int maxQueued) {
+            this.maxQueued = maxQueued;
+            return this;
+        }
+
+        /**
+         * Shortens the retry backoff and the open circuit breaker, for checks that cannot wait minutes.
+         */
+        Builder withRetryTiming(Duration initialBackoff, Duration breakerOpenDuration) {
+            this.initialBackoff = Objects.requireNonNull(initialBackoff, "initialBackoff");
+            this.breakerOpenDuration = Objects.requireNonNull(breakerOpenDuration, "breakerOpenDuration");
+            return this;
+        }
+
+        public N8nClient build() {
+            return new N8nClient(this);
         }
     }
 }
@@ -0,0 +1,441 @@
+package com.p2p.webhook;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of webhook events waiting to be delivered, posted in batches as JSON arrays. With a directory, every
+ * event is written there before it is queued and deleted once delivered, so events survive a restart or an
+ * endpoint that is down for a while; the next outbox on the same directory picks them up.
+ * <p>
+ * One dispatcher thread forms batches of up to {@code maxBatchSize} events, waiting up to {@link #LINGER}
+ * for a batch to fill, and keeps at most {@code maxConcurrentRequests} of them in flight, which also bounds
+ * the connections the HTTP client opens. A failed batch goes back to the head of the queue and is retried
+ * after an exponential backoff with jitter, starting from {@link #DEFAULT_INITIAL_BACKOFF}; after
+ * {@link #BREAKER_THRESHOLD} consecutive failures a circuit breaker holds every request for
+ * {@link #DEFAULT_BREAKER_OPEN_DURATION} and then lets one trial batch through.
+ * Only a batch the endpoint rejects for its content ({@link #isRejected(int)}) is dropped; every other
+ * error, including 401 and 403 from misconfigured credentials, is retried until the operator fixes it.
+ */
+public final class WebhookOutbox implements Closeable {
+
+    private static final Logger LOGGER = LogManager.getLogger(WebhookOutbox.class);
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 2;
+    // Events held beyond this are refused, so an endpoint that is down cannot exhaust the memory or the disk.
+    public static final int DEFAULT_MAX_QUEUED = 100_000;
+    private static final Duration LINGER = Duration.ofMillis(200);
+    static final Duration DEFAULT_INITIAL_BACKOFF = Duration.ofSeconds(1);
+    private static final Duration MAX_BACKOFF = Duration.ofMinutes(5);
+    static final int BREAKER_THRESHOLD = 5;
+    static final Duration DEFAULT_BREAKER_OPEN_DURATION = Duration.ofSeconds(30);
+    private static final String EVENT_SUFFIX = ".json";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Posts one batch, completing with the HTTP status of the response.
+     */
+    @FunctionalInterface
+    interface BatchPoster {
+        CompletableFuture<Integer> post(String body);
+    }
+
+    private final Path directory;
+    private final BatchPoster poster;
+    private final int maxBatchSize;
+    private final int maxQueued;
+    private final Semaphore requests;
+    private final long initialBackoffNanos;
+    private final Thread dispatcher;
+    // Guarded by this.
+    private final Deque<Event> queue = new ArrayDeque<>();
+    private final CircuitBreaker breaker;
+    private int inFlight;
+    private long retryAtNanos;
+    private long nextSequence;
+    private boolean closed;
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong latencyMillisTotal = new AtomicLong();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    /**
+     * @param directory where events wait for delivery, or {@code null} to keep them in memory only
+     */
+    WebhookOutbox(Path directory, BatchPoster poster, int maxBatchSize, int maxConcurrentRequests, int maxQueued) throws IOException {
+        this(directory, poster, maxBatchSize, maxConcurrentRequests, maxQueued, DEFAULT_INITIAL_BACKOFF, DEFAULT_BREAKER_OPEN_DURATION);
+    }
+
+    /**
+     * @param initialBackoff delay before the first retry, doubling with every further failure
+     * @param breakerOpenDuration how long the open breaker holds requests before its trial batch
+     */
+    WebhookOutbox(Path directory, BatchPoster poster, int maxBatchSize, int maxConcurrentRequests, int maxQueued,
+                  Duration initialBackoff, Duration breakerOpenDuration) throws IOException {
+        if (maxBatchSize < 1 || maxConcurrentRequests < 1 || maxQueued < 1) {
+            throw new IllegalArgumentException("Invalid outbox of " + maxQueued + " events in batches of " + maxBatchSize
+                    + " over " + maxConcurrentRequests + " requests");
+        }
+        this.directory = directory;
+        this.poster = poster;
+        this.maxBatchSize = maxBatchSize;
+        this.maxQueued = maxQueued;
+        this.requests = new Semaphore(maxConcurrentRequests);
+        this.initialBackoffNanos = initialBackoff.toNanos();
+        this.breaker = new CircuitBreaker(BREAKER_THRESHOLD, breakerOpenDuration);
+        this.retryAtNanos = System.nanoTime();
+        if (directory != null) {
+            recover();
+        }
+        this.dispatcher = new Thread(this::dispatch, "n8n-outbox");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Loads the events a previous outbox left undelivered, oldest first, and removes half-written ones.
+     */
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        List<Event> recovered = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                if (!name.endsWith(EVENT_SUFFIX)) {
+                    continue;
+                }
+                long sequence;
+                try {
+                    sequence = Long.parseLong(name.substring(0, name.length() - EVENT_SUFFIX.length()));
+                } catch (NumberFormatException ex) {
+                    LOGGER.warn("Ignoring unexpected file {} in the webhook outbox", file);
+                    continue;
+                }
+                String json = Files.readString(file, StandardCharsets.UTF_8);
+                recovered.add(new Event(sequence, json, Files.getLastModifiedTime(file).toMillis(), 0, true, true));
+            }
+        }
+        recovered.sort(Comparator.comparingLong(event -> event.sequence));
+        queue.addAll(recovered);
+        nextSequence = recovered.isEmpty() ? 0 : recovered.get(recovered.size() - 1).sequence + 1;
+        if (!recovered.isEmpty()) {
+            LOGGER.info("Recovered {} undelivered webhook events from {}", recovered.size(), directory);
+        }
+    }
+
+    /**
+     * Queues an event for delivery, writing it to the outbox directory first.
+     *
+     * @return a future completing once the event was delivered, or failing if it is refused or dropped
+     */
+    public CompletableFuture<Void> enqueue(String json) {
+        long sequence;
+        synchronized (this) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Webhook outbox is closed"));
+            }
+            if (queue.size() + inFlight >= maxQueued) {
+                dropped.incrementAndGet();
+                LOGGER.error("Webhook outbox is full with {} events, dropping a new one", maxQueued);
+                return CompletableFuture.failedFuture(new IllegalStateException("Webhook outbox is full"));
+            }
+            sequence = nextSequence++;
+        }
+        boolean stored = false;
+        if (directory != null) {
+            try {
+                Path temporary = directory.resolve(sequence + TEMP_SUFFIX);
+                Files.writeString(temporary, json, StandardCharsets.UTF_8);
+                Files.move(temporary, eventFile(sequence), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                stored = true;
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to store webhook event {}, keeping it in memory only", sequence, ex);
+            }
+        }
+        Event event = new Event(sequence, json, System.currentTimeMillis(), System.nanoTime(), stored, false);
+        synchronized (this) {
+            queue.addLast(event);
+            notifyAll();
+        }
+        return event.delivery;
+    }
+
+    private Path eventFile(long sequence) {
+        return directory.resolve(sequence + EVENT_SUFFIX);
+    }
+
+    private void dispatch() {
+        try {
+            while (true) {
+                requests.acquire();
+                List<Event> batch = nextBatch();
+                if (batch == null) {
+                    return;
+                }
+                post(batch);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until a batch is due: events are queued, no backoff or open breaker holds them, and the batch is
+     * full or its oldest event has lingered long enough.
+     *
+     * @return the batch, or {@code null} once closed
+     */
+    private synchronized List<Event> nextBatch() throws InterruptedException {
+        while (true) {
+            if (closed) {
+                return null;
+            }
+            long now = System.nanoTime();
+            long delay = batchDelayNanos(now);
+            if (delay == 0 && breaker.tryAcquire(now)) {
+                break;
+            }
+            if (delay == Long.MAX_VALUE || delay == 0) {
+                wait();
+            } else {
+                TimeUnit.NANOSECONDS.timedWait(this, delay);
+            }
+        }
+        List<Event> batch = new ArrayList<>(Math.min(maxBatchSize, queue.size()));
+        while (batch.size() < maxBatchSize && !queue.isEmpty()) {
+            batch.add(queue.pollFirst());
+        }
+        inFlight += batch.size();
+        return batch;
+    }
+
+    private long batchDelayNanos(long now) {
+        if (queue.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        if (retryAtNanos - now > 0) {
+            return retryAtNanos - now;
+        }
+        long breakerDelay = breaker.delayNanos(now);
+        if (breakerDelay > 0) {
+            return breakerDelay;
+        }
+        Event oldest = queue.peekFirst();
+        if (queue.size() < maxBatchSize && !oldest.recovered) {
+            return Math.max(0, oldest.enqueuedAtNanos + LINGER.toNanos() - now);
+        }
+        return 0;
+    }
+
+    /**
+     * @return whether the status rejects the payload itself, so resending the same batch cannot succeed
+     */
+    static boolean isRejected(int status) {
+        return status == 400 || status == 413 || status == 415 || status == 422;
+    }
+
+    private void post(List<Event> batch) {
+        StringBuilder body = new StringBuilder(batch.size() * 256).append('[');
+        for (int i = 0; i < batch.size(); i++) {
+            body.append(i == 0 ? "" : ",").append(batch.get(i).json);
+        }
+        CompletableFuture<Integer> response;
+        try {
+            response = poster.post(body.append(']').toString());
+        } catch (RuntimeException ex) {
+            response = CompletableFuture.failedFuture(ex);
+        }
+        response.whenComplete((status, error) -> {
+            try {
+                completed(batch, status, error);
+            } finally {
+                requests.release();
+            }
+        });
+    }
+
+    private void completed(List<Event> batch, Integer status, Throwable error) {
+        long now = System.nanoTime();
+        boolean success = error == null && status >= 200 && status < 300;
+        boolean refused = error == null && isRejected(status);
+        if (success || refused) {
+            forget(batch);
+        }
+        if (success) {
+            long deliveredAt = System.currentTimeMillis();
+            for (Event event : batch) {
+                long latency = Math.max(0, deliveredAt - event.enqueuedAtMillis);
+                latencyMillisTotal.addAndGet(latency);
+                maxLatencyMillis.accumulateAndGet(latency, Math::max);
+                event.delivery.complete(null);
+            }
+            delivered.addAndGet(batch.size());
+            batches.incrementAndGet();
+            LOGGER.debug("Delivered {} webhook events", batch.size());
+        } else if (refused) {
+            dropped.addAndGet(batch.size());
+            LOGGER.error("Webhook refused a batch of {} events with status {}, dropping it", batch.size(), status);
+            batch.forEach(event -> event.delivery.completeExceptionally(new IOException("Webhook refused the event with status " + status)));
+        }
+        synchronized (this) {
+            inFlight -= batch.size();
+            if (success || refused) {
+                // The endpoint answered, so it is up even if it disliked this batch.
+                breaker.onSuccess();
+                retryAtNanos = now;
+            } else {
+                failedAttempts.incrementAndGet();
+                breaker.onFailure(now);
+                long backoff = backoffNanos(breaker.getConsecutiveFailures());
+                retryAtNanos = now + backoff;
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    queue.addFirst(batch.get(i));
+                }
+                if (error != null) {
+                    LOGGER.warn("Failed to deliver {} webhook events, retrying in {} ms: {}", batch.size(),
+                            TimeUnit.NANOSECONDS.toMillis(backoff), error.toString());
+                } else {
+                    LOGGER.warn("Webhook responded with status {} to {} events, retrying in {} ms", status, batch.size(),
+                            TimeUnit.NANOSECONDS.toMillis(backoff));
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Doubles from the initial backoff with every consecutive failure up to {@link #MAX_BACKOFF}, then picks
+     * a random delay in the upper half so that peers retrying against the same endpoint spread out.
+     */
+    private long backoffNanos(int failures) {
+        long backoff = Math.min(MAX_BACKOFF.toNanos(), initialBackoffNanos << Math.min(Math.max(0, failures - 1), 20));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private void forget(List<Event> batch) {
+        for (Event event : batch) {
+            if (!event.stored) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(eventFile(event.sequence));
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to remove delivered webhook event {}; it may be delivered again", event.sequence, ex);
+            }
+        }
+    }
+
+    /**
+     * @return events waiting for delivery, including those in flight
+     */
+    public synchronized int getQueueDepth() {
+        return queue.size() + inFlight;
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return batch posts that failed and were retried
+     */
+    public long getFailedAttempts() {
+        return failedAttempts.get();
+    }
+
+    /**
+     * @return events refused by a full outbox or by the endpoint
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return mean time from queueing an event to its delivery
+     */
+    public double getAverageLatencyMillis() {
+        long count = delivered.get();
+        return count == 0 ? 0 : (double) latencyMillisTotal.get() / count;
+    }
+
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    public synchronized String getCircuitState() {
+        return breaker.getState().name();
+    }
+
+    /**
+     * Stops dispatching; requests in flight may still complete. Events not yet delivered stay in the outbox
+     * directory for the next outbox to send, or are lost without one.
+     */
+    @Override
+    public void close() {
+        int pending;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending = queue.size() + inFlight;
+            notifyAll();
+        }
+        dispatcher.interrupt();
+        LOGGER.info("Webhook outbox closed with {} events pending: {}", pending, this);
+    }
+
+    @Override
+    public String toString() {
+        long batchCount = batches.get();
+        return String.format("%d delivered in %d batches (%.1f per batch), %.0f ms average and %d ms max latency, %d failed attempts, %d dropped, circuit %s",
+                delivered.get(), batchCount, batchCount == 0 ? 0.0 : (double) delivered.get() / batchCount, getAverageLatencyMillis(),
+                maxLatencyMillis.get(), failedAttempts.get(), dropped.get(), getCircuitState());
+    }
+
+    private static final class Event {
+        private final long sequence;
+        private final String json;
+        private final long enqueuedAtMillis;
+        private final long enqueuedAtNanos;
+        // Recovered events have waited long enough already and are sent without lingering.
+        private final boolean recovered;
+        private final boolean stored;
+        private final CompletableFuture<Void> delivery = new CompletableFuture<>();
+
+        private Event(long sequence, String json, long enqueuedAtMillis, long enqueuedAtNanos, boolean stored, boolean recovered) {
+            this.sequence = sequence;
+            this.json = json;
+            this.enqueuedAtMillis = enqueuedAtMillis;
+            this.enqueuedAtNanos = enqueuedAtNanos;
+            this.stored = stored;
+            this.recovered = recovered;
+        }
+    }
+}
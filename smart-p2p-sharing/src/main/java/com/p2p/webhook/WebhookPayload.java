@@ -34,6 +34,10 @@ public class WebhookPayload {
         return fileSize;
     }
 
+    /**
+     * @return the content hash of the file ({@code ChecksumUtil.contentHash}), a Merkle root over its 1 MiB
+     *         blocks, which differs from the plain SHA-256 that {@code sha256sum} prints
+     */
     public String getChecksum() {
         return checksum;
     }